@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 崩溃报告采集与写入基准测试。
+ * <p>
+ * Covers what {@code CrashReporter} does for every report once the stack
+ * trace is serialized: filling the report with the device metadata,
+ * streaming the custom data, encoding the report and writing the file.
+ * The metadata comes from fixed strings standing in for the
+ * {@code DeviceSnapshot}, which needs an Android context.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReportWriteBenchmark {
+
+    private static final int CUSTOM_KEYS = 16;
+
+    private final CustomDataStore mCustomData = new CustomDataStore(CustomDataStore.DEFAULT_MAX_KEYS,
+            CustomDataStore.DEFAULT_MAX_VALUE_LENGTH);
+    private final CrashReportWriter mWriter = new CrashReportWriter(4096);
+    private CrashReport mReport;
+    private File mFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        for (int i = 0; i < CUSTOM_KEYS; i++) {
+            if (i % 3 == 0) {
+                mCustomData.putLong("count" + i, i * 1000L);
+            } else if (i % 3 == 1) {
+                mCustomData.putBoolean("flag" + i, true);
+            } else {
+                mCustomData.putString("screen" + i, "com.example.app.ui.DetailActivity#" + i);
+            }
+        }
+        StringBuilder stack = new StringBuilder();
+        new StackTraceSerializer(StackTraceSerializer.DEFAULT_MAX_TRACE_CHARS,
+                StackTraceSerializer.DEFAULT_MAX_REPORT_CHARS)
+                .serialize(new RuntimeException("report", new IllegalStateException("cause")), stack);
+        mReport = collectMetadata()
+                .put("CustomData", mCustomData)
+                .put("StackTrace", stack.toString())
+                .build();
+        mFile = File.createTempFile("benchmark", CrashReportWriter.FILE_EXTENSION);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /**
+     * The fields {@code CrashReporter.retrieveCrashData} adds to a report.
+     */
+    @Benchmark
+    public CrashReport.Builder collectMetadata() {
+        CrashReport.Builder builder = new CrashReport.Builder("silent", System.currentTimeMillis());
+        builder.put("report_mode", builder.getMode());
+        builder.put("VersionName", "2.4.1");
+        builder.put("PackageName", "com.example.app");
+        builder.put("PhoneModel", "Pixel 2");
+        builder.put("AndroidVersion", "8.1.0");
+        builder.put("BOARD", "walleye");
+        builder.put("BRAND", "google");
+        builder.put("DEVICE", "walleye");
+        builder.put("DISPLAY", "OPM1.171019.011");
+        builder.put("FINGERPRINT", "google/walleye/walleye:8.1.0/OPM1.171019.011/4448085:user/release-keys");
+        builder.put("MODEL", "Pixel 2");
+        builder.put("PRODUCT", "walleye");
+        builder.put("TAGS", "release-keys");
+        builder.put("TIME", "1509587543000");
+        builder.put("TYPE", "user");
+        builder.put("StartAppTime", "2017/11/14 11-44-47");
+        builder.put("CrashAppTime", "2017/11/14 11-52-03");
+        builder.put("TotalMemSize", "52521566208");
+        builder.put("AvaliableMemSize", "" + (builder.getTime() & 0xffffffffL));
+        builder.put("VersionCode", "4512");
+        return builder;
+    }
+
+    @Benchmark
+    public int streamCustomData() {
+        mWriter.reset();
+        mWriter.beginField("CustomData");
+        mCustomData.writeTo(mWriter);
+        mWriter.endField();
+        return mWriter.size();
+    }
+
+    @Benchmark
+    public CrashReportWriter encodeReport() {
+        CrashReportWriter writer = new CrashReportWriter(mReport.estimateSize());
+        mReport.writeTo(writer);
+        return writer;
+    }
+
+    /**
+     * Encoding plus writing the file, as {@code saveCrashReportFile} does.
+     */
+    @Benchmark
+    public CrashReportWriter writeReportFile() throws IOException {
+        CrashReportWriter writer = encodeReport();
+        writer.writeTo(mFile);
+        return writer;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 堆栈序列化基准测试。
+ * <p>
+ * Serializes throwables of the shapes seen in crash reports: a shallow
+ * one, a deep recursion and a chain of causes thrown from nested calls.
+ * {@code printStackTrace} is measured as the reference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StackTraceBenchmark {
+
+    private static final int DEEP_FRAMES = 500;
+    private static final int CAUSES = 5;
+    private static final int FRAMES_PER_CAUSE = 20;
+
+    private final StackTraceSerializer mSerializer = new StackTraceSerializer(
+            StackTraceSerializer.DEFAULT_MAX_TRACE_CHARS, StackTraceSerializer.DEFAULT_MAX_REPORT_CHARS);
+    private Throwable mShallow;
+    private Throwable mDeep;
+    private Throwable mCauseChain;
+
+    @Setup
+    public void setUp() {
+        mShallow = new IllegalStateException("shallow");
+        mDeep = recurse(DEEP_FRAMES);
+        mCauseChain = chain(CAUSES);
+    }
+
+    private static Throwable recurse(int depth) {
+        return depth == 0 ? new StackOverflowError("deep") : recurse(depth - 1);
+    }
+
+    private static Throwable nest(int depth, Throwable cause) {
+        return depth == 0 ? new RuntimeException("level", cause) : nest(depth - 1, cause);
+    }
+
+    /**
+     * Each cause is thrown a few frames deeper than its wrapper, so the
+     * frames they share are folded.
+     */
+    private static Throwable chain(int causes) {
+        Throwable cause = null;
+        for (int i = 0; i < causes; i++) {
+            cause = nest(FRAMES_PER_CAUSE * (causes - i), cause);
+        }
+        return cause;
+    }
+
+    @Benchmark
+    public String serializeShallow() {
+        return mSerializer.serialize(mShallow);
+    }
+
+    @Benchmark
+    public String serializeDeep() {
+        return mSerializer.serialize(mDeep);
+    }
+
+    @Benchmark
+    public String serializeCauseChain() {
+        return mSerializer.serialize(mCauseChain);
+    }
+
+    @Benchmark
+    public long fingerprintCauseChain() {
+        return CrashFingerprint.compute(mCauseChain);
+    }
+
+    @Benchmark
+    public String printStackTraceCauseChain() {
+        StringWriter out = new StringWriter();
+        mCauseChain.printStackTrace(new PrintWriter(out));
+        return out.toString();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 无锁的面包屑环形缓冲区。
+ * <p>
+ * Keeps the last events recorded by the app in preallocated parallel
+ * arrays. Recording claims a sequence number with one atomic increment and
+ * writes the slot it maps to, so it never locks and never allocates; the
+ * strings passed in are stored by reference.
+ * <p>
+ * Each slot has a stamp: it is negative while the slot is being written
+ * and {@code sequence + 1} once written. A reader copies a slot and checks
+ * the stamp did not change meanwhile, so an event overwritten during the
+ * read is skipped instead of mixed with the next one.
+ * <p>
+ * The slot fields are atomic arrays too. Writes use {@code lazySet},
+ * which keeps them in order behind the negative stamp and ahead of the
+ * final one. Reads are volatile, so they cannot move past the second stamp
+ * check. Plain arrays would allow both reorderings.
+ */
+final class BreadcrumbRing {
+
+    static final int DEFAULT_CAPACITY = 128;
+    /**
+     * Value of an event recorded without one.
+     */
+    static final long NO_VALUE = Long.MIN_VALUE;
+
+    private final int mMask;
+    private final AtomicLong mNext = new AtomicLong();
+    private final AtomicLongArray mStamps;
+    private final AtomicLongArray mTimes;
+    private final AtomicLongArray mValues;
+    private final AtomicReferenceArray<String> mCategories;
+    private final AtomicReferenceArray<String> mMessages;
+    private final AtomicReferenceArray<String> mThreads;
+
+    /**
+     * @param capacity number of events kept, rounded up to a power of two
+     */
+    BreadcrumbRing(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mStamps = new AtomicLongArray(size);
+        mTimes = new AtomicLongArray(size);
+        mValues = new AtomicLongArray(size);
+        mCategories = new AtomicReferenceArray<String>(size);
+        mMessages = new AtomicReferenceArray<String>(size);
+        mThreads = new AtomicReferenceArray<String>(size);
+    }
+
+    void record(String category, String message, long value) {
+        long sequence = mNext.getAndIncrement();
+        int slot = (int) sequence & mMask;
+        mStamps.set(slot, -sequence - 1);
+        mTimes.lazySet(slot, System.currentTimeMillis());
+        mValues.lazySet(slot, value);
+        mCategories.lazySet(slot, category);
+        mMessages.lazySet(slot, message);
+        mThreads.lazySet(slot, Thread.currentThread().getName());
+        // publishes the writes above to readers that see the stamp
+        mStamps.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * @return the sequence number the next event will get, used to
+     * serialize only what happened before a given point.
+     */
+    long position() {
+        return mNext.get();
+    }
+
+    /**
+     * Appends the events recorded before {@code end}, oldest first, one per
+     * line with the time relative to {@code now}.
+     *
+     * @return the number of events written.
+     */
+    int appendTo(StringBuilder out, long end, long now) {
+        long start = Math.max(0, end - mMask - 1);
+        int count = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) sequence & mMask;
+            long stamp = mStamps.get(slot);
+            if (stamp != sequence + 1) {
+                // not written yet, or already overwritten
+                continue;
+            }
+            long time = mTimes.get(slot);
+            long value = mValues.get(slot);
+            String category = mCategories.get(slot);
+            String message = mMessages.get(slot);
+            String thread = mThreads.get(slot);
+            if (mStamps.get(slot) != stamp) {
+                continue;
+            }
+            out.append(time - now).append("ms [").append(thread).append("] ")
+                    .append(category).append(": ").append(message);
+            if (value != NO_VALUE) {
+                out.append(" (").append(value).append(')');
+            }
+            out.append('\n');
+            count++;
+        }
+        return count;
+    }
+}
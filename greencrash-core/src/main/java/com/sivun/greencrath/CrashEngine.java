@@ -0,0 +1,1022 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 崩溃报告引擎：指纹、限流、去重、存储和上报，不依赖 Android。
+ * <p>
+ * Turns throwables into stored and uploaded reports: it computes the
+ * fingerprint, applies rate limiting and deduplication, builds and writes
+ * the report file, and keeps the retention, the history index and the
+ * upload thread. What depends on where it runs (the report directory,
+ * the free space and the fields describing the device) comes from a
+ * {@link Platform}. On Android {@code CrashReporter} wraps an engine; a JVM
+ * service can use one directly with a {@link JvmPlatform}.
+ * <p>
+ * {@link #handleExceptionAsync(Throwable)} only computes the fingerprint
+ * and queues the throwable, so request threads never wait for the disk.
+ */
+public final class CrashEngine {
+
+    /**
+     * What the engine needs from the environment it runs in.
+     */
+    public interface Platform {
+        /**
+         * @return the directory reports are stored in. Called once, by the
+         * first thread that needs it.
+         */
+        File getReportDirectory();
+
+        /**
+         * @return the number of bytes available in {@code directory}.
+         */
+        long getAvailableBytes(File directory);
+
+        /**
+         * Adds the fields describing the device and the app. Called for
+         * every report, so anything that does not change should be
+         * collected once beforehand.
+         *
+         * @param time the time of the report
+         */
+        void collectMetadata(ReportFields fields, long time);
+
+        /**
+         * @return the id of this process, part of the report file names so
+         * processes sharing the directory never pick the same name.
+         */
+        int getProcessId();
+    }
+
+    /**
+     * Told about reports that could not be stored, and about the failures
+     * the engine recovered from.
+     */
+    public interface ErrorListener {
+        /**
+         * Called on the thread that tried to store the report.
+         *
+         * @param mode  the mode of the report
+         * @param cause what went wrong, an {@link IOException} for a full
+         *              or unwritable storage
+         */
+        void onReportNotStored(String mode, Exception cause);
+
+        /**
+         * Called for a failure no report was lost to, such as a failed
+         * upload attempt or an index that had to be rebuilt. May be called
+         * on any thread.
+         *
+         * @param what  what was being done
+         * @param cause what went wrong
+         */
+        void onError(String what, Throwable cause);
+    }
+
+    static final String REPORT_MODE = "report_mode";
+    static final String STACK_TRACE_KEY = "StackTrace";
+    static final String VERSION_CODE = "VersionCode";
+    static final String CUSTOM_DATA_KEY = "CustomData";
+    private static final String CRASH_FINGERPRINT_KEY = "CrashFingerprint";
+    private static final String CRASH_THREAD_KEY = "CrashThread";
+    private static final String DROPPED_NON_FATAL_KEY = "DroppedNonFatal";
+    private static final String SUPPRESSED_COUNT_KEY = "SuppressedCount";
+    private static final String BREADCRUMBS_KEY = "Breadcrumbs";
+    private static final String TRUNCATED_KEY = "Truncated";
+    private static final String RAW_TIME_KEY = "RawCrashTime";
+    // Counters of a deduplicated crash, repeats included
+    static final String OCCURRENCES_KEY = "Occurrences";
+    static final String FIRST_SEEN_KEY = "FirstSeen";
+    static final String LAST_SEEN_KEY = "LastSeen";
+    // The uploaded report a brief report repeats
+    static final String REPEAT_OF_KEY = "RepeatOf";
+
+    // Minimal records of fatal crashes, finished into reports elsewhere
+    static final String RAW_EXTENSION = ".raw";
+    private static final String RAW_LOCK_NAME = "raw";
+
+    // Mode of reports written without user interaction.
+    static final String SILENT_MODE = "silent";
+
+    private static final int DEFAULT_MAX_REPORT_FILES = 100;
+    private static final long DEFAULT_MAX_REPORT_BYTES = 5 * 1024 * 1024;
+    private static final long DEFAULT_MAX_REPORT_AGE = 30L * 24 * 60 * 60 * 1000;
+    // Below this much free space reports are truncated to the essentials
+    private static final long LOW_SPACE_BYTES = 2 * 1024 * 1024;
+    private static final int TRUNCATED_STACK_CHARS = 8 * 1024;
+    private static final int MAX_DEDUP_ENTRIES = 256;
+    private static final String DEDUP_INDEX_NAME = "dedup.idx";
+    private static final String FILE_TIME_PATTERN = "yyyy-MM-dd-HH-mm-ss";
+
+    private final Platform mPlatform;
+    // Resolved on first use, see getReportDirectory().
+    private volatile File mReportDir = null;
+    private boolean mDirCreated = false;
+    // SimpleDateFormat is not thread safe, use it synchronized
+    private final SimpleDateFormat mFileTimeFormat = new SimpleDateFormat(FILE_TIME_PATTERN, Locale.US);
+    // Tells apart the reports of this process written in the same second
+    private final AtomicInteger mFileSequence = new AtomicInteger();
+
+    private final CustomDataStore mCustomData = new CustomDataStore(CustomDataStore.DEFAULT_MAX_KEYS,
+            CustomDataStore.DEFAULT_MAX_VALUE_LENGTH);
+
+    // The last events recorded by the app, written into every report.
+    private final BreadcrumbRing mBreadcrumbs = new BreadcrumbRing(BreadcrumbRing.DEFAULT_CAPACITY);
+
+    // Per-fingerprint token buckets for non-fatal reports.
+    private final RateLimiter mRateLimiter = new RateLimiter(RateLimiter.DEFAULT_SLOTS,
+            RateLimiter.DEFAULT_BURST, RateLimiter.DEFAULT_REFILL_PER_SECOND);
+
+    private volatile StackTraceSerializer mStackTraceSerializer = new StackTraceSerializer(
+            StackTraceSerializer.DEFAULT_MAX_TRACE_CHARS, StackTraceSerializer.DEFAULT_MAX_REPORT_CHARS);
+
+    // Repeated crashes only update the dedup index instead of writing a report.
+    private volatile boolean mDeduplicate = true;
+    // Created once, read on every capture without the engine lock.
+    private volatile DedupIndex mDedupIndex = null;
+
+    private ReportRetention mRetention = null;
+    private CrashSummaryIndex mSummaryIndex = null;
+    private long mMaxReportBytes = DEFAULT_MAX_REPORT_BYTES;
+    private int mMaxReportFiles = DEFAULT_MAX_REPORT_FILES;
+    private long mMaxReportAge = DEFAULT_MAX_REPORT_AGE;
+
+    private ReportSender mReportSender = null;
+    private ReportUploader mUploader = null;
+    // Stack traces go to System.err while no listener is set.
+    private final ErrorReporter mErrors = new ErrorReporter();
+
+    // Created on first use of handleExceptionAsync.
+    private volatile NonFatalQueue mNonFatalQueue = null;
+
+    // Held while raw records are finished, so each is finished once.
+    private ProcessLock mRawLock = null;
+
+    public CrashEngine(Platform platform) {
+        mPlatform = platform;
+    }
+
+    /**
+     * Writes a report of {@code e} on the calling thread, unless rate
+     * limiting drops it, and schedules an upload.
+     *
+     * @param e the throwable, or null for an Exception("Report requested by
+     *          developer")
+     * @return false if the report was dropped.
+     */
+    public boolean handleException(Throwable e) {
+        if (e == null) {
+            e = new Exception("Report requested by developer");
+        }
+        long now = System.currentTimeMillis();
+        long fingerprint = CrashFingerprint.compute(e);
+        long suppressed = acquire(fingerprint, now);
+        if (suppressed == RateLimiter.DROP) {
+            return false;
+        }
+        store(e, fingerprint, SILENT_MODE, now, Thread.currentThread().getName(), suppressed, null);
+        sendReports();
+        return true;
+    }
+
+    /**
+     * Reports a caught exception without blocking the caller. The throwable,
+     * thread name and time are queued and a background thread writes the
+     * report. If the queue is full the exception is dropped; the next written
+     * report records how many were dropped. Rate limiting is checked on the
+     * calling thread before anything is queued.
+     *
+     * @return false if the exception was dropped.
+     */
+    public boolean handleExceptionAsync(Throwable e) {
+        if (e == null) {
+            e = new Exception("Report requested by developer");
+        }
+        long now = System.currentTimeMillis();
+        long fingerprint = CrashFingerprint.compute(e);
+        long suppressed = acquire(fingerprint, now);
+        if (suppressed == RateLimiter.DROP) {
+            return false;
+        }
+        NonFatalQueue queue = mNonFatalQueue;
+        if (queue == null) {
+            queue = createNonFatalQueue();
+        }
+        return queue.offer(e, now, fingerprint, suppressed, mBreadcrumbs.position());
+    }
+
+    /**
+     * @return the number of async non-fatal reports dropped because the
+     * queue was full.
+     */
+    public long getDroppedNonFatalCount() {
+        NonFatalQueue queue = mNonFatalQueue;
+        return queue != null ? queue.getDroppedCount() : 0;
+    }
+
+    /**
+     * @return the number of async non-fatal reports processed so far.
+     */
+    public long getWrittenNonFatalCount() {
+        NonFatalQueue queue = mNonFatalQueue;
+        return queue != null ? queue.getWrittenCount() : 0;
+    }
+
+    private synchronized NonFatalQueue createNonFatalQueue() {
+        if (mNonFatalQueue == null) {
+            mNonFatalQueue = new NonFatalQueue(NonFatalQueue.DEFAULT_CAPACITY, mErrors, new NonFatalQueue.BatchWriter() {
+                // drops are written into the next report that is not a repeat
+                private long mDroppedCarry;
+
+                @Override
+                public void writeBatch(List<NonFatalQueue.Pending> batch, long dropped) {
+                    mDroppedCarry += dropped;
+                    for (NonFatalQueue.Pending pending : batch) {
+                        long fingerprint = pending.fingerprint;
+                        if (findRepeat(fingerprint, pending.time, pending.suppressed) == null) {
+                            File file = writeReport(pending.throwable, fingerprint, SILENT_MODE, pending.time,
+                                    pending.threadName, mDroppedCarry, pending.suppressed, pending.breadcrumbEnd,
+                                    null);
+                            registerReport(fingerprint, pending.time, file, pending.suppressed);
+                            mDroppedCarry = 0;
+                        }
+                    }
+                    // one index write and one upload request per batch
+                    saveDedupIndex(true);
+                    sendReports();
+                }
+            });
+        }
+        return mNonFatalQueue;
+    }
+
+    /**
+     * @return {@link RateLimiter#DROP} if a non-fatal report of this crash
+     * must be dropped, otherwise how many were suppressed before it.
+     */
+    long acquire(long fingerprint, long time) {
+        return mRateLimiter.acquire(fingerprint, time);
+    }
+
+    /**
+     * Writes a report of {@code e}, or only counts it if an identical crash
+     * has a stored report.
+     *
+     * @param suppressed number of reports of this crash dropped by rate
+     *                   limiting since the last kept one
+     * @param extras     fields added to a full report, or null
+     * @return the report of this crash, or null if it could not be written.
+     */
+    File store(Throwable e, long fingerprint, String mode, long time, String threadName, long suppressed,
+               CrashReport extras) {
+        // A crash we have already stored only bumps its counter
+        File file = findRepeat(fingerprint, time, suppressed);
+        if (file == null) {
+            file = writeReport(e, fingerprint, mode, time, threadName, 0, suppressed, mBreadcrumbs.position(),
+                    extras);
+            registerReport(fingerprint, time, file, suppressed);
+        }
+        // a crashing process must not wait for its siblings
+        saveDedupIndex(false);
+        return file;
+    }
+
+    /**
+     * @return the stored report of an identical crash, whose counters were
+     * updated, or null if a full report has to be written.
+     */
+    private File findRepeat(long fingerprint, long time, long suppressed) {
+        return mDeduplicate ? getDedupIndex().recordRepeat(fingerprint, time, occurrences(suppressed)) : null;
+    }
+
+    private void registerReport(long fingerprint, long time, File file, long suppressed) {
+        if (mDeduplicate && file != null) {
+            getDedupIndex().put(fingerprint, time, file.getName(), occurrences(suppressed));
+        }
+    }
+
+    private static int occurrences(long suppressed) {
+        return (int) Math.min(Integer.MAX_VALUE, suppressed + 1);
+    }
+
+    /**
+     * @param wait false to leave the changes to the next save if another
+     *             process is saving the index
+     */
+    private void saveDedupIndex(boolean wait) {
+        if (mDeduplicate) {
+            if (wait) {
+                getDedupIndex().save();
+            } else {
+                getDedupIndex().trySave();
+            }
+        }
+    }
+
+    /**
+     * Collects the crash data and writes a full report file.
+     *
+     * @param dropped       number of non-fatal reports dropped by the async
+     *                      queue since the last written report
+     * @param suppressed    number of reports of this crash dropped by rate
+     *                      limiting since the last kept one
+     * @param breadcrumbEnd breadcrumbs recorded before this position are
+     *                      included
+     * @param extras        fields added to a full report, or null
+     */
+    private File writeReport(Throwable e, long fingerprint, String mode, long time, String threadName,
+                             long dropped, long suppressed, long breadcrumbEnd, CrashReport extras) {
+        CrashReport.Builder builder = newReport(mode, time);
+        DedupIndex.Entry known = mDeduplicate ? getDedupIndex().get(fingerprint) : null;
+        if (known != null && known.delivered) {
+            // the server has the full report, only the counters are news
+            putBrief(builder, e, fingerprint, threadName, dropped, suppressed, known.reportName);
+        } else {
+            putCrash(builder, e, fingerprint, time, threadName, dropped, suppressed, breadcrumbEnd);
+            for (int i = 0; extras != null && i < extras.getFieldCount(); i++) {
+                builder.put(extras.getKey(i), extras.getValue(i));
+            }
+        }
+        if (mDeduplicate) {
+            putOccurrences(builder, known, time, suppressed);
+        }
+
+        // Always write the report file
+        return save(builder.build());
+    }
+
+    /**
+     * Adds the counters {@link #registerReport} is about to record.
+     */
+    private static void putOccurrences(CrashReport.Builder builder, DedupIndex.Entry known, long time,
+                                       long suppressed) {
+        int count = occurrences(suppressed);
+        long firstSeen = time;
+        if (known != null) {
+            count += known.count;
+            firstSeen = known.firstSeen;
+        }
+        builder.put(OCCURRENCES_KEY, "" + count);
+        builder.put(FIRST_SEEN_KEY, "" + firstSeen);
+        builder.put(LAST_SEEN_KEY, "" + time);
+    }
+
+    /**
+     * Adds only what the history list shows of a crash whose full report
+     * was uploaded: the exception and its top frame.
+     */
+    private static void putBrief(CrashReport.Builder builder, Throwable e, long fingerprint, String threadName,
+                                 long dropped, long suppressed, String repeatOf) {
+        builder.put(CRASH_FINGERPRINT_KEY, CrashFingerprint.toHex(fingerprint));
+        builder.put(CRASH_THREAD_KEY, threadName);
+        builder.put(REPEAT_OF_KEY, repeatOf);
+        if (dropped > 0) {
+            builder.put(DROPPED_NON_FATAL_KEY, "" + dropped);
+        }
+        if (suppressed > 0) {
+            builder.put(SUPPRESSED_COUNT_KEY, "" + suppressed);
+        }
+        StackTraceElement[] stack = e.getStackTrace();
+        builder.put(STACK_TRACE_KEY, stack.length > 0 ? e + "\n\tat " + stack[0] + "\n" : e + "\n");
+    }
+
+    /**
+     * Writes the current counters into reports about to be uploaded, for
+     * the repeats counted since they were written.
+     */
+    private void refreshOccurrences(List<File> reports) {
+        if (!mDeduplicate) {
+            return;
+        }
+        DedupIndex index = getDedupIndex();
+        boolean changed = false;
+        for (File report : reports) {
+            DedupIndex.Entry entry = index.getByReport(report.getName());
+            if (entry == null || entry.count == entry.writtenCount) {
+                continue;
+            }
+            try {
+                CrashReportReader reader = CrashReportReader.open(report);
+                CrashReport.Builder builder = new CrashReport.Builder(reader.getValue(REPORT_MODE), entry.lastSeen);
+                for (int i = 0; i < reader.getFieldCount(); i++) {
+                    builder.put(reader.getKey(i), reader.getValue(i));
+                }
+                builder.put(OCCURRENCES_KEY, "" + entry.count);
+                builder.put(FIRST_SEEN_KEY, "" + entry.firstSeen);
+                builder.put(LAST_SEEN_KEY, "" + entry.lastSeen);
+                CrashReport updated = builder.build();
+                CrashReportWriter writer = new CrashReportWriter(updated.estimateSize());
+                updated.writeTo(writer);
+                if (writeAtomically(writer, report)) {
+                    index.setWrittenCount(report.getName(), entry.count);
+                    changed = true;
+                }
+            } catch (IOException e) {
+                mErrors.report("update counters of " + report.getName(), e);
+            }
+        }
+        if (changed) {
+            index.save();
+        }
+    }
+
+    /**
+     * Keeps the crashes of uploaded reports deduplicated.
+     */
+    private void markDelivered(List<File> reports) {
+        if (!mDeduplicate) {
+            return;
+        }
+        DedupIndex index = getDedupIndex();
+        for (File report : reports) {
+            index.setDelivered(report.getName());
+        }
+        index.save();
+    }
+
+    /**
+     * Adds what only the crashing process knows: the trace, the thread, the
+     * custom data and the breadcrumbs.
+     */
+    private void putCrash(CrashReport.Builder builder, Throwable e, long fingerprint, long time,
+                          String threadName, long dropped, long suppressed, long breadcrumbEnd) {
+        // Custom data is streamed into a single field when the report is written
+        builder.put(CUSTOM_DATA_KEY, mCustomData);
+        builder.put(CRASH_FINGERPRINT_KEY, CrashFingerprint.toHex(fingerprint));
+        builder.put(CRASH_THREAD_KEY, threadName);
+        if (dropped > 0) {
+            builder.put(DROPPED_NON_FATAL_KEY, "" + dropped);
+        }
+        if (suppressed > 0) {
+            builder.put(SUPPRESSED_COUNT_KEY, "" + suppressed);
+        }
+        StringBuilder breadcrumbs = new StringBuilder(64 * BreadcrumbRing.DEFAULT_CAPACITY);
+        if (mBreadcrumbs.appendTo(breadcrumbs, breadcrumbEnd, time) > 0) {
+            builder.put(BREADCRUMBS_KEY, breadcrumbs.toString());
+        }
+
+        // The cause chain, including the actual exception of a failed
+        // AsyncTask, is part of the serialized trace
+        builder.put(STACK_TRACE_KEY, mStackTraceSerializer.serialize(e));
+    }
+
+    /**
+     * Starts the minimal record of a fatal crash, to be finished into a
+     * report by {@link #completeRawRecords(boolean)}, possibly in another
+     * process. It holds what dies with the crashing process, but none of
+     * the platform metadata, and is not deduplicated.
+     */
+    CrashReport.Builder newRawRecord(Throwable e, long fingerprint, String mode, long time, String threadName) {
+        CrashReport.Builder builder = new CrashReport.Builder(mode, time);
+        builder.put(REPORT_MODE, mode);
+        builder.put(RAW_TIME_KEY, "" + time);
+        putCrash(builder, e, fingerprint, time, threadName, 0, 0, mBreadcrumbs.position());
+        return builder;
+    }
+
+    /**
+     * Writes a raw record, which the retention and the history do not see.
+     *
+     * @return the file, or null if it could not be written.
+     */
+    File saveRawRecord(CrashReport record) {
+        try {
+            File file = newFile(record.mode, record.time, RAW_EXTENSION);
+            CrashReportWriter writer = new CrashReportWriter(record.estimateSize());
+            record.writeTo(writer);
+            return writeAtomically(writer, file) ? file : null;
+        } catch (Exception e) {
+            mErrors.reportNotStored(record.mode, e);
+        }
+        return null;
+    }
+
+    /**
+     * Finishes the raw records left by crashed processes into reports: adds
+     * the platform metadata, deduplicates and stores them, then deletes the
+     * records. A record whose report cannot be written is kept for the next
+     * call. Each record is finished by one process only.
+     *
+     * @param wait false to return at once if another process is finishing
+     *             records
+     * @return the stored reports, or the earlier reports the crashes were
+     * repeats of, each once.
+     */
+    List<File> completeRawRecords(boolean wait) {
+        List<File> reports = new ArrayList<File>();
+        File dir = getReportDirectory();
+        File[] records = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(RAW_EXTENSION);
+            }
+        });
+        if (records == null || records.length == 0) {
+            return reports;
+        }
+        ProcessLock lock = getRawLock();
+        if (wait) {
+            lock.lock();
+        } else if (!lock.tryLock()) {
+            return reports;
+        }
+        try {
+            for (File record : records) {
+                File report = completeRawRecord(record);
+                if (report != null && !reports.contains(report)) {
+                    reports.add(report);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return reports;
+    }
+
+    private File completeRawRecord(File record) {
+        CrashReportReader reader;
+        try {
+            reader = CrashReportReader.open(record);
+        } catch (FileNotFoundException e) {
+            // finished by another process meanwhile
+            return null;
+        } catch (IOException e) {
+            mErrors.report("read " + record.getName(), e);
+            record.delete();
+            return null;
+        }
+        String mode = reader.getValue(REPORT_MODE);
+        long time;
+        long fingerprint;
+        try {
+            time = Long.parseLong(reader.getValue(RAW_TIME_KEY));
+            fingerprint = CrashFingerprint.fromHex(reader.getValue(CRASH_FINGERPRINT_KEY));
+        } catch (RuntimeException e) {
+            mErrors.report("read " + record.getName(), e);
+            record.delete();
+            return null;
+        }
+        File file = findRepeat(fingerprint, time, 0);
+        if (file == null) {
+            CrashReport.Builder builder = newReport(mode, time);
+            for (int i = 0; i < reader.getFieldCount(); i++) {
+                String key = reader.getKey(i);
+                if (!RAW_TIME_KEY.equals(key)) {
+                    builder.put(key, reader.getValue(i));
+                }
+            }
+            if (mDeduplicate) {
+                putOccurrences(builder, getDedupIndex().get(fingerprint), time, 0);
+            }
+            file = save(builder.build());
+            if (file == null) {
+                return null;
+            }
+            registerReport(fingerprint, time, file, 0);
+        }
+        saveDedupIndex(true);
+        record.delete();
+        return file;
+    }
+
+    /**
+     * @return a report holding the mode and the platform fields.
+     */
+    CrashReport.Builder newReport(String mode, long time) {
+        CrashReport.Builder builder = new CrashReport.Builder(mode, time);
+        builder.put(REPORT_MODE, mode);
+        try {
+            mPlatform.collectMetadata(builder, time);
+        } catch (Exception e) {
+            mErrors.report("collect metadata", e);
+        }
+        return builder;
+    }
+
+    CustomDataStore getCustomData() {
+        return mCustomData;
+    }
+
+    /**
+     * Writes a report file. The report is encoded by
+     * {@link CrashReportWriter} and written with a single call to a
+     * temporary file, which is then renamed, so other processes listing the
+     * directory never see a partial report. The name holds the process id
+     * and a sequence number, so no other writer can take it. When the
+     * storage is nearly full only a truncated report is written.
+     *
+     * @return the file, or null if it could not be written.
+     */
+    File save(CrashReport report) {
+        try {
+            String mode = report.mode;
+            File dir = getReportDirectory();
+            File file = newFile(mode, report.time, CrashReportWriter.FILE_EXTENSION);
+            long free = mPlatform.getAvailableBytes(dir);
+            if (free < LOW_SPACE_BYTES) {
+                report = truncateReport(report);
+            }
+            CrashReportWriter writer = new CrashReportWriter(report.estimateSize());
+            report.writeTo(writer);
+            if (writer.size() >= free) {
+                mErrors.reportNotStored(mode, new IOException("No space left for crash report: "
+                        + writer.size() + " bytes needed, " + free + " free"));
+                return null;
+            }
+            if (!writeAtomically(writer, file)) {
+                mErrors.reportNotStored(mode, new IOException("Could not store crash report " + file));
+                return null;
+            }
+            getRetention().add(file, report.time);
+            getSummaryIndex().add(CrashSummary.fromReport(file, report.time, mode,
+                    report.get(VERSION_CODE), report.get(STACK_TRACE_KEY)));
+            return file;
+        } catch (Exception e) {
+            mErrors.reportNotStored(report.mode, e);
+        }
+        return null;
+    }
+
+    /**
+     * @return an unused file named after the mode, the time and this
+     * process.
+     */
+    private File newFile(String mode, long time, String extension) {
+        String timestamp;
+        synchronized (mFileTimeFormat) {
+            timestamp = mFileTimeFormat.format(time);
+        }
+        String fileName = (mode == null || mode.length() == 0 ? "stack" : mode) + "-" + timestamp
+                + "-" + mPlatform.getProcessId() + "-";
+        File dir = getReportDirectory();
+        File file;
+        do {
+            // only left by an earlier process with the same id
+            file = new File(dir, fileName + mFileSequence.incrementAndGet() + extension);
+        } while (file.exists());
+        return file;
+    }
+
+    /**
+     * Writes to a temporary file renamed to {@code file}.
+     *
+     * @return false if the rename failed.
+     */
+    private static boolean writeAtomically(CrashReportWriter writer, File file) throws IOException {
+        File tmp = new File(file.getPath() + ReportRetention.TEMP_EXTENSION);
+        try {
+            writer.writeTo(tmp);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Keeps only the head of the stack trace and drops the custom data.
+     */
+    private static CrashReport truncateReport(CrashReport report) {
+        CrashReport.Builder builder = report.buildUpon();
+        String stack = builder.get(STACK_TRACE_KEY);
+        if (stack != null && stack.length() > TRUNCATED_STACK_CHARS) {
+            builder.put(STACK_TRACE_KEY, stack.substring(0, TRUNCATED_STACK_CHARS));
+        }
+        builder.remove(CUSTOM_DATA_KEY);
+        builder.put(TRUNCATED_KEY, "low storage");
+        return builder.build();
+    }
+
+    /**
+     * Resolves and creates the report directory on first use. Threads
+     * racing here get the same directory, so no lock is taken on the crash
+     * path.
+     */
+    File getReportDirectory() {
+        File dir = mReportDir;
+        if (dir == null) {
+            dir = mPlatform.getReportDirectory();
+            mReportDir = dir;
+        }
+        if (!mDirCreated) {
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            mDirCreated = dir.isDirectory();
+        }
+        return dir;
+    }
+
+    private DedupIndex getDedupIndex() {
+        DedupIndex index = mDedupIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = mDedupIndex;
+                if (index == null) {
+                    index = new DedupIndex(new File(getReportDirectory(), DEDUP_INDEX_NAME), MAX_DEDUP_ENTRIES,
+                            mErrors);
+                    mDedupIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    private synchronized ProcessLock getRawLock() {
+        if (mRawLock == null) {
+            mRawLock = ProcessLock.forFile(new File(getReportDirectory(), RAW_LOCK_NAME), mErrors);
+        }
+        return mRawLock;
+    }
+
+    private synchronized ReportRetention getRetention() {
+        if (mRetention == null) {
+            mRetention = new ReportRetention(getReportDirectory(),
+                    mMaxReportBytes, mMaxReportFiles, mMaxReportAge, mErrors);
+            final CrashSummaryIndex summaryIndex = getSummaryIndex();
+            mRetention.setRemovalListener(new ReportRetention.RemovalListener() {
+                @Override
+                public void onReportRemoved(String name) {
+                    summaryIndex.remove(name);
+                }
+            });
+        }
+        return mRetention;
+    }
+
+    private synchronized CrashSummaryIndex getSummaryIndex() {
+        if (mSummaryIndex == null) {
+            mSummaryIndex = new CrashSummaryIndex(getReportDirectory(), mErrors);
+        }
+        return mSummaryIndex;
+    }
+
+    /**
+     * @return the summary index, read and reconciled with the stored reports.
+     */
+    private CrashSummaryIndex loadSummaryIndex() {
+        CrashSummaryIndex index = getSummaryIndex();
+        if (!index.refresh()) {
+            // list outside the index lock, the retention calls into the index
+            index.load(getRetention().list());
+        }
+        return index;
+    }
+
+    /**
+     * Looks up stored reports, newest first. Reads from disk the first time.
+     *
+     * @param versionCode   only reports of this version code, or -1 for all
+     * @param exceptionType only exception types containing this, ignoring
+     *                      case, or null for all
+     * @param text          words the exception type, message or top frame
+     *                      must contain (as word prefixes), or null
+     * @param offset        number of matching reports to skip
+     * @param limit         maximum number of reports returned
+     */
+    public List<CrashSummary> queryCrashHistory(int versionCode, String exceptionType, String text,
+                                                int offset, int limit) {
+        List<CrashSummary> page = null;
+        // another process may rewrite the index between loading and reading it
+        for (int attempt = 0; page == null && attempt < 3; attempt++) {
+            page = loadSummaryIndex().query(versionCode, exceptionType, text, offset, limit);
+        }
+        return page != null ? page : new ArrayList<CrashSummary>();
+    }
+
+    /**
+     * @return the number of stored reports matching, see
+     * {@link #queryCrashHistory(int, String, String, int, int)}.
+     */
+    public int countCrashHistory(int versionCode, String exceptionType, String text) {
+        return loadSummaryIndex().count(versionCode, exceptionType, text);
+    }
+
+    /**
+     * @return the names of the stored report files, oldest first.
+     */
+    String[] getReportFiles() {
+        return getRetention().list();
+    }
+
+    /**
+     * Records the reports other processes of the app stored but could not
+     * register, for example because they were killed right after writing,
+     * and deletes their leftover temporary files. Also saves the repeats
+     * counted while the dedup index was locked. Lists the report
+     * directory, so call it once at startup, off the main thread.
+     */
+    public void reconcileReports() {
+        getRetention().reconcile();
+        saveDedupIndex(true);
+    }
+
+    /**
+     * Schedules an upload of all stored reports on the upload thread. Does
+     * nothing until a {@link ReportSender} is set.
+     */
+    public void sendReports() {
+        ReportUploader uploader = getUploader();
+        if (uploader != null) {
+            uploader.schedule();
+        }
+    }
+
+    /**
+     * Sets who is told about reports that could not be stored and other
+     * failures. Pass null to print them to System.err.
+     */
+    public void setErrorListener(ErrorListener listener) {
+        mErrors.setListener(listener);
+    }
+
+    /**
+     * @return where the helpers of this engine send their failures.
+     */
+    ErrorReporter getErrorReporter() {
+        return mErrors;
+    }
+
+    /**
+     * Sets where reports are uploaded to, for example a
+     * {@link HttpReportSender}. Reports left from earlier runs are sent right
+     * away. Pass null to stop uploading.
+     */
+    public void setReportSender(ReportSender sender) {
+        synchronized (this) {
+            if (mUploader != null) {
+                mUploader.shutdown();
+                mUploader = null;
+            }
+            mReportSender = sender;
+        }
+        sendReports();
+    }
+
+    private synchronized ReportUploader getUploader() {
+        if (mUploader == null && mReportSender != null) {
+            mUploader = new ReportUploader(getRetention(), mReportSender, mErrors, new ReportUploader.Listener() {
+                @Override
+                public void beforeSend(List<File> reports) {
+                    refreshOccurrences(reports);
+                }
+
+                @Override
+                public void onDelivered(List<File> reports) {
+                    markDelivered(reports);
+                }
+            });
+        }
+        return mUploader;
+    }
+
+    /**
+     * Adds a custom value to every report, such as a user or session id or
+     * an experiment group. Safe to call from any thread; updating a key
+     * that exists does not allocate. At most
+     * {@value CustomDataStore#DEFAULT_MAX_KEYS} keys are kept and values are
+     * cut to {@value CustomDataStore#DEFAULT_MAX_VALUE_LENGTH} chars. Reports
+     * queued with {@link #handleExceptionAsync} get the values current when
+     * they are written.
+     *
+     * @return false if the key is new and the limit of keys is reached.
+     */
+    public boolean putCustomData(String key, String value) {
+        return key != null && mCustomData.putString(key, value);
+    }
+
+    public boolean putCustomData(String key, long value) {
+        return key != null && mCustomData.putLong(key, value);
+    }
+
+    public boolean putCustomData(String key, boolean value) {
+        return key != null && mCustomData.putBoolean(key, value);
+    }
+
+    public void removeCustomData(String key) {
+        if (key != null) {
+            mCustomData.remove(key);
+        }
+    }
+
+    public void clearCustomData() {
+        mCustomData.clear();
+    }
+
+    /**
+     * Records what the app is doing; the last
+     * {@value BreadcrumbRing#DEFAULT_CAPACITY} events go into every report.
+     * Safe to call from any thread, it does not lock or allocate. Pass
+     * constant strings, they are kept by reference.
+     *
+     * @param category for example "nav", "http" or "db"
+     * @param message  what happened
+     */
+    public void leaveBreadcrumb(String category, String message) {
+        mBreadcrumbs.record(category, message, BreadcrumbRing.NO_VALUE);
+    }
+
+    /**
+     * Like {@link #leaveBreadcrumb(String, String)}, with a number such as a
+     * status code or a duration.
+     */
+    public void leaveBreadcrumb(String category, String message, long value) {
+        mBreadcrumbs.record(category, message, value);
+    }
+
+    /**
+     * Caps the size of the stack trace stored in a report. Frames past the
+     * limits are omitted and the trace is marked as truncated.
+     *
+     * @param maxTraceChars  limit for one exception of the cause chain
+     * @param maxReportChars limit for the whole stack trace field
+     */
+    public void setStackTraceLimits(int maxTraceChars, int maxReportChars) {
+        mStackTraceSerializer = new StackTraceSerializer(maxTraceChars, maxReportChars);
+    }
+
+    /**
+     * Limits how often non-fatal reports of the same crash are written.
+     * Reports over the limit are counted, and the next kept report of that
+     * crash says how many were suppressed. Fatal crashes are never limited.
+     *
+     * @param burst           reports of one crash allowed back to back
+     * @param refillPerSecond sustained reports of one crash per second, 0
+     *                        for none
+     * @throws IllegalArgumentException if burst or rate is negative or
+     *                                  above a million
+     */
+    public void setRateLimit(int burst, double refillPerSecond) {
+        mRateLimiter.setRate(burst, refillPerSecond);
+    }
+
+    /**
+     * Keeps only a share of the non-fatal reports of each crash, for
+     * example 0.1 for every tenth. The first report of a crash is always
+     * kept.
+     */
+    public void setSampleRate(double ratio) {
+        mRateLimiter.setSampleRate(ratio);
+    }
+
+    /**
+     * Enables or disables crash deduplication. When enabled (the default) a
+     * crash whose fingerprint already has a stored report only updates the
+     * occurrence counters in the dedup index.
+     */
+    public void setDeduplicationEnabled(boolean enabled) {
+        mDeduplicate = enabled;
+    }
+
+    /**
+     * Limits the space used by stored reports. The oldest reports are deleted
+     * once any limit is exceeded.
+     *
+     * @param maxBytes     maximum total size of all reports
+     * @param maxFiles     maximum number of reports
+     * @param maxAgeMillis maximum report age, 0 for no limit
+     */
+    public synchronized void setRetentionPolicy(long maxBytes, int maxFiles, long maxAgeMillis) {
+        mMaxReportBytes = maxBytes;
+        mMaxReportFiles = maxFiles;
+        mMaxReportAge = maxAgeMillis;
+        if (mRetention != null) {
+            mRetention.setLimits(maxBytes, maxFiles, maxAgeMillis);
+        }
+    }
+
+    /**
+     * Delete all report files stored.
+     */
+    public void deletePendingReports() {
+        getRetention().removeAll();
+    }
+}
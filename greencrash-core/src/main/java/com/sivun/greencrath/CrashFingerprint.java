@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+/**
+ * 崩溃指纹：同一个崩溃在不同次发生时得到相同的值。
+ * <p>
+ * The fingerprint is a 64 bit FNV-1a hash over the exception types of the
+ * cause chain and the class/method names of their frames. Line numbers,
+ * file names and messages are ignored. Names generated by the compiler
+ * (lambda classes, {@code lambda$foo$0} methods, {@code access$000}
+ * accessors and numbered anonymous classes) are normalized, so a rebuild
+ * that only renumbers them keeps the same fingerprint.
+ */
+final class CrashFingerprint {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Deep recursion produces traces of varying depth; only the top frames count.
+    static final int MAX_FRAMES = 64;
+    static final int MAX_CAUSES = 16;
+
+    private CrashFingerprint() {
+    }
+
+    static long compute(Throwable e) {
+        long hash = FNV_OFFSET;
+        Throwable current = e;
+        for (int depth = 0; current != null && depth < MAX_CAUSES; depth++) {
+            hash = hashName(hash, current.getClass().getName(), false);
+            hash = mix(hash, '|');
+            StackTraceElement[] frames = current.getStackTrace();
+            int count = Math.min(frames.length, MAX_FRAMES);
+            for (int i = 0; i < count; i++) {
+                hash = hashFrame(hash, frames[i].getClassName(), frames[i].getMethodName());
+            }
+            Throwable cause = current.getCause();
+            current = cause == current ? null : cause;
+        }
+        return hash;
+    }
+
+    /**
+     * Computes the fingerprint of a stack trace in its printed form, for
+     * reports written without one. Suppressed exceptions are skipped like
+     * in {@link #compute(Throwable)}, but frames printed as
+     * {@code ... n more} are unknown here, so the result only matches that
+     * of other printed traces.
+     */
+    static long compute(String stackTrace) {
+        long hash = FNV_OFFSET;
+        int causes = 0;
+        int frames = 0;
+        boolean suppressed = false;
+        int start = 0;
+        if (stackTrace.startsWith("Thread: ")) {
+            // journal records start with the thread name
+            start = stackTrace.indexOf('\n') + 1;
+        }
+        while (start < stackTrace.length()) {
+            int end = stackTrace.indexOf('\n', start);
+            if (end < 0) {
+                end = stackTrace.length();
+            }
+            int text = start;
+            while (text < end && (stackTrace.charAt(text) == '\t' || stackTrace.charAt(text) == ' ')) {
+                text++;
+            }
+            if (stackTrace.startsWith("at ", text)) {
+                int open = stackTrace.indexOf('(', text);
+                int dot = open < 0 ? -1 : stackTrace.lastIndexOf('.', open);
+                if (!suppressed && dot > text && frames < MAX_FRAMES) {
+                    hash = hashFrame(hash, stackTrace.substring(text + 3, dot), stackTrace.substring(dot + 1, open));
+                    frames++;
+                }
+            } else if (stackTrace.startsWith("Suppressed: ", text)) {
+                suppressed = true;
+            } else if (!stackTrace.startsWith("...", text) && text < end
+                    && (causes == 0 || text == start && stackTrace.startsWith("Caused by: ", text))) {
+                if (causes == MAX_CAUSES) {
+                    break;
+                }
+                if (causes > 0) {
+                    text += "Caused by: ".length();
+                }
+                int colon = stackTrace.indexOf(':', text);
+                hash = hashName(hash, stackTrace.substring(text, colon >= 0 && colon < end ? colon : end).trim(), false);
+                hash = mix(hash, '|');
+                causes++;
+                frames = 0;
+                suppressed = false;
+            }
+            start = end + 1;
+        }
+        return hash;
+    }
+
+    /**
+     * Adds one frame to the hash, skipping synthetic accessor frames.
+     */
+    static long hashFrame(long hash, String className, String methodName) {
+        if (methodName.startsWith("access$")) {
+            return hash;
+        }
+        hash = hashName(hash, className, false);
+        hash = mix(hash, '.');
+        hash = hashName(hash, methodName, true);
+        return mix(hash, ';');
+    }
+
+    /**
+     * Hashes a class or method name with generated parts removed:
+     * <ul>
+     * <li>{@code Foo$$Lambda$12/0x1234}, {@code Foo-$$Lambda$1} and
+     * {@code Foo$$ExternalSyntheticLambda0} become {@code Foo}</li>
+     * <li>{@code Foo$1$2} becomes {@code Foo$$}</li>
+     * <li>{@code lambda$onCreate$0} becomes {@code lambda$onCreate}</li>
+     * </ul>
+     */
+    private static long hashName(long hash, String name, boolean method) {
+        int end = name.length();
+        if (method) {
+            if (name.startsWith("lambda$")) {
+                int last = name.lastIndexOf('$');
+                if (last > 6 && isDigits(name, last + 1, end)) {
+                    end = last;
+                }
+            }
+        } else {
+            int lambda = name.indexOf("$$");
+            if (lambda > 0 && name.charAt(lambda - 1) == '-') {
+                // Foo-$$Lambda$1 (desugared lambdas)
+                lambda--;
+            }
+            if (lambda > 0) {
+                end = lambda;
+            }
+        }
+        int i = 0;
+        while (i < end) {
+            char c = name.charAt(i);
+            hash = mix(hash, c);
+            i++;
+            if (c == '$' && !method) {
+                // drop anonymous class numbers
+                while (i < end && name.charAt(i) >= '0' && name.charAt(i) <= '9') {
+                    i++;
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static boolean isDigits(String s, int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long mix(long hash, char c) {
+        hash ^= c;
+        return hash * FNV_PRIME;
+    }
+
+    /**
+     * @return the fingerprint as 16 hex digits.
+     */
+    static String toHex(long fingerprint) {
+        String hex = Long.toHexString(fingerprint);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * @return the fingerprint written by {@link #toHex(long)}.
+     * @throws NumberFormatException if {@code hex} is not one.
+     */
+    static long fromHex(String hex) {
+        if (hex == null || hex.length() != 16) {
+            throw new NumberFormatException("not a fingerprint: " + hex);
+        }
+        return Long.parseLong(hex.substring(0, 8), 16) << 32 | Long.parseLong(hex.substring(8), 16);
+    }
+}
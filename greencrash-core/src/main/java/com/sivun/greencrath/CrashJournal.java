@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 预分配的内存映射崩溃日志。
+ * <p>
+ * The journal file is mapped once when the reporter is installed. On a
+ * fatal crash the thread name and the throwable chain are written straight
+ * into the mapping as UTF-16 chars, without building strings, so a record
+ * can be written even when the heap is exhausted. Pages of a shared mapping
+ * belong to the kernel, so the record survives the process being killed.
+ * The only allocation left is the frame array returned by
+ * {@link Throwable#getStackTrace()}.
+ * <p>
+ * A small reserve array is held as well; releasing it on
+ * {@link OutOfMemoryError}, before the record is written, leaves room for
+ * the frame arrays and the regular report path.
+ * <p>
+ * The length is updated after every line, so a record cut short by a
+ * second fault or a kill is still readable up to its last full line.
+ * <p>
+ * Layout: {@code int magic | int state | long time | int charCount | chars}.
+ */
+final class CrashJournal {
+
+    static final int DEFAULT_SIZE = 64 * 1024;
+    static final int RESERVE_SIZE = 128 * 1024;
+
+    private static final int MAGIC = 0x47434a31; // "GCJ1"
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_WRITING = 1;
+    private static final int STATE_COMMITTED = 2;
+
+    private static final int OFFSET_STATE = 4;
+    private static final int OFFSET_TIME = 8;
+    private static final int OFFSET_LENGTH = 16;
+    private static final int OFFSET_DATA = 20;
+
+    private static final int MAX_CAUSES = 8;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private byte[] mReserve;
+    private int mPosition;
+
+    private CrashJournal(MappedByteBuffer buffer) {
+        mBuffer = buffer;
+        mCapacity = buffer.capacity();
+        mReserve = new byte[RESERVE_SIZE];
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(OFFSET_STATE, STATE_EMPTY);
+        }
+    }
+
+    /**
+     * Maps the journal file, creating it with {@code size} bytes if needed.
+     */
+    static CrashJournal open(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != size) {
+                raf.setLength(size);
+            }
+            return new CrashJournal(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Drops the reserve so the heap has room for the regular report path.
+     */
+    void releaseReserve() {
+        mReserve = null;
+    }
+
+    /**
+     * Writes a fatal crash record. Must not allocate, so it only uses
+     * primitive writes into the mapping.
+     */
+    synchronized void write(Thread thread, Throwable e, long time) {
+        MappedByteBuffer buffer = mBuffer;
+        buffer.putInt(OFFSET_STATE, STATE_WRITING);
+        buffer.putLong(OFFSET_TIME, time);
+        buffer.putInt(OFFSET_LENGTH, 0);
+        mPosition = OFFSET_DATA;
+        if (thread != null) {
+            put("Thread: ");
+            put(thread.getName());
+            endLine();
+        }
+        Throwable current = e;
+        for (int depth = 0; current != null && depth < MAX_CAUSES; depth++) {
+            if (depth > 0) {
+                put("Caused by: ");
+            }
+            put(current.getClass().getName());
+            String message = current.getMessage();
+            if (message != null) {
+                put(": ");
+                put(message);
+            }
+            endLine();
+            StackTraceElement[] frames = current.getStackTrace();
+            for (int i = 0; i < frames.length && mPosition < mCapacity; i++) {
+                StackTraceElement frame = frames[i];
+                put("\tat ");
+                put(frame.getClassName());
+                put('.');
+                put(frame.getMethodName());
+                put('(');
+                String file = frame.getFileName();
+                put(file != null ? file : "Unknown Source");
+                if (frame.getLineNumber() >= 0) {
+                    put(':');
+                    putDecimal(frame.getLineNumber());
+                }
+                put(')');
+                endLine();
+            }
+            Throwable cause = current.getCause();
+            current = cause == current ? null : cause;
+        }
+        buffer.putInt(OFFSET_STATE, STATE_COMMITTED);
+    }
+
+    /**
+     * @return true if a record from an earlier run is waiting to be turned
+     * into a report, complete or not.
+     */
+    synchronized boolean hasRecord() {
+        int state = mBuffer.getInt(OFFSET_STATE);
+        return state == STATE_COMMITTED || (state == STATE_WRITING && mBuffer.getInt(OFFSET_LENGTH) > 0);
+    }
+
+    /**
+     * @return false if the writer died before finishing the record.
+     */
+    synchronized boolean isRecordComplete() {
+        return mBuffer.getInt(OFFSET_STATE) == STATE_COMMITTED;
+    }
+
+    synchronized long getRecordTime() {
+        return mBuffer.getLong(OFFSET_TIME);
+    }
+
+    /**
+     * @return the text of the record, up to its last full line.
+     */
+    synchronized String readRecord() {
+        int length = mBuffer.getInt(OFFSET_LENGTH);
+        length = Math.max(0, Math.min(length, (mCapacity - OFFSET_DATA) / 2));
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = mBuffer.getChar(OFFSET_DATA + i * 2);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Marks the record as consumed.
+     */
+    synchronized void clear() {
+        mBuffer.putInt(OFFSET_STATE, STATE_EMPTY);
+    }
+
+    private void put(String s) {
+        int length = s.length();
+        for (int i = 0; i < length && mPosition + 2 <= mCapacity; i++) {
+            mBuffer.putChar(mPosition, s.charAt(i));
+            mPosition += 2;
+        }
+    }
+
+    private void put(char c) {
+        if (mPosition + 2 <= mCapacity) {
+            mBuffer.putChar(mPosition, c);
+            mPosition += 2;
+        }
+    }
+
+    private void endLine() {
+        put('\n');
+        mBuffer.putInt(OFFSET_LENGTH, (mPosition - OFFSET_DATA) / 2);
+    }
+
+    private void putDecimal(int value) {
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            put((char) ('0' + value / divisor % 10));
+            divisor /= 10;
+        }
+    }
+}
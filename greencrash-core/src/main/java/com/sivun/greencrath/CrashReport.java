@@ -0,0 +1,205 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.util.ArrayList;
+
+/**
+ * 一次崩溃采集得到的报告，创建后不可修改。
+ * <p>
+ * Every capture builds its own report through a {@link Builder}, so threads
+ * reporting at the same time never share mutable state. Fields keep the
+ * order in which they were added.
+ * <p>
+ * A field can also be a {@link Section}, whose value is streamed into the
+ * writer when the report is encoded instead of being built as a string.
+ */
+final class CrashReport {
+
+    /**
+     * A field value written straight into the report.
+     */
+    interface Section {
+        /**
+         * Appends the value to the field the writer has open.
+         */
+        void writeTo(CrashReportWriter writer);
+
+        /**
+         * @return roughly how many chars {@link #writeTo} appends.
+         */
+        int estimateSize();
+    }
+
+    final String mode;
+    final long time;
+    private final String[] mKeys;
+    // String or Section
+    private final Object[] mValues;
+
+    private CrashReport(Builder builder) {
+        mode = builder.mMode;
+        time = builder.mTime;
+        int count = builder.mKeys.size();
+        mKeys = builder.mKeys.toArray(new String[count]);
+        mValues = builder.mValues.toArray(new Object[count]);
+    }
+
+    int getFieldCount() {
+        return mKeys.length;
+    }
+
+    String getKey(int index) {
+        return mKeys[index];
+    }
+
+    /**
+     * @return the value, or null for a {@link Section}.
+     */
+    String getValue(int index) {
+        Object value = mValues[index];
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * @return the value of {@code key}, or null if it is missing or a
+     * {@link Section}.
+     */
+    String get(String key) {
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i].equals(key)) {
+                return getValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a builder holding a copy of this report's fields.
+     */
+    Builder buildUpon() {
+        Builder builder = new Builder(mode, time);
+        for (int i = 0; i < mKeys.length; i++) {
+            builder.set(mKeys[i], mValues[i]);
+        }
+        return builder;
+    }
+
+    /**
+     * Encodes all fields. A field whose key is too long to encode is left
+     * out rather than losing the report.
+     */
+    void writeTo(CrashReportWriter writer) {
+        for (int i = 0; i < mKeys.length; i++) {
+            Object value = mValues[i];
+            if (!CrashReportWriter.isValidKey(mKeys[i])) {
+                continue;
+            }
+            if (value instanceof Section) {
+                writer.beginField(mKeys[i]);
+                ((Section) value).writeTo(writer);
+                writer.endField();
+            } else {
+                writer.putField(mKeys[i], (String) value);
+            }
+        }
+    }
+
+    /**
+     * @return an upper estimate of the encoded size, used to pre-size the
+     * write buffer.
+     */
+    int estimateSize() {
+        int size = CrashReportWriter.HEADER_SIZE;
+        for (int i = 0; i < mKeys.length; i++) {
+            Object value = mValues[i];
+            size += 6 + mKeys[i].length() + (value instanceof Section
+                    ? ((Section) value).estimateSize() : ((String) value).length());
+        }
+        // leave room for non ASCII characters
+        return size + size / 4;
+    }
+
+    static final class Builder implements ReportFields {
+        private final String mMode;
+        private final long mTime;
+        private final ArrayList<String> mKeys = new ArrayList<String>(32);
+        private final ArrayList<Object> mValues = new ArrayList<Object>(32);
+
+        Builder(String mode, long time) {
+            mMode = mode;
+            mTime = time;
+        }
+
+        /**
+         * Sets a field, replacing an earlier value for the same key. A null
+         * value is stored as an empty string.
+         */
+        @Override
+        public Builder put(String key, String value) {
+            return set(key, value == null ? "" : value);
+        }
+
+        /**
+         * Sets a field whose value is streamed when the report is written.
+         */
+        Builder put(String key, Section section) {
+            return set(key, section);
+        }
+
+        private Builder set(String key, Object value) {
+            int index = mKeys.indexOf(key);
+            if (index >= 0) {
+                mValues.set(index, value);
+            } else {
+                mKeys.add(key);
+                mValues.add(value);
+            }
+            return this;
+        }
+
+        Builder remove(String key) {
+            int index = mKeys.indexOf(key);
+            if (index >= 0) {
+                mKeys.remove(index);
+                mValues.remove(index);
+            }
+            return this;
+        }
+
+        /**
+         * @return the value of {@code key}, or null if it is missing or a
+         * {@link Section}.
+         */
+        String get(String key) {
+            int index = mKeys.indexOf(key);
+            Object value = index >= 0 ? mValues.get(index) : null;
+            return value instanceof String ? (String) value : null;
+        }
+
+        String getMode() {
+            return mMode;
+        }
+
+        long getTime() {
+            return mTime;
+        }
+
+        CrashReport build() {
+            return new CrashReport(this);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * 崩溃报告读取器。
+ * <p>
+ * Reads the format written by {@link CrashReportWriter}. Opening a report
+ * only walks the field headers; keys and values are decoded on first access.
+ * Older plain text reports ({@code key=value} lines, values may span several
+ * lines) are also understood so existing files stay readable.
+ */
+final class CrashReportReader {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mData;
+    private final boolean mBinary;
+    private int mFieldCount;
+    private int[] mKeyOffsets = new int[16];
+    private int[] mKeyLengths = new int[16];
+    private int[] mValueOffsets = new int[16];
+    private int[] mValueLengths = new int[16];
+    private String[] mKeys;
+    private String[] mValues;
+
+    private CrashReportReader(ByteBuffer data) throws IOException {
+        mData = data;
+        mBinary = isBinary(data);
+        if (mBinary) {
+            indexBinary();
+        } else {
+            indexText();
+        }
+        mKeys = new String[mFieldCount];
+        mValues = new String[mFieldCount];
+    }
+
+    /**
+     * Maps the report file and indexes its fields.
+     */
+    static CrashReportReader open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new CrashReportReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    static CrashReportReader wrap(byte[] data, int offset, int length) throws IOException {
+        return new CrashReportReader(ByteBuffer.wrap(data, offset, length).slice());
+    }
+
+    static boolean isBinary(ByteBuffer data) {
+        if (data.limit() < CrashReportWriter.HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < CrashReportWriter.MAGIC.length; i++) {
+            if (data.get(i) != CrashReportWriter.MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isBinary() {
+        return mBinary;
+    }
+
+    int getFieldCount() {
+        return mFieldCount;
+    }
+
+    String getKey(int index) {
+        String key = mKeys[index];
+        if (key == null) {
+            key = decode(mKeyOffsets[index], mKeyLengths[index]);
+            mKeys[index] = key;
+        }
+        return key;
+    }
+
+    String getValue(int index) {
+        String value = mValues[index];
+        if (value == null) {
+            value = decode(mValueOffsets[index], mValueLengths[index]);
+            mValues[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * @return the value of the first field named {@code key}, or null.
+     */
+    String getValue(String key) {
+        int index = indexOf(key);
+        return index >= 0 ? getValue(index) : null;
+    }
+
+    int indexOf(String key) {
+        for (int i = 0; i < mFieldCount; i++) {
+            if (getKey(i).equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return a read-only view of the raw UTF-8 bytes of a value.
+     */
+    ByteBuffer getValueBytes(int index) {
+        ByteBuffer dup = mData.duplicate();
+        dup.limit(mValueOffsets[index] + mValueLengths[index]);
+        dup.position(mValueOffsets[index]);
+        return dup.slice();
+    }
+
+    int getKeyOffset(int index) {
+        return mKeyOffsets[index];
+    }
+
+    int getKeyLength(int index) {
+        return mKeyLengths[index];
+    }
+
+    int getValueOffset(int index) {
+        return mValueOffsets[index];
+    }
+
+    int getValueLength(int index) {
+        return mValueLengths[index];
+    }
+
+    /**
+     * @return a read-only view of the whole file; the offsets of keys and
+     * values are positions in it.
+     */
+    ByteBuffer getData() {
+        return mData.asReadOnlyBuffer();
+    }
+
+    /**
+     * Renders the whole report as {@code key=value} lines. Text reports are
+     * returned as they are.
+     */
+    String toText() {
+        if (!mBinary) {
+            return decode(0, mData.limit());
+        }
+        StringBuilder sb = new StringBuilder(mData.limit());
+        for (int i = 0; i < mFieldCount; i++) {
+            sb.append(getKey(i)).append('=').append(getValue(i)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private String decode(int offset, int length) {
+        ByteBuffer dup = mData.duplicate();
+        dup.limit(offset + length);
+        dup.position(offset);
+        return UTF_8.decode(dup).toString();
+    }
+
+    private void indexBinary() throws IOException {
+        ByteBuffer data = mData;
+        int version = data.get(CrashReportWriter.MAGIC.length) & 0xFF;
+        if (version > CrashReportWriter.VERSION) {
+            throw new IOException("unsupported report version " + version);
+        }
+        int count = data.getShort(CrashReportWriter.MAGIC.length + 1) & 0xFFFF;
+        int pos = CrashReportWriter.HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            if (pos + 2 > data.limit()) {
+                throw new IOException("truncated report");
+            }
+            int keyLength = data.getShort(pos) & 0xFFFF;
+            int keyOffset = pos + 2;
+            pos = keyOffset + keyLength;
+            if (pos + 4 > data.limit()) {
+                throw new IOException("truncated report");
+            }
+            int valueLength = data.getInt(pos);
+            int valueOffset = pos + 4;
+            pos = valueOffset + valueLength;
+            if (valueLength < 0 || pos > data.limit()) {
+                throw new IOException("truncated report");
+            }
+            addField(keyOffset, keyLength, valueOffset, valueLength);
+        }
+    }
+
+    private void indexText() {
+        ByteBuffer data = mData;
+        int limit = data.limit();
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && data.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int eq = keyEnd(data, lineStart, lineEnd);
+            if (eq > lineStart) {
+                closeTextField(lineStart);
+                addField(lineStart, eq - lineStart, eq + 1, -1);
+            }
+            lineStart = lineEnd + 1;
+        }
+        closeTextField(limit);
+    }
+
+    /**
+     * Values in text reports run until the next line that starts a field.
+     */
+    private void closeTextField(int nextFieldStart) {
+        int last = mFieldCount - 1;
+        if (last >= 0 && mValueLengths[last] < 0) {
+            int end = nextFieldStart;
+            if (end > mValueOffsets[last] && mData.get(end - 1) == '\n') {
+                end--;
+            }
+            mValueLengths[last] = Math.max(0, end - mValueOffsets[last]);
+        }
+    }
+
+    /**
+     * @return the position of '=' if the line starts with an identifier
+     * followed by '=', otherwise -1.
+     */
+    private static int keyEnd(ByteBuffer data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = data.get(i);
+            if (b == '=') {
+                return i > start ? i : -1;
+            }
+            boolean ok = b == '_' || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+                    || (i > start && b >= '0' && b <= '9');
+            if (!ok) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private void addField(int keyOffset, int keyLength, int valueOffset, int valueLength) {
+        if (mFieldCount == mKeyOffsets.length) {
+            int capacity = mFieldCount * 2;
+            mKeyOffsets = grow(mKeyOffsets, capacity);
+            mKeyLengths = grow(mKeyLengths, capacity);
+            mValueOffsets = grow(mValueOffsets, capacity);
+            mValueLengths = grow(mValueLengths, capacity);
+        }
+        mKeyOffsets[mFieldCount] = keyOffset;
+        mKeyLengths[mFieldCount] = keyLength;
+        mValueOffsets[mFieldCount] = valueOffset;
+        mValueLengths[mFieldCount] = valueLength;
+        mFieldCount++;
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
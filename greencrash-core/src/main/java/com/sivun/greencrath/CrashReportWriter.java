@@ -0,0 +1,247 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 崩溃报告的二进制写入器。
+ * <p>
+ * Layout (version 1, big endian):
+ * <pre>
+ * magic 'G' 'C' 'R' | u8 version | u16 fieldCount
+ * fieldCount * ( u16 keyLength | key UTF-8 | u32 valueLength | value UTF-8 )
+ * </pre>
+ * All fields are encoded into one growable buffer, which is written to disk
+ * with a single call. Values can be streamed with {@link #beginField(String)},
+ * the {@code append} methods and {@link #endField()}.
+ */
+final class CrashReportWriter {
+
+    static final byte[] MAGIC = {'G', 'C', 'R'};
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = MAGIC.length + 1 + 2;
+    static final String FILE_EXTENSION = ".gcr";
+
+    private byte[] mBuffer;
+    private int mSize;
+    private int mFieldCount;
+    // Offset of the length slot of the field being streamed, or -1.
+    private int mOpenField = -1;
+
+    CrashReportWriter(int initialCapacity) {
+        mBuffer = new byte[Math.max(initialCapacity, 64)];
+        reset();
+    }
+
+    /**
+     * Drops all fields so the buffer can be reused for another report.
+     */
+    void reset() {
+        System.arraycopy(MAGIC, 0, mBuffer, 0, MAGIC.length);
+        mBuffer[MAGIC.length] = (byte) VERSION;
+        mSize = HEADER_SIZE;
+        mFieldCount = 0;
+        mOpenField = -1;
+    }
+
+    CrashReportWriter putField(String key, String value) {
+        beginField(key);
+        if (value != null) {
+            append(value);
+        }
+        return endField();
+    }
+
+    /**
+     * @return false if {@code key} is longer than 65535 bytes in UTF-8,
+     * the most its u16 length can hold.
+     */
+    static boolean isValidKey(String key) {
+        if (key.length() <= 0xFFFF / 3) {
+            return true;
+        }
+        int length = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            length += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return length <= 0xFFFF;
+    }
+
+    /**
+     * Opens a field for the {@code append} methods.
+     *
+     * @throws IllegalArgumentException if the key is longer than 65535
+     *                                  bytes in UTF-8.
+     */
+    CrashReportWriter beginField(String key) {
+        if (mOpenField >= 0) {
+            throw new IllegalStateException("field not closed");
+        }
+        if (mFieldCount == 0xFFFF) {
+            throw new IllegalStateException("too many fields");
+        }
+        int start = mSize;
+        ensureCapacity(2);
+        mSize += 2;
+        appendUtf8(key, 0, key.length());
+        int keyLength = mSize - start - 2;
+        if (keyLength > 0xFFFF) {
+            // the length slot is a u16, drop the key again
+            mSize = start;
+            throw new IllegalArgumentException("key longer than 65535 bytes");
+        }
+        mBuffer[start] = (byte) (keyLength >>> 8);
+        mBuffer[start + 1] = (byte) keyLength;
+        ensureCapacity(4);
+        mOpenField = mSize;
+        mSize += 4;
+        return this;
+    }
+
+    CrashReportWriter append(CharSequence s) {
+        return append(s, 0, s.length());
+    }
+
+    CrashReportWriter append(CharSequence s, int start, int end) {
+        checkOpen();
+        appendUtf8(s, start, end);
+        return this;
+    }
+
+    CrashReportWriter append(char c) {
+        checkOpen();
+        if (c < 0x80) {
+            ensureCapacity(1);
+            mBuffer[mSize++] = (byte) c;
+        } else {
+            appendUtf8(String.valueOf(c), 0, 1);
+        }
+        return this;
+    }
+
+    /**
+     * Appends the decimal form of {@code value} without creating a String.
+     */
+    CrashReportWriter appendLong(long value) {
+        checkOpen();
+        if (value == Long.MIN_VALUE) {
+            appendUtf8("-9223372036854775808", 0, 20);
+            return this;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            mBuffer[mSize++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = mSize + digits - 1; i >= mSize; i--) {
+            mBuffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        mSize += digits;
+        return this;
+    }
+
+    CrashReportWriter endField() {
+        checkOpen();
+        int length = mSize - mOpenField - 4;
+        mBuffer[mOpenField] = (byte) (length >>> 24);
+        mBuffer[mOpenField + 1] = (byte) (length >>> 16);
+        mBuffer[mOpenField + 2] = (byte) (length >>> 8);
+        mBuffer[mOpenField + 3] = (byte) length;
+        mOpenField = -1;
+        mFieldCount++;
+        return this;
+    }
+
+    /**
+     * @return the encoded size of the report in bytes.
+     */
+    int size() {
+        return mSize;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        if (mOpenField >= 0) {
+            throw new IllegalStateException("field not closed");
+        }
+        mBuffer[MAGIC.length + 1] = (byte) (mFieldCount >>> 8);
+        mBuffer[MAGIC.length + 2] = (byte) mFieldCount;
+        out.write(mBuffer, 0, mSize);
+    }
+
+    void writeTo(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void checkOpen() {
+        if (mOpenField < 0) {
+            throw new IllegalStateException("no open field");
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mSize + extra > mBuffer.length) {
+            byte[] grown = new byte[Math.max(mBuffer.length * 2, mSize + extra)];
+            System.arraycopy(mBuffer, 0, grown, 0, mSize);
+            mBuffer = grown;
+        }
+    }
+
+    private void appendUtf8(CharSequence s, int start, int end) {
+        // worst case is 3 bytes per char (surrogate pairs use 4 bytes for 2 chars)
+        ensureCapacity((end - start) * 3);
+        byte[] buf = mBuffer;
+        int pos = mSize;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // unpaired surrogate
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        mSize = pos;
+    }
+}
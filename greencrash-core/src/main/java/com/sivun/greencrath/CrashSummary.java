@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.File;
+
+/**
+ * 崩溃报告摘要，用于浏览历史记录。
+ * <p>
+ * Holds what the history list shows without opening the report: when and
+ * how it was reported, the root exception with its message and top frame,
+ * and the version code of the app.
+ */
+public final class CrashSummary {
+
+    // the message is only kept for the list and text search
+    private static final int MAX_MESSAGE_CHARS = 200;
+
+    private final File mFile;
+    private final long mTime;
+    private final String mMode;
+    private final String mExceptionType;
+    private final String mMessage;
+    private final String mTopFrame;
+    private final int mVersionCode;
+
+    CrashSummary(File file, long time, String mode, String exceptionType, String message,
+                 String topFrame, int versionCode) {
+        mFile = file;
+        mTime = time;
+        mMode = mode;
+        mExceptionType = exceptionType;
+        mMessage = message;
+        mTopFrame = topFrame;
+        mVersionCode = versionCode;
+    }
+
+    /**
+     * Summarizes a report from its stored fields. The root cause of the
+     * stack trace is used, as it usually names the actual problem.
+     */
+    static CrashSummary fromReport(File file, long time, String mode, String versionCode, String stackTrace) {
+        String type = "";
+        String message = "";
+        String topFrame = "";
+        if (stackTrace != null) {
+            int start = 0;
+            int cause = stackTrace.lastIndexOf("\nCaused by: ");
+            if (cause >= 0) {
+                start = cause + "\nCaused by: ".length();
+            } else if (stackTrace.startsWith("Thread: ")) {
+                // journal records start with the thread name
+                start = stackTrace.indexOf('\n') + 1;
+            }
+            int end = stackTrace.indexOf('\n', start);
+            String header = stackTrace.substring(start, end >= 0 ? end : stackTrace.length());
+            int colon = header.indexOf(": ");
+            type = colon >= 0 ? header.substring(0, colon) : header;
+            message = colon >= 0 ? header.substring(colon + 2) : "";
+            if (end >= 0) {
+                int at = stackTrace.indexOf("\tat ", end);
+                if (at == end + 1) {
+                    int frameEnd = stackTrace.indexOf('\n', at);
+                    topFrame = stackTrace.substring(at + 4, frameEnd >= 0 ? frameEnd : stackTrace.length());
+                }
+            }
+        }
+        return new CrashSummary(file, time, mode == null ? "" : mode, type.trim(),
+                clip(message.trim(), MAX_MESSAGE_CHARS), topFrame, parseVersionCode(versionCode));
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * @return how the report was made: silent, toast, notif, journal...
+     */
+    public String getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return the class name of the root cause.
+     */
+    public String getExceptionType() {
+        return mExceptionType;
+    }
+
+    public String getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * @return the top frame of the root cause, as printed in the stack
+     * trace, or an empty string.
+     */
+    public String getTopFrame() {
+        return mTopFrame;
+    }
+
+    /**
+     * @return the version code of the app, or -1 if unknown.
+     */
+    public int getVersionCode() {
+        return mVersionCode;
+    }
+
+    static int parseVersionCode(String versionCode) {
+        try {
+            return versionCode != null ? Integer.parseInt(versionCode.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String clip(String s, int max) {
+        return s.length() > max ? s.substring(0, max) : s;
+    }
+}
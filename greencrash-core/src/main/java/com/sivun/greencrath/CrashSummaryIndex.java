@@ -0,0 +1,705 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * 崩溃报告摘要索引，支持分页、过滤和文本搜索。
+ * <p>
+ * Every stored report has one {@link CrashSummary} record in an append-only
+ * file; deleted reports get a delete record. Writing a report only appends
+ * a record, the index is read the first time it is queried. In memory only
+ * what filtering needs is kept (time, version code, exception type and the
+ * file offset of the record), plus a token index over the exception type,
+ * message and top frame. The summaries of a page are read from the file.
+ * <p>
+ * Loading reconciles the index with the live report names, so reports
+ * written before the index existed, or deleted behind its back, are picked
+ * up. Dead records are compacted away on load.
+ * <p>
+ * The file is shared by the processes of the app through a
+ * {@link ProcessLock}. A loaded index reads only the records other
+ * processes appended since it last looked, and loads again when one of them
+ * rewrote the file. Writing a report never waits for the lock: if another
+ * process holds it the record is skipped and the next load summarizes the
+ * report from its file.
+ */
+final class CrashSummaryIndex {
+
+    static final String INDEX_NAME = "summary.idx";
+
+    private static final int MAGIC = 0x47435349; // "GCSI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final byte OP_ADD = 'A';
+    private static final byte OP_DELETE = 'D';
+    private static final int MIN_TOKEN_LENGTH = 2;
+
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return;
+            }
+            if (size == ids.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(ids, 0, grown, 0, size);
+                ids = grown;
+            }
+            ids[size++] = id;
+        }
+    }
+
+    private final File mDir;
+    private final File mFile;
+    private final ProcessLock mLock;
+    private final ErrorReporter mErrors;
+    private boolean mLoaded;
+    // File bytes read or written by this process, and their generation
+    private long mKnownLength;
+    private long mGeneration;
+
+    private int mCount;
+    private long[] mTimes = new long[64];
+    private int[] mVersions = new int[64];
+    private int[] mTypes = new int[64];
+    private long[] mOffsets = new long[64];
+    private boolean[] mLive = new boolean[64];
+    private int mLiveCount;
+    private final Map<String, Integer> mByName = new HashMap<String, Integer>();
+    private final List<String> mTypeNames = new ArrayList<String>();
+    private final Map<String, Integer> mTypeIds = new HashMap<String, Integer>();
+    private final TreeMap<String, Postings> mTokens = new TreeMap<String, Postings>();
+
+    CrashSummaryIndex(File dir, ErrorReporter errors) {
+        mDir = dir;
+        mFile = new File(dir, INDEX_NAME);
+        mErrors = errors;
+        mLock = ProcessLock.forFile(mFile, errors);
+    }
+
+    /**
+     * Records a report that has just been written. Before the index is
+     * loaded this is a single append, or nothing if there is no index file
+     * yet: loading picks the report up then.
+     */
+    synchronized void add(CrashSummary summary) {
+        if (!mLock.tryLock()) {
+            mLoaded = false;
+            return;
+        }
+        try {
+            sync();
+            if (!mLoaded && !mFile.exists()) {
+                return;
+            }
+            long offset = append(OP_ADD, summary.getFile().getName(), summary);
+            if (mLoaded && offset >= 0) {
+                Integer old = mByName.get(summary.getFile().getName());
+                if (old != null) {
+                    kill(old);
+                }
+                insert(summary, offset);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    synchronized void remove(String name) {
+        if (!mLock.tryLock()) {
+            mLoaded = false;
+            return;
+        }
+        try {
+            sync();
+            if (!mLoaded) {
+                if (mFile.exists()) {
+                    append(OP_DELETE, name, null);
+                }
+                return;
+            }
+            Integer id = mByName.get(name);
+            if (id != null) {
+                kill(id);
+                append(OP_DELETE, name, null);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    synchronized void removeAll() {
+        mLock.lock();
+        try {
+            mFile.delete();
+            clear();
+            if (mLoaded) {
+                writeAll(new ArrayList<CrashSummary>());
+                mKnownLength = HEADER_SIZE;
+            } else {
+                mGeneration = mLock.nextGeneration();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Reads what other processes appended since the last look.
+     *
+     * @return false if the index is not loaded, or has to be loaded again
+     * because another process rewrote it.
+     */
+    synchronized boolean refresh() {
+        if (!mLoaded) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            sync();
+        } finally {
+            mLock.unlock();
+        }
+        return mLoaded;
+    }
+
+    /**
+     * Catches up with the file, with the lock held.
+     */
+    private void sync() {
+        if (!mLoaded) {
+            return;
+        }
+        if (mLock.getGeneration() != mGeneration || (mFile.length() > mKnownLength && !read(mKnownLength))) {
+            mLoaded = false;
+        }
+    }
+
+    /**
+     * Reads the index and reconciles it with the reports that exist.
+     * Reports without a summary are opened and summarized, which only
+     * happens once per report.
+     *
+     * @param liveNames names of all stored reports, oldest first
+     */
+    synchronized void load(String[] liveNames) {
+        if (mLoaded) {
+            return;
+        }
+        mLock.lock();
+        try {
+            load(liveNames, mLock.getGeneration());
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void load(String[] liveNames, long generation) {
+        clear();
+        mGeneration = generation;
+        boolean dirty = !read(0);
+        Set<String> live = new HashSet<String>();
+        for (String name : liveNames) {
+            live.add(name);
+        }
+        for (Map.Entry<String, Integer> entry : new ArrayList<Map.Entry<String, Integer>>(mByName.entrySet())) {
+            // another process may have written it after the names were listed
+            if (!live.contains(entry.getKey()) && !new File(mDir, entry.getKey()).exists()) {
+                kill(entry.getValue());
+                dirty = true;
+            }
+        }
+        List<CrashSummary> summaries = null;
+        for (String name : liveNames) {
+            if (!mByName.containsKey(name)) {
+                if (summaries == null) {
+                    summaries = liveSummaries();
+                }
+                CrashSummary summary = summarize(new File(mDir, name));
+                if (summary != null) {
+                    summaries.add(summary);
+                }
+                dirty = true;
+            }
+        }
+        if (dirty || mCount > 2 * mLiveCount + 64) {
+            if (summaries == null) {
+                summaries = liveSummaries();
+            }
+            // newly summarized reports may be older than indexed ones
+            Collections.sort(summaries, new Comparator<CrashSummary>() {
+                @Override
+                public int compare(CrashSummary left, CrashSummary right) {
+                    long l = left.getTime();
+                    long r = right.getTime();
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+            clear();
+            writeAll(summaries);
+            read(0);
+        }
+        mLoaded = true;
+    }
+
+    /**
+     * @param versionCode   only this version code, or -1 for all
+     * @param exceptionType only exception types containing this, ignoring
+     *                      case, or null
+     * @param text          words that must all start a word of the
+     *                      exception type, message or top frame, or null
+     * @return the matching summaries, newest first, from {@code offset} on,
+     * or null if another process rewrote the index since it was loaded.
+     */
+    synchronized List<CrashSummary> query(int versionCode, String exceptionType, String text,
+                                          int offset, int limit) {
+        List<CrashSummary> page = new ArrayList<CrashSummary>();
+        BitSet matches = match(versionCode, exceptionType, text);
+        int skipped = 0;
+        RandomAccessFile raf = null;
+        // the records are read where they were, the file must not be rewritten meanwhile
+        mLock.lock();
+        try {
+            if (mLock.getGeneration() != mGeneration) {
+                mLoaded = false;
+                return null;
+            }
+            for (int id = mCount - 1; id >= 0 && page.size() < limit; id--) {
+                if (!matches.get(id) || skipped++ < offset) {
+                    continue;
+                }
+                if (raf == null) {
+                    raf = new RandomAccessFile(mFile, "r");
+                }
+                raf.seek(mOffsets[id]);
+                page.add(readRecord(raf));
+            }
+        } catch (IOException e) {
+            mErrors.report("read " + INDEX_NAME, e);
+        } finally {
+            close(raf);
+            mLock.unlock();
+        }
+        return page;
+    }
+
+    /**
+     * @return how many summaries match, see {@link #query}.
+     */
+    synchronized int count(int versionCode, String exceptionType, String text) {
+        return match(versionCode, exceptionType, text).cardinality();
+    }
+
+    private BitSet match(int versionCode, String exceptionType, String text) {
+        BitSet result = new BitSet(mCount);
+        for (int id = 0; id < mCount; id++) {
+            if (mLive[id] && (versionCode < 0 || mVersions[id] == versionCode)) {
+                result.set(id);
+            }
+        }
+        if (exceptionType != null && exceptionType.length() > 0) {
+            String wanted = exceptionType.toLowerCase(Locale.US);
+            boolean[] typeMatches = new boolean[mTypeNames.size()];
+            for (int t = 0; t < typeMatches.length; t++) {
+                typeMatches[t] = mTypeNames.get(t).toLowerCase(Locale.US).contains(wanted);
+            }
+            for (int id = result.nextSetBit(0); id >= 0; id = result.nextSetBit(id + 1)) {
+                if (!typeMatches[mTypes[id]]) {
+                    result.clear(id);
+                }
+            }
+        }
+        if (text != null) {
+            for (String word : splitWords(text)) {
+                BitSet hits = new BitSet(mCount);
+                // every token starting with the word
+                SortedMap<String, Postings> range = mTokens.subMap(word, word + Character.MAX_VALUE);
+                for (Postings postings : range.values()) {
+                    for (int i = 0; i < postings.size; i++) {
+                        hits.set(postings.ids[i]);
+                    }
+                }
+                result.and(hits);
+            }
+        }
+        return result;
+    }
+
+    private void clear() {
+        mCount = 0;
+        mLiveCount = 0;
+        mByName.clear();
+        mTypeNames.clear();
+        mTypeIds.clear();
+        mTokens.clear();
+    }
+
+    private void insert(CrashSummary summary, long offset) {
+        if (mCount == mTimes.length) {
+            int capacity = mCount * 2;
+            long[] times = new long[capacity];
+            int[] versions = new int[capacity];
+            int[] types = new int[capacity];
+            long[] offsets = new long[capacity];
+            boolean[] live = new boolean[capacity];
+            System.arraycopy(mTimes, 0, times, 0, mCount);
+            System.arraycopy(mVersions, 0, versions, 0, mCount);
+            System.arraycopy(mTypes, 0, types, 0, mCount);
+            System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+            System.arraycopy(mLive, 0, live, 0, mCount);
+            mTimes = times;
+            mVersions = versions;
+            mTypes = types;
+            mOffsets = offsets;
+            mLive = live;
+        }
+        int id = mCount++;
+        String type = summary.getExceptionType();
+        Integer typeId = mTypeIds.get(type);
+        if (typeId == null) {
+            typeId = mTypeNames.size();
+            mTypeNames.add(type);
+            mTypeIds.put(type, typeId);
+        }
+        mTimes[id] = summary.getTime();
+        mVersions[id] = summary.getVersionCode();
+        mTypes[id] = typeId;
+        mOffsets[id] = offset;
+        mLive[id] = true;
+        mLiveCount++;
+        mByName.put(summary.getFile().getName(), id);
+        addTokens(id, type);
+        addTokens(id, summary.getMessage());
+        addTokens(id, summary.getTopFrame());
+        addTokens(id, summary.getMode());
+    }
+
+    private void kill(int id) {
+        if (mLive[id]) {
+            mLive[id] = false;
+            mLiveCount--;
+        }
+        // postings keep the id, queries skip dead entries
+    }
+
+    private void addTokens(int id, String text) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                addWord(id, text, start, i);
+                start = -1;
+            }
+        }
+    }
+
+    private void addWord(int id, String text, int start, int end) {
+        if (end - start >= MIN_TOKEN_LENGTH) {
+            addToken(id, text.substring(start, end).toLowerCase(Locale.US));
+        }
+        // later parts of camel case names, like "pointer" in NullPointerException
+        // or "exception" in IOException; the first part is already a prefix of
+        // the whole word
+        int part = start;
+        for (int i = start + 1; i <= end; i++) {
+            if (i == end || isPartStart(text, i, end)) {
+                if (part > start && i - part >= MIN_TOKEN_LENGTH) {
+                    addToken(id, text.substring(part, i).toLowerCase(Locale.US));
+                }
+                part = i;
+            }
+        }
+    }
+
+    private static boolean isPartStart(String text, int i, int end) {
+        if (!Character.isUpperCase(text.charAt(i))) {
+            return false;
+        }
+        char previous = text.charAt(i - 1);
+        return Character.isLowerCase(previous)
+                || (Character.isUpperCase(previous) && i + 1 < end && Character.isLowerCase(text.charAt(i + 1)));
+    }
+
+    private void addToken(int id, String token) {
+        Postings postings = mTokens.get(token);
+        if (postings == null) {
+            postings = new Postings();
+            mTokens.put(token, postings);
+        }
+        postings.add(id);
+    }
+
+    /**
+     * Lower case runs of letters and digits.
+     */
+    static List<String> splitWords(String text) {
+        List<String> words = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                if (i - start >= MIN_TOKEN_LENGTH) {
+                    words.add(text.substring(start, i).toLowerCase(Locale.US));
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Reads the records from {@code from} on, the start of the file or the
+     * end of what was read before.
+     *
+     * @return false if the file is missing or damaged; what could be read
+     * is loaded anyway.
+     */
+    private boolean read(long from) {
+        mKnownLength = from;
+        byte[] data;
+        try {
+            data = readFile(mFile, from);
+        } catch (IOException e) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (from == 0) {
+                if (data.length < HEADER_SIZE || in.readInt() != MAGIC || in.readByte() != VERSION) {
+                    return false;
+                }
+                mKnownLength = HEADER_SIZE;
+            }
+            while (in.available() > 0) {
+                long offset = from + data.length - in.available();
+                byte op = in.readByte();
+                if (op == OP_ADD) {
+                    CrashSummary summary = readRecordBody(in);
+                    Integer old = mByName.get(summary.getFile().getName());
+                    if (old != null) {
+                        kill(old);
+                    }
+                    insert(summary, offset);
+                } else if (op == OP_DELETE) {
+                    Integer id = mByName.remove(in.readUTF());
+                    if (id != null) {
+                        kill(id);
+                    }
+                } else {
+                    return false;
+                }
+                mKnownLength = from + data.length - in.available();
+            }
+            return true;
+        } catch (IOException e) {
+            // a record cut short by process death
+            return false;
+        }
+    }
+
+    private List<CrashSummary> liveSummaries() {
+        List<CrashSummary> summaries = new ArrayList<CrashSummary>(mLiveCount);
+        RandomAccessFile raf = null;
+        try {
+            for (int id = 0; id < mCount; id++) {
+                if (mLive[id]) {
+                    if (raf == null) {
+                        raf = new RandomAccessFile(mFile, "r");
+                    }
+                    raf.seek(mOffsets[id]);
+                    summaries.add(readRecord(raf));
+                }
+            }
+        } catch (IOException e) {
+            mErrors.report("read " + INDEX_NAME, e);
+        } finally {
+            close(raf);
+        }
+        return summaries;
+    }
+
+    private CrashSummary summarize(File report) {
+        try {
+            CrashReportReader reader = CrashReportReader.open(report);
+            String mode = reader.getValue(CrashEngine.REPORT_MODE);
+            if (mode == null) {
+                String name = report.getName();
+                int dash = name.indexOf('-');
+                mode = dash > 0 ? name.substring(0, dash) : "";
+            }
+            return CrashSummary.fromReport(report, report.lastModified(), mode,
+                    reader.getValue(CrashEngine.VERSION_CODE), reader.getValue(CrashEngine.STACK_TRACE_KEY));
+        } catch (FileNotFoundException e) {
+            // deleted by another process since the names were listed
+            return null;
+        } catch (IOException e) {
+            mErrors.report("summarize " + report.getName(), e);
+            return null;
+        }
+    }
+
+    private CrashSummary readRecord(RandomAccessFile raf) throws IOException {
+        if (raf.readByte() != OP_ADD) {
+            throw new IOException("not a summary record");
+        }
+        return readRecordBody(raf);
+    }
+
+    private CrashSummary readRecordBody(DataInput in) throws IOException {
+        String name = in.readUTF();
+        long time = in.readLong();
+        String mode = in.readUTF();
+        String type = in.readUTF();
+        String message = in.readUTF();
+        String topFrame = in.readUTF();
+        int versionCode = in.readInt();
+        return new CrashSummary(new File(mDir, name), time, mode, type, message, topFrame, versionCode);
+    }
+
+    private static void writeRecord(DataOutputStream out, byte op, String name, CrashSummary summary)
+            throws IOException {
+        out.writeByte(op);
+        out.writeUTF(name);
+        if (op == OP_ADD) {
+            out.writeLong(summary.getTime());
+            out.writeUTF(summary.getMode());
+            out.writeUTF(summary.getExceptionType());
+            out.writeUTF(summary.getMessage());
+            out.writeUTF(summary.getTopFrame());
+            out.writeInt(summary.getVersionCode());
+        }
+    }
+
+    /**
+     * @return the offset of the record, or -1 if it could not be written.
+     */
+    private long append(byte op, String name, CrashSummary summary) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try {
+            writeRecord(new DataOutputStream(bytes), op, name, summary);
+            long offset = mFile.length();
+            FileOutputStream out = new FileOutputStream(mFile, true);
+            try {
+                bytes.writeTo(out);
+            } finally {
+                out.close();
+            }
+            mKnownLength = offset + bytes.size();
+            return offset;
+        } catch (IOException e) {
+            mErrors.report("append to " + INDEX_NAME, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Rewrites the index file with the given summaries, and tells the other
+     * processes to load it again.
+     */
+    private void writeAll(List<CrashSummary> summaries) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + 128 * summaries.size());
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(MAGIC);
+            data.writeByte(VERSION);
+            for (CrashSummary summary : summaries) {
+                writeRecord(data, OP_ADD, summary.getFile().getName(), summary);
+            }
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                bytes.writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (tmp.renameTo(mFile)) {
+                mGeneration = mLock.nextGeneration();
+            } else {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            mErrors.report("rewrite " + INDEX_NAME, e);
+            tmp.delete();
+        }
+    }
+
+    private static byte[] readFile(File file, long from) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(from);
+            byte[] data = new byte[(int) Math.max(0, in.length() - from)];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            if (read == data.length) {
+                return data;
+            }
+            byte[] shorter = new byte[read];
+            System.arraycopy(data, 0, shorter, 0, read);
+            return shorter;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void close(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 自定义键值数据，线程安全且有数量和长度限制。
+ * <p>
+ * Each key owns a mutable value that is updated in place, so setting a key
+ * that already exists does not allocate, and numbers are stored as
+ * primitives without boxing. Entries are locked one at a time, only for the
+ * few field writes of an update, so setters on different keys never wait
+ * for each other.
+ * <p>
+ * The store is itself a {@link CrashReport.Section}: values are streamed
+ * into the report writer as {@code key = value} lines when the report is
+ * encoded, with no intermediate strings.
+ */
+final class CustomDataStore implements CrashReport.Section {
+
+    static final int DEFAULT_MAX_KEYS = 64;
+    static final int DEFAULT_MAX_VALUE_LENGTH = 1024;
+
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_BOOLEAN = 2;
+
+    private static final class Value {
+        int type;
+        long number;
+        String text;
+    }
+
+    private final ConcurrentHashMap<String, Value> mEntries = new ConcurrentHashMap<String, Value>();
+    private final AtomicInteger mCount = new AtomicInteger();
+    private final int mMaxKeys;
+    private final int mMaxValueLength;
+
+    CustomDataStore(int maxKeys, int maxValueLength) {
+        mMaxKeys = maxKeys;
+        mMaxValueLength = maxValueLength;
+    }
+
+    /**
+     * @return false if the key is new and the store is full.
+     */
+    boolean putString(String key, String value) {
+        Value entry = entry(key);
+        if (entry == null) {
+            return false;
+        }
+        if (value != null && value.length() > mMaxValueLength) {
+            value = value.substring(0, mMaxValueLength);
+        }
+        synchronized (entry) {
+            entry.type = TYPE_STRING;
+            entry.text = value;
+        }
+        return true;
+    }
+
+    boolean putLong(String key, long value) {
+        return putNumber(key, TYPE_LONG, value);
+    }
+
+    boolean putBoolean(String key, boolean value) {
+        return putNumber(key, TYPE_BOOLEAN, value ? 1 : 0);
+    }
+
+    void remove(String key) {
+        if (mEntries.remove(key) != null) {
+            mCount.decrementAndGet();
+        }
+    }
+
+    void clear() {
+        for (String key : mEntries.keySet()) {
+            remove(key);
+        }
+    }
+
+    boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    @Override
+    public void writeTo(CrashReportWriter writer) {
+        for (Map.Entry<String, Value> item : mEntries.entrySet()) {
+            writer.append(item.getKey()).append(" = ");
+            Value entry = item.getValue();
+            synchronized (entry) {
+                switch (entry.type) {
+                    case TYPE_LONG:
+                        writer.appendLong(entry.number);
+                        break;
+                    case TYPE_BOOLEAN:
+                        writer.append(entry.number != 0 ? "true" : "false");
+                        break;
+                    default:
+                        writer.append(entry.text != null ? entry.text : "null");
+                        break;
+                }
+            }
+            writer.append('\n');
+        }
+    }
+
+    @Override
+    public int estimateSize() {
+        // a guess, the writer grows its buffer if needed
+        return mCount.get() * 48;
+    }
+
+    private boolean putNumber(String key, int type, long value) {
+        Value entry = entry(key);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            entry.type = type;
+            entry.number = value;
+            entry.text = null;
+        }
+        return true;
+    }
+
+    /**
+     * @return the value of {@code key}, created if there is room, or null.
+     */
+    private Value entry(String key) {
+        Value entry = mEntries.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        if (mCount.incrementAndGet() > mMaxKeys) {
+            mCount.decrementAndGet();
+            return null;
+        }
+        entry = new Value();
+        Value existing = mEntries.putIfAbsent(key, entry);
+        if (existing != null) {
+            mCount.decrementAndGet();
+            return existing;
+        }
+        return entry;
+    }
+}
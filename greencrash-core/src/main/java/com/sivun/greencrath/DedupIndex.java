@@ -0,0 +1,604 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 崩溃去重索引。
+ * <p>
+ * Maps a {@link CrashFingerprint} to the first and last time it was seen, the
+ * number of occurrences and the name of one representative report file.
+ * A repeated crash only updates the counters instead of writing a new report.
+ * The index is small (at most {@code maxEntries} entries, least recently seen
+ * entries are dropped). When only counters changed, {@link #save()} updates
+ * the count and last seen time of those entries where they are in the
+ * file, so a crash storm costs a small write per save; other changes
+ * rewrite the file as a whole.
+ * <p>
+ * All processes of the app share the index. Each entry remembers what this
+ * process changed since it last saved. {@link #save()} takes a
+ * {@link ProcessLock}, reads the file again, and merges those changes into
+ * it before writing. Repeats counted by different processes therefore add
+ * up, and entries added by other processes are not lost. The lock file
+ * also holds a generation that every save bumps. When it changes, this
+ * process reads the index again and reapplies its unsaved changes. A
+ * crashing process only calls {@link #trySave()}: when the lock is busy,
+ * its changes wait for the next save.
+ * <p>
+ * Threads of this process only lock the entry they update, so crashes with
+ * different fingerprints are counted side by side. A save works on a
+ * snapshot of the changes and does its I/O holding no entry; repeats
+ * counted meanwhile are left for the next save.
+ * <p>
+ * An entry outlives its report: once the report was delivered, it also
+ * remembers that, so a repeat after the upload only needs a brief report
+ * carrying the counters.
+ */
+final class DedupIndex {
+
+    private static final int MAGIC = 0x47434458; // "GCDX"
+    private static final int VERSION = 2;
+    // An entry starts with its fingerprint, first seen, last seen and count
+    private static final int LAST_SEEN_OFFSET = 16;
+    private static final int COUNT_OFFSET = 24;
+    private static final int COUNTERS_END = 28;
+
+    /**
+     * The fields are guarded by the entry itself; the copies handed out
+     * are not shared.
+     */
+    static final class Entry {
+        final long fingerprint;
+        long firstSeen;
+        long lastSeen;
+        int count;
+        String reportName;
+        // The count written into the report
+        int writtenCount;
+        // The report was uploaded and deleted
+        boolean delivered;
+        // Occurrences counted by this process and not saved yet
+        int unsaved;
+        // Bumped when this process changes the report fields above
+        int changes;
+        int savedChanges;
+        // Dropped from the index; a thread that still holds it looks again
+        boolean removed;
+        // Where the entry is in the file of generation mGeneration, or -1
+        long offset = -1;
+
+        Entry(long fingerprint, long firstSeen, long lastSeen, int count, String reportName) {
+            this.fingerprint = fingerprint;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+            this.count = count;
+            this.reportName = reportName;
+            this.writtenCount = count;
+        }
+
+        Entry copy() {
+            Entry copy = new Entry(fingerprint, firstSeen, lastSeen, count, reportName);
+            copy.writtenCount = writtenCount;
+            copy.delivered = delivered;
+            return copy;
+        }
+
+        boolean isDirty() {
+            return unsaved > 0 || changes != savedChanges;
+        }
+
+        /**
+         * Takes over what is on disk, keeping the changes not saved yet.
+         */
+        void absorb(Entry disk) {
+            count = disk.count + unsaved;
+            firstSeen = Math.min(firstSeen, disk.firstSeen);
+            lastSeen = Math.max(lastSeen, disk.lastSeen);
+            if (changes == savedChanges) {
+                reportName = disk.reportName;
+                writtenCount = disk.writtenCount;
+                delivered = disk.delivered;
+            }
+            offset = disk.offset;
+        }
+    }
+
+    /**
+     * Changes of one entry taken for a save.
+     */
+    private static final class Change {
+        final Entry entry;
+        final Entry values;
+        final int unsaved;
+        final int changes;
+        final boolean reportChanged;
+        final long offset;
+
+        Change(Entry entry) {
+            this.entry = entry;
+            this.values = entry.copy();
+            this.unsaved = entry.unsaved;
+            this.changes = entry.changes;
+            this.reportChanged = entry.changes != entry.savedChanges;
+            this.offset = entry.offset;
+        }
+
+        /**
+         * Marks the snapshot as saved; the changes made meanwhile stay.
+         */
+        void saved() {
+            synchronized (entry) {
+                entry.unsaved -= unsaved;
+                entry.savedChanges = changes;
+            }
+        }
+    }
+
+    private final File mFile;
+    private final int mMaxEntries;
+    private final ProcessLock mLock;
+    private final ErrorReporter mErrors;
+    private final ConcurrentHashMap<Long, Entry> mEntries = new ConcurrentHashMap<Long, Entry>();
+    private volatile boolean mLoaded;
+    private volatile long mGeneration;
+
+    DedupIndex(File file, int maxEntries, ErrorReporter errors) {
+        mFile = file;
+        mMaxEntries = maxEntries;
+        mErrors = errors;
+        mLock = ProcessLock.forFile(file, errors);
+    }
+
+    /**
+     * Records more occurrences of a known crash.
+     *
+     * @param occurrences how many times the crash happened, including ones
+     *                    suppressed by rate limiting
+     * @return the representative report, or null if the crash is new or its
+     * report no longer exists and a full report has to be written.
+     */
+    File recordRepeat(long fingerprint, long time, int occurrences) {
+        Entry entry = entries().get(fingerprint);
+        if (entry == null) {
+            return null;
+        }
+        String reportName;
+        synchronized (entry) {
+            reportName = entry.reportName;
+        }
+        File report = new File(mFile.getParentFile(), reportName);
+        if (!report.exists()) {
+            return null;
+        }
+        synchronized (entry) {
+            if (entry.removed) {
+                return null;
+            }
+            entry.count += occurrences;
+            entry.unsaved += occurrences;
+            entry.lastSeen = Math.max(entry.lastSeen, time);
+        }
+        return report;
+    }
+
+    /**
+     * Registers a newly written representative report for a crash. The
+     * occurrence count carries over if the crash was already known, and is
+     * expected in the report.
+     */
+    void put(long fingerprint, long time, String reportName, int occurrences) {
+        ConcurrentHashMap<Long, Entry> entries = entries();
+        while (true) {
+            Entry entry = entries.get(fingerprint);
+            if (entry == null) {
+                entry = new Entry(fingerprint, time, time, occurrences, reportName);
+                entry.unsaved = occurrences;
+                entry.changes = 1;
+                if (entries.putIfAbsent(fingerprint, entry) == null) {
+                    evictOldest();
+                    return;
+                }
+                continue;
+            }
+            synchronized (entry) {
+                if (entry.removed) {
+                    continue;
+                }
+                entry.count += occurrences;
+                entry.lastSeen = Math.max(entry.lastSeen, time);
+                entry.reportName = reportName;
+                entry.writtenCount = entry.count;
+                entry.delivered = false;
+                entry.unsaved += occurrences;
+                entry.changes++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the entry of a crash, or null if it is not known.
+     */
+    Entry get(long fingerprint) {
+        Entry entry = entries().get(fingerprint);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            return entry.removed ? null : entry.copy();
+        }
+    }
+
+    /**
+     * @return a copy of the entry whose representative report is
+     * {@code reportName}, or null.
+     */
+    Entry getByReport(String reportName) {
+        Entry entry = findByReport(reportName);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            return entry.copy();
+        }
+    }
+
+    /**
+     * Records that the report now holds {@code count}.
+     */
+    void setWrittenCount(String reportName, int count) {
+        Entry entry = findByReport(reportName);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.writtenCount = count;
+                entry.changes++;
+            }
+        }
+    }
+
+    /**
+     * Records that a report was uploaded, so its crash stays deduplicated
+     * after the report is deleted.
+     */
+    void setDelivered(String reportName) {
+        Entry entry = findByReport(reportName);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.delivered = true;
+                entry.changes++;
+            }
+        }
+    }
+
+    private Entry findByReport(String reportName) {
+        for (Entry entry : entries().values()) {
+            synchronized (entry) {
+                if (!entry.removed && entry.reportName.equals(reportName)) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Merges the changes of this process into the index on disk, under the
+     * lock. Repeats of entries in the file only update their counters;
+     * otherwise the result is written to a temporary file renamed over the
+     * old one.
+     */
+    void save() {
+        save(true);
+    }
+
+    /**
+     * Like {@link #save()}, without waiting for the lock.
+     *
+     * @return false if another thread or process holds the lock; the
+     * changes are kept for the next save.
+     */
+    boolean trySave() {
+        return save(false);
+    }
+
+    private boolean save(boolean wait) {
+        if (!mLoaded) {
+            return true;
+        }
+        if (wait) {
+            mLock.lock();
+        } else if (!mLock.tryLock()) {
+            return false;
+        }
+        try {
+            List<Change> changes = new ArrayList<Change>();
+            boolean inPlace = mLock.getGeneration() == mGeneration;
+            for (Entry entry : mEntries.values()) {
+                synchronized (entry) {
+                    if (entry.isDirty() && !entry.removed) {
+                        Change change = new Change(entry);
+                        inPlace &= !change.reportChanged && change.offset >= 0;
+                        changes.add(change);
+                    }
+                }
+            }
+            if (changes.isEmpty() || inPlace && updateCounters(changes)) {
+                return true;
+            }
+            Map<Long, Entry> disk = read();
+            for (Change change : changes) {
+                merge(disk, change);
+            }
+            evictOldest(disk, mMaxEntries);
+            if (write(disk)) {
+                long generation = mLock.nextGeneration();
+                for (Change change : changes) {
+                    change.saved();
+                }
+                apply(disk, generation);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Adds the repeats to the counts in the file, and moves the last seen
+     * times forward, without rewriting it. Call it with the lock held, and
+     * only if the file is the one the offsets were taken from.
+     *
+     * @return false if the file has to be rewritten instead.
+     */
+    private boolean updateCounters(List<Change> changes) {
+        int done = 0;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                long[] lastSeen = new long[changes.size()];
+                int[] counts = new int[changes.size()];
+                byte[] bytes = new byte[COUNTERS_END];
+                ByteBuffer head = ByteBuffer.wrap(bytes);
+                for (int i = 0; i < changes.size(); i++) {
+                    Change change = changes.get(i);
+                    raf.seek(change.offset);
+                    raf.readFully(bytes);
+                    if (head.getLong(0) != change.values.fingerprint) {
+                        return false;
+                    }
+                    lastSeen[i] = Math.max(head.getLong(LAST_SEEN_OFFSET), change.values.lastSeen);
+                    counts[i] = head.getInt(COUNT_OFFSET) + change.unsaved;
+                }
+                for (int i = 0; i < changes.size(); i++) {
+                    Change change = changes.get(i);
+                    head.putLong(LAST_SEEN_OFFSET, lastSeen[i]);
+                    head.putInt(COUNT_OFFSET, counts[i]);
+                    raf.seek(change.offset + LAST_SEEN_OFFSET);
+                    raf.write(bytes, LAST_SEEN_OFFSET, COUNTERS_END - LAST_SEEN_OFFSET);
+                    change.saved();
+                    done++;
+                    Entry entry = change.entry;
+                    synchronized (entry) {
+                        // with the repeats other processes wrote meanwhile
+                        entry.count = counts[i] + entry.unsaved;
+                        entry.lastSeen = Math.max(entry.lastSeen, lastSeen[i]);
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            mErrors.report("update " + mFile.getName(), e);
+            // what is left is merged by the next save, the rest is in the file
+            return done > 0;
+        }
+        return true;
+    }
+
+    /**
+     * Applies a change of this process to the entries read from disk.
+     */
+    private static void merge(Map<Long, Entry> disk, Change change) {
+        Entry entry = disk.get(change.values.fingerprint);
+        if (entry == null) {
+            disk.put(change.values.fingerprint, change.values);
+            return;
+        }
+        entry.count += change.unsaved;
+        entry.firstSeen = Math.min(entry.firstSeen, change.values.firstSeen);
+        entry.lastSeen = Math.max(entry.lastSeen, change.values.lastSeen);
+        if (change.reportChanged) {
+            entry.reportName = change.values.reportName;
+            entry.writtenCount = change.values.writtenCount;
+            entry.delivered = change.values.delivered;
+        }
+    }
+
+    private boolean write(Map<Long, Entry> entries) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    entry.offset = out.size();
+                    out.writeLong(entry.fingerprint);
+                    out.writeLong(entry.firstSeen);
+                    out.writeLong(entry.lastSeen);
+                    out.writeInt(entry.count);
+                    out.writeUTF(entry.reportName);
+                    out.writeInt(entry.writtenCount);
+                    out.writeBoolean(entry.delivered);
+                }
+            } finally {
+                out.close();
+            }
+            if (tmp.renameTo(mFile)) {
+                return true;
+            }
+            tmp.delete();
+        } catch (IOException e) {
+            mErrors.report("write " + mFile.getName(), e);
+            tmp.delete();
+        }
+        return false;
+    }
+
+    /**
+     * @return the entries, read again if another process saved the index
+     * since this one last looked.
+     */
+    private ConcurrentHashMap<Long, Entry> entries() {
+        long generation = mLock.getGeneration();
+        if (!mLoaded || generation != mGeneration) {
+            // the index is replaced with a rename, so it reads whole without
+            // the lock; threads racing here apply the same content
+            apply(read(), generation);
+        }
+        return mEntries;
+    }
+
+    /**
+     * Brings the entries in line with the index on disk, keeping the
+     * changes not saved yet. An entry another process dropped stays
+     * dropped unless this process changed it.
+     */
+    private void apply(Map<Long, Entry> disk, long generation) {
+        for (Entry entry : disk.values()) {
+            Entry local = mEntries.putIfAbsent(entry.fingerprint, entry);
+            if (local != null && local != entry) {
+                synchronized (local) {
+                    local.absorb(entry);
+                }
+            }
+        }
+        for (Entry local : mEntries.values()) {
+            if (!disk.containsKey(local.fingerprint)) {
+                synchronized (local) {
+                    if (!local.isDirty()) {
+                        remove(local);
+                    }
+                    local.offset = -1;
+                }
+            }
+        }
+        mGeneration = generation;
+        mLoaded = true;
+    }
+
+    private Map<Long, Entry> read() {
+        Map<Long, Entry> entries = new HashMap<Long, Entry>();
+        if (!mFile.exists()) {
+            return entries;
+        }
+        try {
+            // read whole, so the offsets of the entries are known
+            byte[] bytes;
+            RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+            try {
+                bytes = new byte[(int) raf.length()];
+                raf.readFully(bytes);
+            } finally {
+                raf.close();
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            int version;
+            if (in.readInt() != MAGIC || (version = in.readInt()) > VERSION) {
+                return entries;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long offset = bytes.length - in.available();
+                Entry entry = new Entry(in.readLong(), in.readLong(), in.readLong(), in.readInt(), in.readUTF());
+                if (version >= 2) {
+                    entry.writtenCount = in.readInt();
+                    entry.delivered = in.readBoolean();
+                }
+                entry.offset = offset;
+                entries.put(entry.fingerprint, entry);
+            }
+        } catch (IOException e) {
+            // a damaged index only costs some duplicate reports
+            mErrors.report("read " + mFile.getName(), e);
+        }
+        return entries;
+    }
+
+    /**
+     * Drops the least recently seen entries of this process over the limit.
+     * Threads racing here may drop one too many, which only costs a report.
+     */
+    private void evictOldest() {
+        while (mEntries.size() > mMaxEntries) {
+            Entry oldest = null;
+            long oldestSeen = Long.MAX_VALUE;
+            for (Entry entry : mEntries.values()) {
+                synchronized (entry) {
+                    if (entry.lastSeen < oldestSeen) {
+                        oldest = entry;
+                        oldestSeen = entry.lastSeen;
+                    }
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            synchronized (oldest) {
+                remove(oldest);
+            }
+        }
+    }
+
+    /**
+     * Call it holding the entry.
+     */
+    private void remove(Entry entry) {
+        entry.removed = true;
+        mEntries.remove(entry.fingerprint, entry);
+    }
+
+    /**
+     * Drops the least recently seen entries until at most {@code max} are
+     * left.
+     */
+    private static void evictOldest(Map<Long, Entry> entries, int max) {
+        while (entries.size() > max) {
+            Entry oldest = null;
+            for (Entry entry : entries.values()) {
+                if (oldest == null || entry.lastSeen < oldest.lastSeen) {
+                    oldest = entry;
+                }
+            }
+            entries.remove(oldest.fingerprint);
+        }
+    }
+}
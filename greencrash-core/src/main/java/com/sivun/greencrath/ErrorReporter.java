@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+/**
+ * 内部错误的去处。
+ * <p>
+ * The storage and upload classes recover from their own failures: a
+ * damaged index is rebuilt, a failed upload is retried, a lock file that
+ * cannot be used is skipped. They still hand each failure to the
+ * {@link CrashEngine.ErrorListener} of their engine, so an app can log it
+ * where its other logs go. Without a listener the stack trace is printed
+ * to System.err.
+ */
+final class ErrorReporter {
+
+    private volatile CrashEngine.ErrorListener mListener;
+
+    void setListener(CrashEngine.ErrorListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param mode the mode of the report that was lost
+     */
+    void reportNotStored(String mode, Exception cause) {
+        CrashEngine.ErrorListener listener = mListener;
+        if (listener != null) {
+            listener.onReportNotStored(mode, cause);
+        } else {
+            cause.printStackTrace();
+        }
+    }
+
+    /**
+     * @param what what was being done, such as "read dedup.idx"
+     */
+    void report(String what, Throwable cause) {
+        CrashEngine.ErrorListener listener = mListener;
+        if (listener != null) {
+            listener.onError(what, cause);
+        } else {
+            cause.printStackTrace();
+        }
+    }
+}
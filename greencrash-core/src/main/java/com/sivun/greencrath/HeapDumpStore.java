@@ -0,0 +1,262 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 堆转储文件的压缩与保留。
+ * <p>
+ * A heap dump is written raw next to its crash report, named after it,
+ * because a process out of memory can do nothing more. On the next start
+ * {@link #processPending()} reads each raw dump once: it writes a class
+ * histogram and a gzip copy of at most the size limit, then deletes the
+ * raw dump. A dump whose compressed copy would be larger is dropped and
+ * only its histogram is kept.
+ * <p>
+ * At most a few compressed dumps are kept, the oldest are deleted first.
+ * Histograms are small and more of them are kept.
+ * <p>
+ * Processes of the app sharing the directory take turns through a
+ * {@link ProcessLock}: a dump is neither written while another process
+ * compresses, nor compressed while another process is still writing it.
+ */
+final class HeapDumpStore {
+
+    static final String DUMP_EXTENSION = ".hprof";
+    static final String COMPRESSED_EXTENSION = ".hprof.gz";
+    static final String HISTOGRAM_EXTENSION = ".histogram";
+
+    static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+    static final int DEFAULT_MAX_DUMPS = 2;
+
+    private static final int MAX_HISTOGRAMS = 10;
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final String LOCK_NAME = "heapdump";
+
+    private final File mDir;
+    // Read on the crash path, which must not wait for processPending
+    private volatile long mMaxBytes = DEFAULT_MAX_BYTES;
+    private volatile int mMaxDumps = DEFAULT_MAX_DUMPS;
+    // Held while a dump is written or processed, only ever tried
+    private final ProcessLock mLock;
+    private final ErrorReporter mErrors;
+
+    HeapDumpStore(File dir, ErrorReporter errors) {
+        mDir = dir;
+        mErrors = errors;
+        mLock = ProcessLock.forFile(new File(dir, LOCK_NAME), errors);
+    }
+
+    /**
+     * Takes the lock for writing a dump, without waiting.
+     *
+     * @return false if this or another process is writing or processing a
+     * dump.
+     */
+    boolean tryLock() {
+        return mLock.tryLock();
+    }
+
+    void unlock() {
+        mLock.unlock();
+    }
+
+    /**
+     * @param maxBytes largest compressed dump that is kept
+     * @param maxDumps compressed dumps kept, 0 keeps only histograms
+     */
+    void setLimits(long maxBytes, int maxDumps) {
+        mMaxBytes = maxBytes;
+        mMaxDumps = maxDumps;
+    }
+
+    long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return where the dump belonging to a report is written.
+     */
+    File newDumpFile(File report) {
+        String name = report.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(mDir, (dot > 0 ? name.substring(0, dot) : name) + DUMP_EXTENSION);
+    }
+
+    /**
+     * @return true if a raw dump is still waiting for {@link #processPending()}.
+     */
+    boolean hasPending() {
+        return list(DUMP_EXTENSION).length > 0;
+    }
+
+    /**
+     * Compresses the raw dumps left by earlier runs, writes their histograms
+     * and applies the limits. Reads each dump once and takes a while for a
+     * large one; call it on a background thread. Does nothing while another
+     * process writes or processes a dump; its next start catches up.
+     */
+    synchronized void processPending() {
+        if (!tryLock()) {
+            return;
+        }
+        try {
+            for (File dump : list(DUMP_EXTENSION)) {
+                try {
+                    process(dump);
+                } catch (IOException e) {
+                    mErrors.report("compress " + dump.getName(), e);
+                }
+                dump.delete();
+            }
+            for (File tmp : list(TEMP_EXTENSION)) {
+                tmp.delete();
+            }
+            trim(list(COMPRESSED_EXTENSION), mMaxDumps);
+            trim(list(HISTOGRAM_EXTENSION), MAX_HISTOGRAMS);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * @return the compressed dumps and the histograms, oldest first.
+     */
+    File[] list() {
+        File[] dumps = list(COMPRESSED_EXTENSION);
+        File[] histograms = list(HISTOGRAM_EXTENSION);
+        File[] files = new File[dumps.length + histograms.length];
+        System.arraycopy(dumps, 0, files, 0, dumps.length);
+        System.arraycopy(histograms, 0, files, dumps.length, histograms.length);
+        sortByAge(files);
+        return files;
+    }
+
+    private void process(File dump) throws IOException {
+        String base = dump.getName().substring(0, dump.getName().length() - DUMP_EXTENSION.length());
+        File compressed = new File(mDir, base + COMPRESSED_EXTENSION);
+        File tmp = new File(mDir, base + COMPRESSED_EXTENSION + TEMP_EXTENSION);
+        FileOutputStream file = null;
+        GZIPOutputStream gzip = null;
+        if (mMaxDumps > 0) {
+            file = new FileOutputStream(tmp);
+            gzip = new GZIPOutputStream(new BufferedOutputStream(
+                    new LimitedOutputStream(file, mMaxBytes), 64 * 1024), 64 * 1024);
+        }
+        String histogram;
+        boolean kept = false;
+        try {
+            histogram = HprofHistogram.summarize(dump, gzip, HprofHistogram.DEFAULT_TOP_CLASSES);
+            if (gzip != null) {
+                try {
+                    gzip.close();
+                    kept = true;
+                } catch (IOException e) {
+                    // over the limit, the copy is dropped below
+                }
+            }
+        } finally {
+            if (file != null) {
+                // a failed close of the gzip stream leaves the file open
+                file.close();
+            }
+        }
+        if (kept && tmp.renameTo(compressed)) {
+            compressed.setLastModified(dump.lastModified());
+        } else {
+            tmp.delete();
+            if (mMaxDumps > 0) {
+                histogram += "Dump of " + dump.length() + " bytes not kept, compressed it is larger than "
+                        + mMaxBytes + " bytes\n";
+            }
+        }
+        File histogramFile = new File(mDir, base + HISTOGRAM_EXTENSION);
+        OutputStream out = new FileOutputStream(histogramFile);
+        try {
+            out.write(histogram.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        histogramFile.setLastModified(dump.lastModified());
+    }
+
+    private File[] list(final String extension) {
+        File[] files = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(extension);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    private static void trim(File[] files, int keep) {
+        sortByAge(files);
+        for (int i = 0; i < files.length - keep; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static void sortByAge(File[] files) {
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : x > y ? 1 : 0;
+            }
+        });
+    }
+
+    /**
+     * Fails once more than the limit was written, so a dump that compresses
+     * badly never fills the storage.
+     */
+    private static final class LimitedOutputStream extends FilterOutputStream {
+        private long mRemaining;
+        private boolean mExceeded;
+
+        LimitedOutputStream(OutputStream out, long limit) {
+            super(out);
+            mRemaining = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mExceeded || len > mRemaining) {
+                mExceeded = true;
+                throw new IOException("Compressed dump over the limit");
+            }
+            mRemaining -= len;
+            out.write(b, off, len);
+        }
+    }
+}
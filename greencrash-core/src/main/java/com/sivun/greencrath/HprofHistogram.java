@@ -0,0 +1,539 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * 堆转储的类直方图。
+ * <p>
+ * Reads an hprof file once, front to back, and counts the instances and
+ * shallow bytes per class, so most leaks can be spotted without the dump.
+ * Only the file offsets of strings are kept while reading; the names of
+ * the classes that are shown are read back at the end. Memory use stays a
+ * fixed buffer plus a few longs per class and string, whatever the size
+ * of the dump.
+ * <p>
+ * Every byte read can also be copied to a stream, so the dump is compressed
+ * in the same pass. Shallow bytes are the field and element data of the
+ * objects, without object headers; retained sizes would need the whole
+ * object graph.
+ */
+final class HprofHistogram {
+
+    static final int DEFAULT_TOP_CLASSES = 30;
+
+    // Top level record tags
+    private static final int TAG_STRING = 0x01;
+    private static final int TAG_LOAD_CLASS = 0x02;
+    private static final int TAG_HEAP_DUMP = 0x0c;
+    private static final int TAG_HEAP_DUMP_SEGMENT = 0x1c;
+
+    // Heap dump sub-record tags, including the Android ones
+    private static final int ROOT_UNKNOWN = 0xff;
+    private static final int ROOT_JNI_GLOBAL = 0x01;
+    private static final int ROOT_JNI_LOCAL = 0x02;
+    private static final int ROOT_JAVA_FRAME = 0x03;
+    private static final int ROOT_NATIVE_STACK = 0x04;
+    private static final int ROOT_STICKY_CLASS = 0x05;
+    private static final int ROOT_THREAD_BLOCK = 0x06;
+    private static final int ROOT_MONITOR_USED = 0x07;
+    private static final int ROOT_THREAD_OBJECT = 0x08;
+    private static final int CLASS_DUMP = 0x20;
+    private static final int INSTANCE_DUMP = 0x21;
+    private static final int OBJECT_ARRAY_DUMP = 0x22;
+    private static final int PRIMITIVE_ARRAY_DUMP = 0x23;
+    private static final int ROOT_INTERNED_STRING = 0x89;
+    private static final int ROOT_FINALIZING = 0x8a;
+    private static final int ROOT_DEBUGGER = 0x8b;
+    private static final int ROOT_REFERENCE_CLEANUP = 0x8c;
+    private static final int ROOT_VM_INTERNAL = 0x8d;
+    private static final int ROOT_JNI_MONITOR = 0x8e;
+    private static final int ROOT_UNREACHABLE = 0x90;
+    private static final int PRIMITIVE_ARRAY_NODATA = 0xc3;
+    private static final int HEAP_DUMP_INFO = 0xfe;
+
+    // Basic types 2 (object) and 4 to 11, by their hprof code
+    private static final int TYPE_OBJECT = 2;
+    private static final String[] ARRAY_NAMES = {null, null, null, null,
+            "boolean[]", "char[]", "float[]", "double[]", "byte[]", "short[]", "int[]", "long[]"};
+    private static final int[] TYPE_SIZES = {0, 0, 0, 0, 1, 2, 4, 8, 1, 2, 4, 8};
+
+    // A string record is kept as its offset in the file and its length
+    private static final int LENGTH_BITS = 20;
+    private static final long MAX_NAME_LENGTH = (1 << LENGTH_BITS) - 1;
+
+    // Class columns
+    private static final int COUNT = 0;
+    private static final int BYTES = 1;
+    private static final int NAME = 2;
+
+    private int mIdSize;
+    private final LongTable mStrings = new LongTable(1);
+    private final LongTable mClasses = new LongTable(3);
+    private final long[] mArrayCounts = new long[ARRAY_NAMES.length];
+    private final long[] mArrayBytes = new long[ARRAY_NAMES.length];
+    private Input mInput;
+    private String mError;
+
+    private HprofHistogram() {
+    }
+
+    /**
+     * Reads a dump and formats its histogram.
+     *
+     * @param copy receives every byte of the dump, may be null. It is no
+     *             longer written after it failed once; the dump is still
+     *             read to the end.
+     * @param top  number of classes shown
+     * @return the histogram, also when the dump was cut short.
+     */
+    static String summarize(File dump, OutputStream copy, int top) throws IOException {
+        HprofHistogram histogram = new HprofHistogram();
+        InputStream in = new FileInputStream(dump);
+        try {
+            histogram.mInput = new Input(in, copy);
+            try {
+                histogram.read();
+            } catch (IOException e) {
+                // a dump cut short by the process dying still tells a lot
+                histogram.mError = e.toString();
+                histogram.mInput.drain();
+            }
+        } finally {
+            in.close();
+        }
+        return histogram.format(dump, top);
+    }
+
+    private void read() throws IOException {
+        Input in = mInput;
+        StringBuilder format = new StringBuilder(20);
+        for (int c = in.u1(); c != 0; c = in.u1()) {
+            format.append((char) c);
+        }
+        if (!format.toString().startsWith("JAVA PROFILE")) {
+            throw new IOException("Not an hprof file");
+        }
+        mIdSize = in.u4();
+        if (mIdSize != 4 && mIdSize != 8) {
+            throw new IOException("Unsupported identifier size " + mIdSize);
+        }
+        in.idSize = mIdSize;
+        in.skip(8);
+        while (in.more()) {
+            int tag = in.u1();
+            in.skip(4);
+            long length = in.u4() & 0xffffffffL;
+            switch (tag) {
+                case TAG_STRING: {
+                    long id = in.id();
+                    if (id != 0) {
+                        long nameLength = Math.min(length - mIdSize, MAX_NAME_LENGTH);
+                        int slot = mStrings.slot(id);
+                        mStrings.values[slot] = in.position() << LENGTH_BITS | nameLength;
+                    }
+                    in.skip(length - mIdSize);
+                    break;
+                }
+                case TAG_LOAD_CLASS: {
+                    in.skip(4);
+                    long classId = in.id();
+                    in.skip(4);
+                    long nameId = in.id();
+                    if (classId != 0) {
+                        int slot = mClasses.slot(classId);
+                        mClasses.values[slot + NAME] = nameId;
+                    }
+                    break;
+                }
+                case TAG_HEAP_DUMP:
+                case TAG_HEAP_DUMP_SEGMENT:
+                    readHeapDump(in.position() + length);
+                    break;
+                default:
+                    in.skip(length);
+                    break;
+            }
+        }
+    }
+
+    private void readHeapDump(long end) throws IOException {
+        Input in = mInput;
+        int id = mIdSize;
+        while (in.position() < end) {
+            int tag = in.u1();
+            switch (tag) {
+                case ROOT_UNKNOWN:
+                case ROOT_STICKY_CLASS:
+                case ROOT_MONITOR_USED:
+                case ROOT_INTERNED_STRING:
+                case ROOT_FINALIZING:
+                case ROOT_DEBUGGER:
+                case ROOT_REFERENCE_CLEANUP:
+                case ROOT_VM_INTERNAL:
+                case ROOT_UNREACHABLE:
+                    in.skip(id);
+                    break;
+                case ROOT_JNI_GLOBAL:
+                    in.skip(2 * id);
+                    break;
+                case ROOT_JNI_LOCAL:
+                case ROOT_JAVA_FRAME:
+                case ROOT_THREAD_OBJECT:
+                case ROOT_JNI_MONITOR:
+                    in.skip(id + 8);
+                    break;
+                case ROOT_NATIVE_STACK:
+                case ROOT_THREAD_BLOCK:
+                    in.skip(id + 4);
+                    break;
+                case CLASS_DUMP:
+                    skipClassDump();
+                    break;
+                case INSTANCE_DUMP: {
+                    in.skip(id + 4);
+                    long classId = in.id();
+                    long size = in.u4() & 0xffffffffL;
+                    in.skip(size);
+                    add(classId, size);
+                    break;
+                }
+                case OBJECT_ARRAY_DUMP: {
+                    in.skip(id + 4);
+                    long size = (in.u4() & 0xffffffffL) * id;
+                    long classId = in.id();
+                    in.skip(size);
+                    add(classId, size);
+                    break;
+                }
+                case PRIMITIVE_ARRAY_DUMP:
+                case PRIMITIVE_ARRAY_NODATA: {
+                    in.skip(id + 4);
+                    long length = in.u4() & 0xffffffffL;
+                    int type = in.u1();
+                    long size = length * typeSize(type);
+                    if (tag == PRIMITIVE_ARRAY_DUMP) {
+                        in.skip(size);
+                    }
+                    mArrayCounts[type]++;
+                    mArrayBytes[type] += size;
+                    break;
+                }
+                case HEAP_DUMP_INFO:
+                    in.skip(4 + id);
+                    break;
+                default:
+                    throw new IOException("Unknown heap dump tag 0x" + Integer.toHexString(tag)
+                            + " at " + (in.position() - 1));
+            }
+        }
+    }
+
+    private void skipClassDump() throws IOException {
+        Input in = mInput;
+        int id = mIdSize;
+        // class, stack serial, super, loader, signers, domain, two reserved, instance size
+        in.skip(7 * id + 8);
+        int constants = in.u2();
+        for (int i = 0; i < constants; i++) {
+            in.skip(2);
+            in.skip(typeSize(in.u1()));
+        }
+        int statics = in.u2();
+        for (int i = 0; i < statics; i++) {
+            in.skip(id);
+            in.skip(typeSize(in.u1()));
+        }
+        in.skip(in.u2() * (id + 1));
+    }
+
+    private int typeSize(int type) throws IOException {
+        if (type == TYPE_OBJECT) {
+            return mIdSize;
+        }
+        if (type < 4 || type >= TYPE_SIZES.length) {
+            throw new IOException("Unknown basic type " + type);
+        }
+        return TYPE_SIZES[type];
+    }
+
+    private void add(long classId, long size) {
+        if (classId == 0) {
+            return;
+        }
+        int slot = mClasses.slot(classId);
+        mClasses.values[slot + COUNT]++;
+        mClasses.values[slot + BYTES] += size;
+    }
+
+    private static final class Row {
+        final String name;
+        final long nameId;
+        final long count;
+        final long bytes;
+
+        Row(String name, long nameId, long count, long bytes) {
+            this.name = name;
+            this.nameId = nameId;
+            this.count = count;
+            this.bytes = bytes;
+        }
+    }
+
+    private String format(File dump, int top) throws IOException {
+        ArrayList<Row> rows = new ArrayList<Row>();
+        long objects = 0;
+        long bytes = 0;
+        LongTable classes = mClasses;
+        for (int i = 0; i < classes.keys.length; i++) {
+            if (classes.keys[i] == 0) {
+                continue;
+            }
+            int slot = i * classes.width;
+            long count = classes.values[slot + COUNT];
+            if (count > 0) {
+                String name = classes.values[slot + NAME] == 0
+                        ? "class@0x" + Long.toHexString(classes.keys[i]) : null;
+                rows.add(new Row(name, classes.values[slot + NAME], count, classes.values[slot + BYTES]));
+            }
+        }
+        for (int type = 0; type < ARRAY_NAMES.length; type++) {
+            if (mArrayCounts[type] > 0) {
+                rows.add(new Row(ARRAY_NAMES[type], 0, mArrayCounts[type], mArrayBytes[type]));
+            }
+        }
+        for (Row row : rows) {
+            objects += row.count;
+            bytes += row.bytes;
+        }
+        Collections.sort(rows, new Comparator<Row>() {
+            @Override
+            public int compare(Row a, Row b) {
+                return a.bytes < b.bytes ? 1 : a.bytes > b.bytes ? -1 : 0;
+            }
+        });
+
+        StringBuilder out = new StringBuilder(100 * (top + 4));
+        out.append("Heap histogram of ").append(dump.getName()).append(": ")
+                .append(objects).append(" objects, ").append(bytes).append(" bytes in ")
+                .append(rows.size()).append(" classes\n");
+        if (mError != null) {
+            out.append("Incomplete, ").append(mError).append('\n');
+        }
+        out.append(pad("objects", 12)).append(pad("bytes", 14)).append("  class\n");
+        RandomAccessFile names = new RandomAccessFile(dump, "r");
+        try {
+            int shown = Math.min(top, rows.size());
+            for (int i = 0; i < shown; i++) {
+                Row row = rows.get(i);
+                out.append(pad(Long.toString(row.count), 12))
+                        .append(pad(Long.toString(row.bytes), 14))
+                        .append("  ").append(row.name != null ? row.name : readName(names, row.nameId))
+                        .append('\n');
+            }
+        } finally {
+            names.close();
+        }
+        return out.toString();
+    }
+
+    private String readName(RandomAccessFile file, long nameId) throws IOException {
+        int slot = mStrings.find(nameId);
+        if (slot < 0) {
+            return "string@0x" + Long.toHexString(nameId);
+        }
+        long packed = mStrings.values[slot];
+        byte[] name = new byte[(int) (packed & MAX_NAME_LENGTH)];
+        file.seek(packed >>> LENGTH_BITS);
+        file.readFully(name);
+        // the JVM writes class names with slashes, Android with dots
+        return new String(name, "UTF-8").replace('/', '.');
+    }
+
+    private static String pad(String value, int width) {
+        StringBuilder out = new StringBuilder(width);
+        for (int i = value.length(); i < width; i++) {
+            out.append(' ');
+        }
+        return out.append(value).toString();
+    }
+
+    /**
+     * A buffered reader of big endian values that copies what it reads.
+     */
+    private static final class Input {
+        private final InputStream mIn;
+        private OutputStream mCopy;
+        private final byte[] mBuffer = new byte[64 * 1024];
+        private int mPos;
+        private int mLimit;
+        // Position of the buffer in the file
+        private long mOffset;
+        int idSize;
+
+        Input(InputStream in, OutputStream copy) {
+            mIn = in;
+            mCopy = copy;
+        }
+
+        long position() {
+            return mOffset + mPos;
+        }
+
+        /**
+         * @return false at the end of the file.
+         */
+        boolean more() throws IOException {
+            if (mPos < mLimit) {
+                return true;
+            }
+            mOffset += mLimit;
+            mPos = 0;
+            mLimit = 0;
+            int n;
+            do {
+                n = mIn.read(mBuffer);
+            } while (n == 0);
+            if (n < 0) {
+                return false;
+            }
+            mLimit = n;
+            if (mCopy != null) {
+                try {
+                    mCopy.write(mBuffer, 0, n);
+                } catch (IOException e) {
+                    mCopy = null;
+                }
+            }
+            return true;
+        }
+
+        private void require() throws IOException {
+            if (!more()) {
+                throw new EOFException("Dump ends at " + position());
+            }
+        }
+
+        int u1() throws IOException {
+            require();
+            return mBuffer[mPos++] & 0xff;
+        }
+
+        int u2() throws IOException {
+            return u1() << 8 | u1();
+        }
+
+        int u4() throws IOException {
+            return u2() << 16 | u2();
+        }
+
+        long id() throws IOException {
+            if (idSize == 4) {
+                return u4() & 0xffffffffL;
+            }
+            return (long) u4() << 32 | (u4() & 0xffffffffL);
+        }
+
+        void skip(long count) throws IOException {
+            while (count > 0) {
+                require();
+                int n = (int) Math.min(count, mLimit - mPos);
+                mPos += n;
+                count -= n;
+            }
+        }
+
+        /**
+         * Reads, and copies, the rest of the file.
+         */
+        void drain() throws IOException {
+            mPos = mLimit;
+            while (more()) {
+                mPos = mLimit;
+            }
+        }
+    }
+
+    /**
+     * An open addressing map from a nonzero id to a few longs, without a
+     * boxed object per entry.
+     */
+    private static final class LongTable {
+        final int width;
+        long[] keys = new long[1024];
+        long[] values;
+        private int mSize;
+
+        LongTable(int width) {
+            this.width = width;
+            values = new long[keys.length * width];
+        }
+
+        /**
+         * @return the index of the first value of the id, 0 if it was not
+         * there before. Only valid until the next call.
+         */
+        int slot(long id) {
+            if (2 * (mSize + 1) > keys.length) {
+                grow();
+            }
+            int i = index(id, keys);
+            if (keys[i] == 0) {
+                keys[i] = id;
+                mSize++;
+            }
+            return i * width;
+        }
+
+        int find(long id) {
+            int i = index(id, keys);
+            return keys[i] == 0 ? -1 : i * width;
+        }
+
+        private static int index(long id, long[] keys) {
+            int mask = keys.length - 1;
+            int i = (int) ((id ^ id >>> 29) * 0x9e3779b97f4a7c15L >>> 40) & mask;
+            while (keys[i] != 0 && keys[i] != id) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[keys.length * width];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int j = index(oldKeys[i], keys);
+                    keys[j] = oldKeys[i];
+                    System.arraycopy(oldValues, i * width, values, j * width, width);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 默认的 HTTP 上报实现。
+ * <p>
+ * All reports of a batch are sent in one gzip compressed POST request. The
+ * body (before compression) is:
+ * <pre>
+ * 'G' 'C' 'B' | u8 version | u32 count
+ * count * ( UTF name | u32 length | report bytes )
+ * </pre>
+ * where UTF is the modified UTF-8 of {@link DataOutputStream#writeUTF}. Any
+ * 2xx response acknowledges the whole batch, unless it has an
+ * {@value #ACCEPTED_HEADER} header: then only that many reports from the
+ * start of the batch were stored.
+ */
+public class HttpReportSender implements ReportSender {
+
+    static final String CONTENT_TYPE = "application/x-greencrash-batch";
+    static final String ACCEPTED_HEADER = "X-GreenCrash-Accepted";
+    private static final byte[] MAGIC = {'G', 'C', 'B'};
+    private static final int VERSION = 1;
+
+    private final URL mUrl;
+    private int mConnectTimeout = 15000;
+    private int mReadTimeout = 30000;
+
+    public HttpReportSender(URL url) {
+        mUrl = url;
+    }
+
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeout = connectTimeoutMillis;
+        mReadTimeout = readTimeoutMillis;
+    }
+
+    @Override
+    public void send(List<File> reports) throws IOException {
+        byte[] body = encode(reports);
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        try {
+            connection.setConnectTimeout(mConnectTimeout);
+            connection.setReadTimeout(mReadTimeout);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setFixedLengthStreamingMode(body.length);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            int code = connection.getResponseCode();
+            drain(code < 400 ? connection.getInputStream() : connection.getErrorStream());
+            if (code < 200 || code >= 300) {
+                throw new IOException("report upload failed: HTTP " + code);
+            }
+            String accepted = connection.getHeaderField(ACCEPTED_HEADER);
+            if (accepted != null) {
+                int delivered;
+                try {
+                    delivered = Integer.parseInt(accepted.trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("bad " + ACCEPTED_HEADER + ": " + accepted);
+                }
+                if (delivered < reports.size()) {
+                    throw new PartialDeliveryException(Math.max(0, delivered),
+                            "server accepted " + delivered + " of " + reports.size() + " reports");
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Frames and compresses a batch into one request body.
+     */
+    static byte[] encode(List<File> reports) throws IOException {
+        long raw = 0;
+        for (File report : reports) {
+            raw += report.length();
+        }
+        // crash reports are text heavy and usually compress 5-10 times
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(raw / 4 + 256, 1 << 20));
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes, 8192));
+        try {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(reports.size());
+            byte[] buffer = new byte[8192];
+            for (File report : reports) {
+                out.writeUTF(report.getName());
+                out.writeInt((int) report.length());
+                InputStream in = new FileInputStream(report);
+                try {
+                    long left = report.length();
+                    int read;
+                    while (left > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, left))) > 0) {
+                        out.write(buffer, 0, read);
+                        left -= read;
+                    }
+                    if (left > 0) {
+                        throw new IOException("report changed while sending: " + report);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[512];
+            while (in.read(buffer) > 0) {
+                // let the connection be reused
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
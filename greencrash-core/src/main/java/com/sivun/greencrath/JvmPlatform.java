@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * 在普通 JVM（服务端）上运行时的环境实现。
+ * <p>
+ * Stores reports in a given directory and describes the process with what
+ * the JVM knows about itself. The fixed values are read once here; only
+ * the heap usage is read for every report.
+ */
+public class JvmPlatform implements CrashEngine.Platform {
+
+    private final File mDirectory;
+    private final String mAppName;
+    private final String mVersionName;
+    private final String mVersionCode;
+    private final String mJavaVersion;
+    private final String mOsVersion;
+    private final String mProcessors;
+    private final String mMaxMemory;
+    private final int mProcessId;
+
+    /**
+     * @param directory   where reports are stored
+     * @param appName     name of the service, stored as the package name
+     * @param versionName version of the service
+     * @param versionCode build number of the service, used by the history
+     *                    filters
+     */
+    public JvmPlatform(File directory, String appName, String versionName, int versionCode) {
+        mDirectory = directory;
+        mAppName = appName;
+        mVersionName = versionName;
+        mVersionCode = "" + versionCode;
+        mJavaVersion = System.getProperty("java.vm.name") + " " + System.getProperty("java.version");
+        mOsVersion = System.getProperty("os.name") + " " + System.getProperty("os.version")
+                + " " + System.getProperty("os.arch");
+        Runtime runtime = Runtime.getRuntime();
+        mProcessors = "" + runtime.availableProcessors();
+        mMaxMemory = "" + runtime.maxMemory();
+        mProcessId = readProcessId();
+    }
+
+    /**
+     * The runtime name is "pid@host" on the usual JVMs.
+     */
+    private static int readProcessId() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        try {
+            return Integer.parseInt(at > 0 ? name.substring(0, at) : name);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public File getReportDirectory() {
+        return mDirectory;
+    }
+
+    @Override
+    public long getAvailableBytes(File directory) {
+        return directory.getUsableSpace();
+    }
+
+    @Override
+    public void collectMetadata(ReportFields fields, long time) {
+        Runtime runtime = Runtime.getRuntime();
+        fields.put("PackageName", mAppName)
+                .put("VersionName", mVersionName)
+                .put(CrashEngine.VERSION_CODE, mVersionCode)
+                .put("JavaVersion", mJavaVersion)
+                .put("OsVersion", mOsVersion)
+                .put("Processors", mProcessors)
+                .put("MaxMemory", mMaxMemory)
+                .put("UsedMemory", "" + (runtime.totalMemory() - runtime.freeMemory()));
+    }
+
+    @Override
+    public int getProcessId() {
+        return mProcessId;
+    }
+}
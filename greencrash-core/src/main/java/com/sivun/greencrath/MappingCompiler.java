@@ -0,0 +1,327 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * 混淆映射文件编译器。
+ * <p>
+ * Compiles a ProGuard or R8 {@code mapping.txt} into the index read by
+ * {@link Retracer}. The mapping is read once; the index holds a class table
+ * sorted by obfuscated name, and per class a method table sorted by
+ * obfuscated name, with the obfuscated line range of every entry and its
+ * original range. Entries of the same name keep their mapping order, so
+ * the frames R8 inlined into one method stay innermost first. Strings are
+ * stored once in a pool. Field mappings are not needed for stack traces
+ * and are skipped.
+ * <p>
+ * Layout, all integers big endian:
+ * <pre>
+ * header   magic "GCRT", version, class count, method count,
+ *          class table offset, method table offset
+ * classes  obfuscated name, original name, source file or -1,
+ *          first method, method count
+ * methods  obfuscated name, obfuscated first and last line (0 if none),
+ *          original class or -1 for the enclosing one, original name,
+ *          original first and last line (-1 if the lines are kept)
+ * strings  unsigned 16 bit length and UTF-8 bytes each
+ * </pre>
+ * Names refer to strings by their offset in the file.
+ */
+final class MappingCompiler {
+
+    static final byte[] MAGIC = {'G', 'C', 'R', 'T'};
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int CLASS_SIZE = 20;
+    static final int METHOD_SIZE = 28;
+
+    private static final String SOURCE_FILE_ID = "\"id\":\"sourceFile\"";
+    private static final String FILE_NAME_KEY = "\"fileName\":\"";
+
+    private static final class ClassEntry {
+        final String obfuscated;
+        final String original;
+        String sourceFile;
+        final ArrayList<MethodEntry> methods = new ArrayList<MethodEntry>();
+
+        ClassEntry(String obfuscated, String original) {
+            this.obfuscated = obfuscated;
+            this.original = original;
+        }
+    }
+
+    private static final class MethodEntry {
+        String obfuscated;
+        int obfStart;
+        int obfEnd;
+        String originalClass;
+        String original;
+        int origStart = -1;
+        int origEnd = -1;
+    }
+
+    private final ArrayList<ClassEntry> mClasses = new ArrayList<ClassEntry>();
+    private final HashMap<String, Integer> mStrings = new HashMap<String, Integer>();
+    private final ArrayList<String> mStringOrder = new ArrayList<String>();
+
+    private MappingCompiler() {
+    }
+
+    /**
+     * Reads {@code mapping} and writes the index to {@code index}.
+     */
+    static void compile(File mapping, File index) throws IOException {
+        MappingCompiler compiler = new MappingCompiler();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mapping), CrashReportReader.UTF_8), 64 * 1024);
+        try {
+            compiler.read(in);
+        } finally {
+            in.close();
+        }
+        File tmp = new File(index.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 64 * 1024));
+        try {
+            compiler.write(out);
+        } finally {
+            out.close();
+        }
+        index.delete();
+        if (!tmp.renameTo(index)) {
+            throw new IOException("Cannot rename " + tmp + " to " + index);
+        }
+    }
+
+    private void read(BufferedReader in) throws IOException {
+        ClassEntry current = null;
+        int lineNumber = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.length() == 0) {
+                continue;
+            }
+            char first = line.charAt(0);
+            if (first == '#') {
+                // R8 writes the source file of the class above as a comment
+                if (current != null && line.contains(SOURCE_FILE_ID)) {
+                    current.sourceFile = jsonValue(line, FILE_NAME_KEY);
+                }
+                continue;
+            }
+            int arrow = line.indexOf(" -> ");
+            if (arrow < 0) {
+                throw new IOException("Unexpected mapping line " + lineNumber + ": " + line);
+            }
+            if (first != ' ' && first != '\t') {
+                // com.example.Foo -> a.b:
+                String obfuscated = line.substring(arrow + 4).trim();
+                if (obfuscated.endsWith(":")) {
+                    obfuscated = obfuscated.substring(0, obfuscated.length() - 1);
+                }
+                current = new ClassEntry(obfuscated, line.substring(0, arrow).trim());
+                mClasses.add(current);
+            } else if (current != null && line.indexOf('(') >= 0 && line.indexOf('(') < arrow) {
+                MethodEntry method = parseMethod(line.substring(0, arrow).trim(), lineNumber);
+                method.obfuscated = line.substring(arrow + 4).trim();
+                current.methods.add(method);
+            }
+            // a field, nothing to do for stack traces
+        }
+    }
+
+    /**
+     * Parses {@code [a:b:]type name(args)[:c[:d]]}.
+     */
+    private static MethodEntry parseMethod(String text, int lineNumber) throws IOException {
+        MethodEntry method = new MethodEntry();
+        try {
+            int open = text.indexOf('(');
+            int close = text.indexOf(')', open);
+            String head = text.substring(0, open);
+            int colon = head.indexOf(':');
+            if (colon >= 0 && Character.isDigit(head.charAt(0))) {
+                int second = head.indexOf(':', colon + 1);
+                method.obfStart = Integer.parseInt(head.substring(0, colon));
+                method.obfEnd = Integer.parseInt(head.substring(colon + 1, second));
+                head = head.substring(second + 1);
+            }
+            String name = head.substring(head.lastIndexOf(' ') + 1);
+            int dot = name.lastIndexOf('.');
+            if (dot >= 0) {
+                // inlined from another class
+                method.originalClass = name.substring(0, dot);
+                name = name.substring(dot + 1);
+            }
+            method.original = name;
+            String tail = text.substring(close + 1);
+            if (tail.startsWith(":")) {
+                int colon2 = tail.indexOf(':', 1);
+                if (colon2 < 0) {
+                    method.origStart = Integer.parseInt(tail.substring(1));
+                    method.origEnd = method.origStart;
+                } else {
+                    method.origStart = Integer.parseInt(tail.substring(1, colon2));
+                    method.origEnd = Integer.parseInt(tail.substring(colon2 + 1));
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Bad method mapping line " + lineNumber + ": " + text);
+        }
+        return method;
+    }
+
+    private static String jsonValue(String line, String key) {
+        int start = line.indexOf(key);
+        if (start < 0) {
+            return null;
+        }
+        start += key.length();
+        int end = line.indexOf('"', start);
+        return end > start ? line.substring(start, end) : null;
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        final HashMap<String, byte[]> utf8 = new HashMap<String, byte[]>();
+        Collections.sort(mClasses, new Comparator<ClassEntry>() {
+            @Override
+            public int compare(ClassEntry a, ClassEntry b) {
+                return compareBytes(bytes(utf8, a.obfuscated), bytes(utf8, b.obfuscated));
+            }
+        });
+        int methodCount = 0;
+        for (ClassEntry entry : mClasses) {
+            // stable, so inlined frames keep their order
+            Collections.sort(entry.methods, new Comparator<MethodEntry>() {
+                @Override
+                public int compare(MethodEntry a, MethodEntry b) {
+                    return compareBytes(bytes(utf8, a.obfuscated), bytes(utf8, b.obfuscated));
+                }
+            });
+            methodCount += entry.methods.size();
+        }
+        utf8.clear();
+
+        int classOffset = HEADER_SIZE;
+        int methodOffset = classOffset + mClasses.size() * CLASS_SIZE;
+        int stringOffset = methodOffset + methodCount * METHOD_SIZE;
+        // assign string offsets in the order they are written
+        int[] next = {stringOffset};
+        for (ClassEntry entry : mClasses) {
+            string(entry.obfuscated, next);
+            string(entry.original, next);
+            string(entry.sourceFile, next);
+            for (MethodEntry method : entry.methods) {
+                string(method.obfuscated, next);
+                string(method.originalClass, next);
+                string(method.original, next);
+            }
+        }
+
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(mClasses.size());
+        out.writeInt(methodCount);
+        out.writeInt(classOffset);
+        out.writeInt(methodOffset);
+        int firstMethod = 0;
+        for (ClassEntry entry : mClasses) {
+            out.writeInt(string(entry.obfuscated, null));
+            out.writeInt(string(entry.original, null));
+            out.writeInt(string(entry.sourceFile, null));
+            out.writeInt(firstMethod);
+            out.writeInt(entry.methods.size());
+            firstMethod += entry.methods.size();
+        }
+        for (ClassEntry entry : mClasses) {
+            for (MethodEntry method : entry.methods) {
+                out.writeInt(string(method.obfuscated, null));
+                out.writeInt(method.obfStart);
+                out.writeInt(method.obfEnd);
+                out.writeInt(string(method.originalClass, null));
+                out.writeInt(string(method.original, null));
+                out.writeInt(method.origStart);
+                out.writeInt(method.origEnd);
+            }
+        }
+        for (String value : mStringOrder) {
+            byte[] bytes = value.getBytes(CrashReportReader.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @param next the next free offset while strings are assigned, null to
+     *             look up an assigned one
+     * @return the offset of the string, -1 for null.
+     */
+    private int string(String value, int[] next) throws IOException {
+        if (value == null) {
+            return -1;
+        }
+        Integer offset = mStrings.get(value);
+        if (offset == null) {
+            int length = value.getBytes(CrashReportReader.UTF_8).length;
+            if (length > 0xffff) {
+                throw new IOException("Name too long: " + value.substring(0, 100));
+            }
+            offset = next[0];
+            next[0] += 2 + length;
+            mStrings.put(value, offset);
+            mStringOrder.add(value);
+        }
+        return offset;
+    }
+
+    private static byte[] bytes(HashMap<String, byte[]> cache, String value) {
+        byte[] bytes = cache.get(value);
+        if (bytes == null) {
+            bytes = value.getBytes(CrashReportReader.UTF_8);
+            cache.put(value, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * The order of the index: unsigned bytes of the UTF-8 encoding.
+     */
+    static int compareBytes(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int x = a[i] & 0xff;
+            int y = b[i] & 0xff;
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return a.length - b.length;
+    }
+}
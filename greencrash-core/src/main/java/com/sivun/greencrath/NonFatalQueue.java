@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 非致命异常的异步上报队列。
+ * <p>
+ * Callers only hand over a small {@link Pending} record (the throwable,
+ * the thread name and the time) to a bounded queue; a single background
+ * thread drains it in batches and does all collection and disk I/O.
+ * <p>
+ * Drop policy: when the queue is full the new record is dropped and
+ * counted, the caller never blocks. The number of records dropped since the
+ * last batch is passed to the next batch so it can be written into a report.
+ */
+final class NonFatalQueue {
+
+    static final int DEFAULT_CAPACITY = 64;
+    static final int MAX_BATCH = 16;
+
+    static final class Pending {
+        final Throwable throwable;
+        final String threadName;
+        final long time;
+        final long fingerprint;
+        // reports of this fingerprint dropped by rate limiting before this one
+        final long suppressed;
+        // breadcrumbs recorded before this position belong to the report
+        final long breadcrumbEnd;
+
+        Pending(Throwable throwable, String threadName, long time, long fingerprint, long suppressed,
+                long breadcrumbEnd) {
+            this.throwable = throwable;
+            this.threadName = threadName;
+            this.time = time;
+            this.fingerprint = fingerprint;
+            this.suppressed = suppressed;
+            this.breadcrumbEnd = breadcrumbEnd;
+        }
+    }
+
+    interface BatchWriter {
+        /**
+         * Writes a batch of records on the queue thread.
+         *
+         * @param dropped records dropped since the previous batch
+         */
+        void writeBatch(List<Pending> batch, long dropped);
+    }
+
+    private final ArrayBlockingQueue<Pending> mQueue;
+    private final BatchWriter mWriter;
+    private final ErrorReporter mErrors;
+    private final AtomicLong mEnqueued = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mWritten = new AtomicLong();
+    private long mDroppedReported;
+
+    /**
+     * Creates the queue and starts its writer thread.
+     */
+    NonFatalQueue(int capacity, ErrorReporter errors, BatchWriter writer) {
+        mQueue = new ArrayBlockingQueue<Pending>(capacity);
+        mWriter = writer;
+        mErrors = errors;
+        Thread thread = new Thread("GreenCrash-NonFatal") {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Queues a throwable for reporting. Never blocks.
+     *
+     * @return false if the queue was full and the record was dropped.
+     */
+    boolean offer(Throwable e, long time, long fingerprint, long suppressed, long breadcrumbEnd) {
+        Pending pending = new Pending(e, Thread.currentThread().getName(), time, fingerprint, suppressed,
+                breadcrumbEnd);
+        if (mQueue.offer(pending)) {
+            mEnqueued.incrementAndGet();
+            return true;
+        }
+        mDropped.incrementAndGet();
+        return false;
+    }
+
+    long getEnqueuedCount() {
+        return mEnqueued.get();
+    }
+
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    long getWrittenCount() {
+        return mWritten.get();
+    }
+
+    private void drainLoop() {
+        List<Pending> batch = new ArrayList<Pending>(MAX_BATCH);
+        while (true) {
+            try {
+                batch.add(mQueue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            mQueue.drainTo(batch, MAX_BATCH - 1);
+            long dropped = mDropped.get();
+            try {
+                mWriter.writeBatch(batch, dropped - mDroppedReported);
+                mWritten.addAndGet(batch.size());
+            } catch (Throwable t) {
+                mErrors.report("write non-fatal reports", t);
+            }
+            mDroppedReported = dropped;
+            batch.clear();
+        }
+    }
+}
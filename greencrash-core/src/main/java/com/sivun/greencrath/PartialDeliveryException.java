@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.IOException;
+
+/**
+ * 部分上报成功。
+ * <p>
+ * Thrown by a {@link ReportSender} when the server stored only the first
+ * reports of a batch. Those are deleted, the rest are retried.
+ */
+public class PartialDeliveryException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int mDelivered;
+
+    /**
+     * @param delivered how many reports, from the start of the batch, were
+     *                  acknowledged
+     */
+    public PartialDeliveryException(int delivered, String message) {
+        super(message);
+        mDelivered = delivered;
+    }
+
+    public int getDelivered() {
+        return mDelivered;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 跨进程文件锁。
+ * <p>
+ * Serializes the processes of an app that share a file in the report
+ * directory, such as the retention manifest. The lock is a
+ * {@link FileLock} on a separate lock file, which is never replaced, so a
+ * shared file may be rewritten and renamed while it is held. The lock file
+ * also holds a generation number, bumped whenever the shared file is
+ * rewritten, so the other processes know to read it again rather than only
+ * its new tail.
+ * <p>
+ * A file lock belongs to the whole process and a second one on the same
+ * file fails, so there is one instance per lock file, see
+ * {@link #forFile(File, ErrorReporter)}. The threads of this process that
+ * want the lock queue on a single permit before the file lock is taken;
+ * the lock is not reentrant. When the lock file cannot be used, only the
+ * other processes are no longer kept out, as if there was a single one: a
+ * report is never lost to a locking problem.
+ */
+final class ProcessLock {
+
+    static final String EXTENSION = ".lock";
+
+    private static final Map<String, ProcessLock> sLocks = new HashMap<String, ProcessLock>();
+
+    private final File mFile;
+    private final ErrorReporter mErrors;
+    // Taken by the owner in this process, before the file lock
+    private final Semaphore mHolder = new Semaphore(1);
+    // Guards the fields below; never held while waiting for the lock
+    private final Object mState = new Object();
+    private RandomAccessFile mRaf;
+    private FileLock mLock;
+    private boolean mBroken;
+    // The channel of mRaf, read without the guard
+    private volatile FileChannel mChannel;
+
+    private ProcessLock(File file, ErrorReporter errors) {
+        mFile = file;
+        mErrors = errors;
+    }
+
+    /**
+     * @param shared the file guarded by the lock
+     * @param errors told about an unusable lock file; the first owner's is
+     *               kept
+     * @return the lock of {@code shared} in this process.
+     */
+    static ProcessLock forFile(File shared, ErrorReporter errors) {
+        File file = new File(shared.getAbsolutePath() + EXTENSION);
+        synchronized (sLocks) {
+            ProcessLock lock = sLocks.get(file.getPath());
+            if (lock == null) {
+                lock = new ProcessLock(file, errors);
+                sLocks.put(file.getPath(), lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Takes the lock without waiting.
+     *
+     * @return false if another thread or process holds it.
+     */
+    boolean tryLock() {
+        if (!mHolder.tryAcquire()) {
+            return false;
+        }
+        FileChannel channel = channel();
+        if (channel == null) {
+            return true;
+        }
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                mHolder.release();
+                return false;
+            }
+            setLock(lock);
+        } catch (OverlappingFileLockException e) {
+            overlapped(e);
+        } catch (IOException e) {
+            fail(e);
+        }
+        return true;
+    }
+
+    /**
+     * Takes the lock, waiting for other threads and processes to release
+     * it. They hold it for one file operation at a time.
+     */
+    void lock() {
+        mHolder.acquireUninterruptibly();
+        FileChannel channel = channel();
+        if (channel == null) {
+            return;
+        }
+        try {
+            setLock(channel.lock());
+        } catch (OverlappingFileLockException e) {
+            overlapped(e);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Releases the lock taken by {@link #lock()} or a successful
+     * {@link #tryLock()}.
+     */
+    void unlock() {
+        FileLock lock;
+        synchronized (mState) {
+            lock = mLock;
+            mLock = null;
+        }
+        if (lock != null) {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        mHolder.release();
+    }
+
+    /**
+     * @return the generation of the shared file, 0 if it was never
+     * rewritten or the lock file is not usable.
+     */
+    long getGeneration() {
+        FileChannel channel = channel();
+        if (channel == null) {
+            return 0;
+        }
+        // positional reads of a channel are safe from any thread
+        ByteBuffer generation = ByteBuffer.allocate(8);
+        try {
+            while (generation.hasRemaining() && channel.read(generation, generation.position()) > 0) {
+                // read the rest
+            }
+            return generation.hasRemaining() ? 0 : generation.getLong(0);
+        } catch (IOException e) {
+            fail(e);
+            return 0;
+        }
+    }
+
+    /**
+     * Records that the shared file was rewritten. Call it with the lock held.
+     *
+     * @return the new generation.
+     */
+    long nextGeneration() {
+        long generation = getGeneration() + 1;
+        FileChannel channel = channel();
+        if (channel == null) {
+            return generation;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(0, generation);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return generation;
+    }
+
+    private void setLock(FileLock lock) {
+        synchronized (mState) {
+            mLock = lock;
+        }
+    }
+
+    /**
+     * Code outside this class locked the file in this process. Other
+     * processes are kept out all the same, and the holder permit keeps the
+     * owners in this process apart, so the owner goes on.
+     */
+    private void overlapped(OverlappingFileLockException e) {
+        mErrors.report("lock " + mFile.getName(), e);
+    }
+
+    private FileChannel channel() {
+        FileChannel channel = mChannel;
+        if (channel != null) {
+            return channel;
+        }
+        synchronized (mState) {
+            if (mRaf == null && !mBroken) {
+                try {
+                    mRaf = new RandomAccessFile(mFile, "rw");
+                    mChannel = mRaf.getChannel();
+                } catch (IOException e) {
+                    mErrors.report("open " + mFile.getName(), e);
+                    mBroken = true;
+                }
+            }
+            return mChannel;
+        }
+    }
+
+    /**
+     * An interrupted thread closes the channel; it is opened again on the
+     * next use. A lock file that cannot be opened is not tried again.
+     */
+    private void fail(IOException e) {
+        mErrors.report("use " + mFile.getName(), e);
+        synchronized (mState) {
+            mLock = null;
+            if (mRaf != null) {
+                try {
+                    mRaf.close();
+                } catch (IOException ignored) {
+                    // already closed
+                }
+                mRaf = null;
+                mChannel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+/**
+ * 按崩溃指纹限流。
+ * <p>
+ * Each fingerprint gets a token bucket and a sampling ratio. A report is
+ * kept if it is sampled and a token is available; otherwise it is counted
+ * as suppressed, and the next kept report of the same fingerprint carries
+ * that count. Sampling is deterministic: with a ratio of 0.25 every fourth
+ * report is kept, starting with the first one.
+ * <p>
+ * State lives in fixed-size primitive arrays indexed by an open-addressing
+ * hash of the fingerprint, so a check never allocates. The slots are split
+ * into blocks of {@link #MAX_PROBE}; a fingerprint is probed only within
+ * its block, and each block has its own lock, so threads reporting
+ * different crashes rarely wait for each other. When all slots of a block
+ * are taken, the least recently seen one is reused.
+ * Sampling credit is fixed-point with {@link #SCALE} units per report.
+ * Tokens use {@link #TOKEN} units, so a refill of {@code r} reports per
+ * second is {@code r * 10^9} units per millisecond: slow rates like one
+ * report a day keep six significant digits.
+ */
+final class RateLimiter {
+
+    /**
+     * Returned by {@link #acquire(long, long)} when the report is dropped.
+     */
+    static final long DROP = -1;
+
+    static final int DEFAULT_SLOTS = 256;
+    static final int DEFAULT_BURST = 5;
+    static final double DEFAULT_REFILL_PER_SECOND = 0.2;
+
+    private static final long SCALE = 1000000;
+    private static final long TOKEN = SCALE * SCALE;
+    // keeps burst * TOKEN and the refill arithmetic far from overflow
+    private static final int MAX_BURST = 1000000;
+    private static final int MAX_PROBE = 8;
+
+    private final int mMask;
+    // one lock per block of MAX_PROBE slots
+    private final Object[] mStripes;
+    private final long[] mKeys;
+    private final boolean[] mUsed;
+    private final long[] mTokens;
+    private final long[] mLastRefill;
+    private final long[] mSampleCredit;
+    private final long[] mSuppressed;
+
+    // replaced as a whole, so a check never sees half of a new rate
+    private volatile Rate mRate;
+    private volatile long mSampleRate = SCALE;
+
+    private static final class Rate {
+        final long capacity;
+        final long refillPerMilli;
+        // idle time after which an empty bucket is full again
+        final long fillMillis;
+
+        Rate(long capacity, long refillPerMilli) {
+            this.capacity = capacity;
+            this.refillPerMilli = refillPerMilli;
+            this.fillMillis = refillPerMilli == 0 ? Long.MAX_VALUE : capacity / refillPerMilli + 1;
+        }
+    }
+
+    /**
+     * @param slots number of fingerprints tracked at once, rounded up to a
+     *              power of two of at least {@link #MAX_PROBE}
+     */
+    RateLimiter(int slots, int burst, double refillPerSecond) {
+        int size = MAX_PROBE;
+        while (size < slots) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mStripes = new Object[size / MAX_PROBE];
+        for (int i = 0; i < mStripes.length; i++) {
+            mStripes[i] = new Object();
+        }
+        mKeys = new long[size];
+        mUsed = new boolean[size];
+        mTokens = new long[size];
+        mLastRefill = new long[size];
+        mSampleCredit = new long[size];
+        mSuppressed = new long[size];
+        setRate(burst, refillPerSecond);
+    }
+
+    /**
+     * @param burst           reports allowed back to back
+     * @param refillPerSecond sustained reports per second, 0 for none;
+     *                        tiny positive rates are raised to one report
+     *                        in about 30 years
+     */
+    void setRate(int burst, double refillPerSecond) {
+        if (burst < 0 || burst > MAX_BURST || !(refillPerSecond >= 0) || refillPerSecond > MAX_BURST) {
+            throw new IllegalArgumentException("bad rate: " + burst + ", " + refillPerSecond);
+        }
+        mRate = new Rate(burst * TOKEN,
+                refillPerSecond == 0 ? 0 : Math.max(1, Math.round(refillPerSecond * TOKEN / 1000)));
+    }
+
+    /**
+     * @param ratio share of reports kept before the token bucket applies,
+     *              between 0 (only the first of each fingerprint) and 1 (all)
+     */
+    void setSampleRate(double ratio) {
+        mSampleRate = (long) (Math.max(0, Math.min(1, ratio)) * SCALE);
+    }
+
+    /**
+     * Decides whether a report with this fingerprint is kept.
+     *
+     * @return {@link #DROP}, or the number of reports of this fingerprint
+     * suppressed since the last one kept.
+     */
+    long acquire(long key, long now) {
+        int home = (int) (mix(key) & mMask);
+        synchronized (mStripes[home / MAX_PROBE]) {
+            return acquire(home, key, now, mRate, mSampleRate);
+        }
+    }
+
+    private long acquire(int home, long key, long now, Rate rate, long sampleRate) {
+        int slot = slotFor(home, key, now, rate.capacity, sampleRate);
+        long credit = mSampleCredit[slot] + sampleRate;
+        if (credit < SCALE) {
+            mSampleCredit[slot] = credit;
+            mSuppressed[slot]++;
+            return DROP;
+        }
+        mSampleCredit[slot] = credit - SCALE;
+
+        long elapsed = Math.max(0, now - mLastRefill[slot]);
+        mLastRefill[slot] = now;
+        long tokens = mTokens[slot];
+        if (elapsed > 0 && tokens < rate.capacity) {
+            // avoid overflow on long idle periods
+            tokens = elapsed >= rate.fillMillis
+                    ? rate.capacity : Math.min(rate.capacity, tokens + elapsed * rate.refillPerMilli);
+        }
+        if (tokens < TOKEN) {
+            mTokens[slot] = tokens;
+            mSuppressed[slot]++;
+            return DROP;
+        }
+        mTokens[slot] = tokens - TOKEN;
+        long suppressed = mSuppressed[slot];
+        mSuppressed[slot] = 0;
+        return suppressed;
+    }
+
+    /**
+     * Probes the block of {@code home}, starting there.
+     */
+    private int slotFor(int home, long key, long now, long capacity, long sampleRate) {
+        int block = home & ~(MAX_PROBE - 1);
+        int victim = home;
+        for (int i = 0; i < MAX_PROBE; i++) {
+            int slot = block + ((home + i) & (MAX_PROBE - 1));
+            if (!mUsed[slot]) {
+                return claim(slot, key, now, capacity, sampleRate);
+            }
+            if (mKeys[slot] == key) {
+                return slot;
+            }
+            if (mLastRefill[slot] < mLastRefill[victim]) {
+                victim = slot;
+            }
+        }
+        return claim(victim, key, now, capacity, sampleRate);
+    }
+
+    private int claim(int slot, long key, long now, long capacity, long sampleRate) {
+        mUsed[slot] = true;
+        mKeys[slot] = key;
+        mTokens[slot] = capacity;
+        mLastRefill[slot] = now;
+        // the first report of a fingerprint is always sampled
+        mSampleCredit[slot] = SCALE - sampleRate;
+        mSuppressed[slot] = 0;
+        return slot;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 批量崩溃报告汇总工具。
+ * <p>
+ * Aggregates directories of collected reports, binary or text, on a
+ * {@link ForkJoinPool}. Each directory is a task; its subdirectories are
+ * forked and its files are split in halves down to small batches. A batch
+ * reads every file into one buffer owned by its worker thread, indexes it
+ * with {@link CrashReportReader} and decodes only the fields it groups on,
+ * so nothing is kept per report. Batches return their groups and the
+ * groups are merged while joining, so workers share no state.
+ * <p>
+ * Reports are grouped by crash fingerprint, version code and device model.
+ * Reports written without a fingerprint get one computed from their stack
+ * trace. The report time is the modification time of the file, like in the
+ * crash history; keep it when copying the files.
+ * <pre>
+ * java -cp greencrash-core.jar com.sivun.greencrath.ReportAggregator [-top n] [-threads n] [-tsv] dir...
+ * </pre>
+ */
+public final class ReportAggregator {
+
+    static final int DEFAULT_TOP = 50;
+
+    // Files read by one task without splitting further
+    private static final int BATCH_FILES = 32;
+    private static final String FINGERPRINT_KEY = "CrashFingerprint";
+    private static final String MODEL_KEY = "PhoneModel";
+    private static final String UNKNOWN = "?";
+
+    /**
+     * Reports sharing a fingerprint, version code and device model.
+     */
+    public static final class Group {
+        final long fingerprint;
+        final int versionCode;
+        final String model;
+        int count;
+        long firstTime = Long.MAX_VALUE;
+        long lastTime = Long.MIN_VALUE;
+        // taken from the newest report
+        String exceptionType;
+        String topFrame;
+        File sample;
+
+        Group(long fingerprint, int versionCode, String model) {
+            this.fingerprint = fingerprint;
+            this.versionCode = versionCode;
+            this.model = model;
+        }
+
+        void add(long time, String type, String frame, File file) {
+            count++;
+            firstTime = Math.min(firstTime, time);
+            if (time >= lastTime) {
+                lastTime = time;
+                exceptionType = type;
+                topFrame = frame;
+                sample = file;
+            }
+        }
+
+        void merge(Group other) {
+            count += other.count;
+            firstTime = Math.min(firstTime, other.firstTime);
+            if (other.lastTime >= lastTime) {
+                lastTime = other.lastTime;
+                exceptionType = other.exceptionType;
+                topFrame = other.topFrame;
+                sample = other.sample;
+            }
+        }
+
+        public long getFingerprint() {
+            return fingerprint;
+        }
+
+        public int getVersionCode() {
+            return versionCode;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getFirstTime() {
+            return firstTime;
+        }
+
+        public long getLastTime() {
+            return lastTime;
+        }
+
+        public String getExceptionType() {
+            return exceptionType;
+        }
+
+        public String getTopFrame() {
+            return topFrame;
+        }
+
+        /**
+         * @return the newest report of the group.
+         */
+        public File getSample() {
+            return sample;
+        }
+    }
+
+    private static final class Key {
+        final long fingerprint;
+        final int versionCode;
+        final String model;
+
+        Key(long fingerprint, int versionCode, String model) {
+            this.fingerprint = fingerprint;
+            this.versionCode = versionCode;
+            this.model = model;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return fingerprint == other.fingerprint && versionCode == other.versionCode
+                    && model.equals(other.model);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (fingerprint ^ fingerprint >>> 32) * 31 + versionCode * 17 + model.hashCode();
+        }
+    }
+
+    /**
+     * What a part of the tree adds up to.
+     */
+    private static final class Result {
+        final HashMap<Key, Group> groups = new HashMap<Key, Group>();
+        int reports;
+        int unreadable;
+
+        Result merge(Result other) {
+            reports += other.reports;
+            unreadable += other.unreadable;
+            for (Map.Entry<Key, Group> entry : other.groups.entrySet()) {
+                Group group = groups.get(entry.getKey());
+                if (group == null) {
+                    groups.put(entry.getKey(), entry.getValue());
+                } else {
+                    group.merge(entry.getValue());
+                }
+            }
+            return this;
+        }
+    }
+
+    // One read buffer per worker thread, grown to the largest report seen
+    private static final ThreadLocal<byte[][]> BUFFER = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][]{new byte[64 * 1024]};
+        }
+    };
+
+    private final ForkJoinPool mPool;
+    private int mReports;
+    private int mUnreadable;
+
+    /**
+     * @param threads worker threads, usually the number of cores
+     */
+    public ReportAggregator(int threads) {
+        mPool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Reads every report below the directories.
+     *
+     * @return the groups, most reports first.
+     */
+    public List<Group> aggregate(File... directories) {
+        Result total = new Result();
+        for (File directory : directories) {
+            total.merge(mPool.invoke(new DirectoryTask(directory)));
+        }
+        mReports = total.reports;
+        mUnreadable = total.unreadable;
+        ArrayList<Group> groups = new ArrayList<Group>(total.groups.values());
+        Collections.sort(groups, new Comparator<Group>() {
+            @Override
+            public int compare(Group a, Group b) {
+                if (a.count != b.count) {
+                    return a.count < b.count ? 1 : -1;
+                }
+                return a.lastTime < b.lastTime ? 1 : a.lastTime > b.lastTime ? -1 : 0;
+            }
+        });
+        return groups;
+    }
+
+    /**
+     * @return the number of reports read by the last {@link #aggregate}.
+     */
+    public int getReportCount() {
+        return mReports;
+    }
+
+    /**
+     * @return the number of files that could not be read as reports.
+     */
+    public int getUnreadableCount() {
+        return mUnreadable;
+    }
+
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    private static boolean isReport(String name) {
+        return name.endsWith(CrashReportWriter.FILE_EXTENSION) || name.endsWith(".txt");
+    }
+
+    private static final class DirectoryTask extends RecursiveTask<Result> {
+        // never serialized, ForkJoinTask only happens to be Serializable
+        private static final long serialVersionUID = 1L;
+
+        private final File mDir;
+
+        DirectoryTask(File dir) {
+            mDir = dir;
+        }
+
+        @Override
+        protected Result compute() {
+            File[] entries = mDir.listFiles();
+            Result result = new Result();
+            if (entries == null) {
+                return result;
+            }
+            ArrayList<File> files = new ArrayList<File>(entries.length);
+            ArrayList<DirectoryTask> subdirs = new ArrayList<DirectoryTask>();
+            for (File entry : entries) {
+                if (entry.isDirectory()) {
+                    DirectoryTask task = new DirectoryTask(entry);
+                    task.fork();
+                    subdirs.add(task);
+                } else if (isReport(entry.getName())) {
+                    files.add(entry);
+                }
+            }
+            File[] reports = files.toArray(new File[files.size()]);
+            result.merge(new BatchTask(reports, 0, reports.length).compute());
+            for (DirectoryTask task : subdirs) {
+                result.merge(task.join());
+            }
+            return result;
+        }
+    }
+
+    private static final class BatchTask extends RecursiveTask<Result> {
+        private static final long serialVersionUID = 1L;
+
+        private final File[] mFiles;
+        private final int mFrom;
+        private final int mTo;
+
+        BatchTask(File[] files, int from, int to) {
+            mFiles = files;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected Result compute() {
+            if (mTo - mFrom > BATCH_FILES) {
+                int mid = (mFrom + mTo) >>> 1;
+                BatchTask left = new BatchTask(mFiles, mFrom, mid);
+                left.fork();
+                Result right = new BatchTask(mFiles, mid, mTo).compute();
+                return right.merge(left.join());
+            }
+            Result result = new Result();
+            for (int i = mFrom; i < mTo; i++) {
+                try {
+                    add(result, mFiles[i]);
+                    result.reports++;
+                } catch (IOException e) {
+                    result.unreadable++;
+                }
+            }
+            return result;
+        }
+
+        private static void add(Result result, File file) throws IOException {
+            CrashReportReader report = read(file);
+            if (report.getFieldCount() == 0) {
+                throw new IOException("Not a report: " + file);
+            }
+            String stackTrace = report.getValue(CrashEngine.STACK_TRACE_KEY);
+            long fingerprint;
+            String hex = report.getValue(FINGERPRINT_KEY);
+            if (hex != null && hex.length() == 16) {
+                fingerprint = parseHex(hex);
+            } else {
+                fingerprint = CrashFingerprint.compute(stackTrace != null ? stackTrace : "");
+            }
+            String model = report.getValue(MODEL_KEY);
+            Key key = new Key(fingerprint,
+                    CrashSummary.parseVersionCode(report.getValue(CrashEngine.VERSION_CODE)),
+                    model != null ? model.trim() : UNKNOWN);
+            Group group = result.groups.get(key);
+            if (group == null) {
+                group = new Group(key.fingerprint, key.versionCode, key.model);
+                result.groups.put(key, group);
+            }
+            long time = file.lastModified();
+            if (group.count == 0 || time >= group.lastTime) {
+                // only the newest report of a group is summarized
+                CrashSummary summary = CrashSummary.fromReport(file, time, null, null, stackTrace);
+                group.add(time, summary.getExceptionType(), summary.getTopFrame(), file);
+            } else {
+                group.add(time, null, null, null);
+            }
+        }
+
+        /**
+         * Reads a report into the buffer of the worker thread.
+         */
+        private static CrashReportReader read(File file) throws IOException {
+            byte[][] holder = BUFFER.get();
+            long length = file.length();
+            if (length > Integer.MAX_VALUE / 2) {
+                throw new IOException("Report too large: " + file);
+            }
+            if (holder[0].length < length) {
+                holder[0] = new byte[(int) Math.max(length, holder[0].length * 2L)];
+            }
+            byte[] buffer = holder[0];
+            int size = 0;
+            InputStream in = new FileInputStream(file);
+            try {
+                int n;
+                while (size < buffer.length && (n = in.read(buffer, size, buffer.length - size)) > 0) {
+                    size += n;
+                }
+            } finally {
+                in.close();
+            }
+            return CrashReportReader.wrap(buffer, 0, size);
+        }
+
+        private static long parseHex(String hex) {
+            return Long.parseLong(hex.substring(0, 8), 16) << 32 | Long.parseLong(hex.substring(8), 16);
+        }
+    }
+
+    /**
+     * Prints the groups as a ranked table, or as tab separated values.
+     */
+    public static void print(List<Group> groups, int top, boolean tsv, PrintStream out) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        int shown = Math.min(top, groups.size());
+        if (tsv) {
+            out.println("rank\tcount\tfirst\tlast\tversion\tmodel\tfingerprint\texception\ttop_frame\tsample");
+        }
+        for (int i = 0; i < shown; i++) {
+            Group group = groups.get(i);
+            String first = format.format(new Date(group.firstTime));
+            String last = format.format(new Date(group.lastTime));
+            String fingerprint = CrashFingerprint.toHex(group.fingerprint);
+            if (tsv) {
+                out.println((i + 1) + "\t" + group.count + "\t" + first + "\t" + last + "\t" + group.versionCode
+                        + "\t" + group.model + "\t" + fingerprint + "\t" + group.exceptionType
+                        + "\t" + group.topFrame + "\t" + group.sample);
+                continue;
+            }
+            out.println(String.format(Locale.US, "%4d %7d  %s .. %s  v%-6d %-20s %s  %s",
+                    i + 1, group.count, first, last, group.versionCode, group.model, fingerprint,
+                    group.exceptionType));
+            if (group.topFrame.length() > 0) {
+                out.println("                  at " + group.topFrame);
+            }
+            out.println("                  e.g. " + group.sample);
+        }
+    }
+
+    public static void main(String[] args) {
+        int top = DEFAULT_TOP;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean tsv = false;
+        ArrayList<File> dirs = new ArrayList<File>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-top")) {
+                    top = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-threads")) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-tsv")) {
+                    tsv = true;
+                } else {
+                    dirs.add(new File(args[i]));
+                }
+            }
+        } catch (RuntimeException e) {
+            dirs.clear();
+        }
+        if (dirs.isEmpty()) {
+            System.err.println("Usage: ReportAggregator [-top n] [-threads n] [-tsv] dir...");
+            System.exit(2);
+        }
+        long start = System.nanoTime();
+        ReportAggregator aggregator = new ReportAggregator(threads);
+        List<Group> groups = aggregator.aggregate(dirs.toArray(new File[dirs.size()]));
+        aggregator.shutdown();
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.err.println(aggregator.getReportCount() + " reports in " + groups.size() + " groups, "
+                + aggregator.getUnreadableCount() + " unreadable, " + millis + " ms on " + threads + " threads");
+        print(groups, top, tsv, System.out);
+    }
+}
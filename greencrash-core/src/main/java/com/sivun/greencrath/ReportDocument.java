@@ -0,0 +1,328 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * 报告查看器使用的按行索引的文档模型。
+ * <p>
+ * The report file stays memory mapped; this class only keeps the byte range
+ * of every line and decodes a line when it is shown. Lines are grouped into
+ * sections: one for all single line fields (the metadata), then one per
+ * multi-line field, which is split further at every {@code Caused by:},
+ * {@code Suppressed:} and thread header so each cause and each thread can be
+ * collapsed on its own.
+ * <p>
+ * Building the index and {@link #find(String, int)} walk the whole file and
+ * belong on a background thread; {@link #getLine(int)} is cheap.
+ * <p>
+ * With a {@link Retracer} the lines of multi-line fields and the section
+ * titles are deobfuscated when they are shown, and found by their
+ * deobfuscated text.
+ */
+final class ReportDocument {
+
+    static final String METADATA_TITLE = "Metadata";
+
+    // longer lines are cut when shown
+    private static final int MAX_LINE_BYTES = 4096;
+    private static final int MAX_TITLE_CHARS = 120;
+
+    private final CrashReportReader mReader;
+    private final ByteBuffer mData;
+    private final Retracer mRetracer;
+
+    private int mLineCount;
+    private int[] mLineStart = new int[256];
+    private int[] mLineEnd = new int[256];
+    // field whose key is shown in front of the line, or -1
+    private int[] mLineLabel = new int[256];
+    private int[] mLineSection = new int[256];
+
+    private int mSectionCount;
+    private String[] mSectionTitles = new String[16];
+    private int[] mSectionStart = new int[16];
+
+    private ReportDocument(CrashReportReader reader, Retracer retracer) {
+        mReader = reader;
+        mData = reader.getData();
+        mRetracer = retracer;
+        index();
+    }
+
+    static ReportDocument load(File file) throws IOException {
+        return load(file, null);
+    }
+
+    /**
+     * @param retracer deobfuscates the traces, may be null
+     */
+    static ReportDocument load(File file, Retracer retracer) throws IOException {
+        return new ReportDocument(CrashReportReader.open(file), retracer);
+    }
+
+    int getLineCount() {
+        return mLineCount;
+    }
+
+    int getSectionCount() {
+        return mSectionCount;
+    }
+
+    String getSectionTitle(int section) {
+        return mSectionTitles[section];
+    }
+
+    /**
+     * @return the first line of a section.
+     */
+    int getSectionStart(int section) {
+        return mSectionStart[section];
+    }
+
+    /**
+     * @return the line after the last line of a section.
+     */
+    int getSectionEnd(int section) {
+        return section + 1 < mSectionCount ? mSectionStart[section + 1] : mLineCount;
+    }
+
+    int getSectionOf(int line) {
+        return mLineSection[line];
+    }
+
+    String getLine(int line) {
+        int start = mLineStart[line];
+        int end = Math.min(mLineEnd[line], start + MAX_LINE_BYTES);
+        String text = decode(start, end);
+        int label = mLineLabel[line];
+        if (label < 0 && mRetracer != null) {
+            text = mRetracer.retraceLine(text);
+        }
+        if (end < mLineEnd[line]) {
+            text += " …";
+        }
+        return label >= 0 ? mReader.getKey(label) + "=" + text : text;
+    }
+
+    /**
+     * Finds the lines containing {@code query}, ignoring ASCII case.
+     *
+     * @return matching line numbers in ascending order, at most
+     * {@code maxResults} of them.
+     */
+    int[] find(String query, int maxResults) {
+        byte[] needle = foldCase(query.getBytes(CrashReportReader.UTF_8));
+        String lowerQuery = query.toLowerCase(Locale.US);
+        int[] matches = new int[16];
+        int count = 0;
+        if (needle.length == 0) {
+            return new int[0];
+        }
+        for (int line = 0; line < mLineCount && count < maxResults; line++) {
+            int label = mLineLabel[line];
+            boolean found = contains(mLineStart[line], mLineEnd[line], needle)
+                    || (label >= 0 && contains(mReader.getKeyOffset(label),
+                    mReader.getKeyOffset(label) + mReader.getKeyLength(label), needle));
+            if (!found && label < 0 && mRetracer != null) {
+                found = getLine(line).toLowerCase(Locale.US).contains(lowerQuery);
+            }
+            if (found) {
+                if (count == matches.length) {
+                    matches = grow(matches, count * 2);
+                }
+                matches[count++] = line;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(matches, 0, result, 0, count);
+        return result;
+    }
+
+    private void index() {
+        int fields = mReader.getFieldCount();
+        boolean[] multiLine = new boolean[fields];
+        for (int i = 0; i < fields; i++) {
+            int start = mReader.getValueOffset(i);
+            multiLine[i] = indexOf(start, start + mReader.getValueLength(i), (byte) '\n') >= 0;
+        }
+
+        boolean metadata = false;
+        for (int i = 0; i < fields; i++) {
+            if (!multiLine[i]) {
+                if (!metadata) {
+                    addSection(METADATA_TITLE);
+                    metadata = true;
+                }
+                int start = mReader.getValueOffset(i);
+                addLine(start, start + mReader.getValueLength(i), i);
+            }
+        }
+
+        for (int i = 0; i < fields; i++) {
+            if (!multiLine[i]) {
+                continue;
+            }
+            addSection(mReader.getKey(i));
+            int start = mReader.getValueOffset(i);
+            addLines(start, start + mReader.getValueLength(i));
+        }
+
+        if (fields == 0 && mData.limit() > 0) {
+            // a text file without any key=value line
+            addSection("Report");
+            addLines(0, mData.limit());
+        }
+    }
+
+    /**
+     * Adds the lines of a multi-line value, opening a new section at each
+     * cause and thread.
+     */
+    private void addLines(int lineStart, int end) {
+        boolean first = true;
+        while (lineStart <= end) {
+            int lineEnd = indexOf(lineStart, end, (byte) '\n');
+            if (lineEnd < 0) {
+                lineEnd = end;
+            }
+            if (!first && startsSection(lineStart, lineEnd)) {
+                String title = decode(lineStart, Math.min(lineEnd, lineStart + MAX_TITLE_CHARS * 4)).trim();
+                if (mRetracer != null) {
+                    title = mRetracer.retraceLine(title);
+                }
+                addSection(title.length() > MAX_TITLE_CHARS ? title.substring(0, MAX_TITLE_CHARS) : title);
+            }
+            // a trailing newline does not make an empty last line
+            if (lineStart < end || first) {
+                addLine(lineStart, lineEnd, -1);
+            }
+            first = false;
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * A cause, a suppressed exception, or a thread of a thread dump.
+     */
+    private boolean startsSection(int start, int end) {
+        while (start < end && mData.get(start) == '\t') {
+            start++;
+        }
+        return startsWith(start, end, "Caused by: ") || startsWith(start, end, "Suppressed: ")
+                || startsWith(start, end, "Thread: ") || (start < end && mData.get(start) == '"');
+    }
+
+    private boolean startsWith(int start, int end, String prefix) {
+        int length = prefix.length();
+        if (end - start < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mData.get(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean contains(int start, int end, byte[] needle) {
+        int last = end - needle.length;
+        byte first = needle[0];
+        for (int i = start; i <= last; i++) {
+            if (foldCase(mData.get(i)) != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < needle.length && foldCase(mData.get(i + j)) == needle[j]) {
+                j++;
+            }
+            if (j == needle.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int indexOf(int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (mData.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String decode(int start, int end) {
+        ByteBuffer dup = mData.duplicate();
+        dup.limit(end);
+        dup.position(start);
+        return CrashReportReader.UTF_8.decode(dup).toString();
+    }
+
+    private void addSection(String title) {
+        if (mSectionCount == mSectionStart.length) {
+            int capacity = mSectionCount * 2;
+            String[] titles = new String[capacity];
+            System.arraycopy(mSectionTitles, 0, titles, 0, mSectionCount);
+            mSectionTitles = titles;
+            mSectionStart = grow(mSectionStart, capacity);
+        }
+        mSectionTitles[mSectionCount] = title;
+        mSectionStart[mSectionCount] = mLineCount;
+        mSectionCount++;
+    }
+
+    private void addLine(int start, int end, int label) {
+        if (mLineCount == mLineStart.length) {
+            int capacity = mLineCount * 2;
+            mLineStart = grow(mLineStart, capacity);
+            mLineEnd = grow(mLineEnd, capacity);
+            mLineLabel = grow(mLineLabel, capacity);
+            mLineSection = grow(mLineSection, capacity);
+        }
+        // drop the '\r' of files written on other systems
+        if (end > start && mData.get(end - 1) == '\r') {
+            end--;
+        }
+        mLineStart[mLineCount] = start;
+        mLineEnd[mLineCount] = end;
+        mLineLabel[mLineCount] = label;
+        mLineSection[mLineCount] = mSectionCount - 1;
+        mLineCount++;
+    }
+
+    private static byte foldCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte[] foldCase(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = foldCase(bytes[i]);
+        }
+        return bytes;
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+/**
+ * 报告字段的写入接口。
+ * <p>
+ * What a {@link CrashEngine.Platform} gets to add its own fields to a
+ * report, without depending on how reports are built.
+ */
+public interface ReportFields {
+
+    /**
+     * Sets a field, replacing an earlier value for the same key. A null
+     * value is stored as an empty string.
+     */
+    ReportFields put(String key, String value);
+}
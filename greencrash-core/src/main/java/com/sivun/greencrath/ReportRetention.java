@@ -0,0 +1,467 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * 崩溃报告目录的保留策略。
+ * <p>
+ * Keeps the report directory below a total size, a file count and an age.
+ * Stored reports are tracked in an append-only manifest, so eviction picks
+ * the oldest report without listing and sorting the directory. The directory
+ * is only listed once, when no manifest exists yet. The manifest is compacted
+ * when it holds many more records than live reports.
+ */
+final class ReportRetention {
+
+    static final String MANIFEST_NAME = "reports.mf";
+    static final String TEMP_EXTENSION = ".tmp";
+
+    // A temporary file this old was left by a process that died writing it
+    private static final long STALE_TEMP_MILLIS = 10 * 60 * 1000;
+
+    private static final byte OP_ADD = 'A';
+    private static final byte OP_DELETE = 'D';
+
+    /**
+     * Told about every report that is deleted, including evictions.
+     */
+    interface RemovalListener {
+        void onReportRemoved(String name);
+    }
+
+    private static final class Item {
+        final String name;
+        final long size;
+        final long time;
+
+        Item(String name, long size, long time) {
+            this.name = name;
+            this.size = size;
+            this.time = time;
+        }
+    }
+
+    private final File mDir;
+    private final File mManifest;
+    private long mMaxBytes;
+    private int mMaxFiles;
+    private long mMaxAge;
+    private RemovalListener mListener;
+
+    // Reports in the order they were written, oldest first.
+    private LinkedHashMap<String, Item> mItems;
+    private long mTotalBytes;
+    private int mRecordCount;
+
+    // Shared with the other processes of the app
+    private final ProcessLock mLock;
+    // Manifest bytes read or written by this process, and their generation
+    private long mKnownLength;
+    private long mGeneration;
+    // Reports added while another process held the lock
+    private final ArrayList<Item> mPending = new ArrayList<Item>();
+    private final ErrorReporter mErrors;
+
+    ReportRetention(File dir, long maxBytes, int maxFiles, long maxAgeMillis, ErrorReporter errors) {
+        mDir = dir;
+        mManifest = new File(dir, MANIFEST_NAME);
+        mErrors = errors;
+        mLock = ProcessLock.forFile(mManifest, errors);
+        setLimits(maxBytes, maxFiles, maxAgeMillis);
+    }
+
+    File getDirectory() {
+        return mDir;
+    }
+
+    synchronized void setRemovalListener(RemovalListener listener) {
+        mListener = listener;
+    }
+
+    synchronized void setLimits(long maxBytes, int maxFiles, long maxAgeMillis) {
+        mMaxBytes = maxBytes;
+        mMaxFiles = maxFiles;
+        mMaxAge = maxAgeMillis;
+    }
+
+    /**
+     * Registers a report that has just been written and evicts the oldest
+     * reports until the limits hold again. The new report is always kept.
+     * <p>
+     * This is on the crash path and never waits for another process: if one
+     * holds the lock, the report is only remembered and written to the
+     * manifest by the next call that gets the lock, or found by
+     * {@link #reconcile()} if this process dies first.
+     */
+    synchronized void add(File report, long time) {
+        Item item = new Item(report.getName(), report.length(), time);
+        if (!mLock.tryLock()) {
+            mPending.add(item);
+            if (mItems != null) {
+                put(item);
+            }
+            return;
+        }
+        try {
+            sync();
+            put(item);
+            append(OP_ADD, item);
+            trim(time);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes a stored report.
+     */
+    synchronized boolean remove(String name) {
+        mLock.lock();
+        try {
+            sync();
+            Item item = mItems.remove(name);
+            if (item == null) {
+                return false;
+            }
+            mTotalBytes -= item.size;
+            new File(mDir, name).delete();
+            append(OP_DELETE, item);
+            notifyRemoved(name);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes all stored reports.
+     */
+    synchronized void removeAll() {
+        mLock.lock();
+        try {
+            sync();
+            for (Item item : mItems.values()) {
+                new File(mDir, item.name).delete();
+                notifyRemoved(item.name);
+            }
+            mItems.clear();
+            mTotalBytes = 0;
+            compact();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the names of the stored reports, oldest first, including the
+     * ones written by other processes.
+     */
+    synchronized String[] list() {
+        mLock.lock();
+        try {
+            sync();
+            return mItems.keySet().toArray(new String[mItems.size()]);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    synchronized long totalBytes() {
+        mLock.lock();
+        try {
+            sync();
+            return mTotalBytes;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Brings the manifest in line with the directory: adds reports missing
+     * from it, such as those of a process that died before it could record
+     * them, drops reports deleted behind its back, and deletes temporary
+     * files left by interrupted writes. Lists the directory; call it once
+     * at startup, on a background thread.
+     */
+    synchronized void reconcile() {
+        mLock.lock();
+        try {
+            sync();
+            long now = System.currentTimeMillis();
+            File[] files = mDir.listFiles();
+            if (files == null) {
+                return;
+            }
+            Arrays.sort(files, AGE_ORDER);
+            HashSet<String> names = new HashSet<String>();
+            boolean changed = false;
+            for (File file : files) {
+                String name = file.getName();
+                if (isReportName(name)) {
+                    names.add(name);
+                    if (!mItems.containsKey(name)) {
+                        put(new Item(name, file.length(), file.lastModified()));
+                        changed = true;
+                    }
+                } else if (name.endsWith(TEMP_EXTENSION) && now - file.lastModified() > STALE_TEMP_MILLIS) {
+                    file.delete();
+                }
+            }
+            Iterator<Item> it = mItems.values().iterator();
+            while (it.hasNext()) {
+                Item item = it.next();
+                if (!names.contains(item.name)) {
+                    it.remove();
+                    mTotalBytes -= item.size;
+                    notifyRemoved(item.name);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                compact();
+                trim(now);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void put(Item item) {
+        Item old = mItems.remove(item.name);
+        if (old != null) {
+            mTotalBytes -= old.size;
+        }
+        mItems.put(item.name, item);
+        mTotalBytes += item.size;
+    }
+
+    private void trim(long now) {
+        Iterator<Item> it = mItems.values().iterator();
+        while (mItems.size() > 1 && it.hasNext()) {
+            Item oldest = it.next();
+            boolean over = mItems.size() > mMaxFiles || mTotalBytes > mMaxBytes
+                    || (mMaxAge > 0 && now - oldest.time > mMaxAge);
+            if (!over) {
+                break;
+            }
+            it.remove();
+            mTotalBytes -= oldest.size;
+            new File(mDir, oldest.name).delete();
+            append(OP_DELETE, oldest);
+            notifyRemoved(oldest.name);
+        }
+        if (mRecordCount > 2 * mItems.size() + 32) {
+            compact();
+        }
+    }
+
+    private void notifyRemoved(String name) {
+        if (mListener != null) {
+            mListener.onReportRemoved(name);
+        }
+    }
+
+    /**
+     * Catches up with the manifest, with the lock held: reads it again if
+     * another process rewrote it, otherwise only the records appended since
+     * this process last looked. Then writes the reports that could not be
+     * recorded earlier.
+     */
+    private void sync() {
+        long generation = mLock.getGeneration();
+        if (mItems == null || generation != mGeneration) {
+            mItems = new LinkedHashMap<String, Item>();
+            mTotalBytes = 0;
+            mRecordCount = 0;
+            mKnownLength = 0;
+            mGeneration = generation;
+            if (mManifest.exists()) {
+                load();
+            } else {
+                scan();
+            }
+            trim(System.currentTimeMillis());
+        } else if (mManifest.length() > mKnownLength) {
+            load();
+        }
+        if (!mPending.isEmpty()) {
+            for (Item item : mPending) {
+                put(item);
+                append(OP_ADD, item);
+            }
+            mPending.clear();
+        }
+    }
+
+    /**
+     * Reads the manifest from where this process stopped.
+     */
+    private void load() {
+        boolean damaged = false;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mManifest)));
+            try {
+                long skipped = 0;
+                while (skipped < mKnownLength) {
+                    long n = in.skip(mKnownLength - skipped);
+                    if (n <= 0) {
+                        throw new EOFException();
+                    }
+                    skipped += n;
+                }
+                int op;
+                while ((op = in.read()) >= 0) {
+                    String name = in.readUTF();
+                    Item item = new Item(name, in.readLong(), in.readLong());
+                    mRecordCount++;
+                    mKnownLength += 1 + 2 + utfLength(name) + 16;
+                    Item old = mItems.remove(item.name);
+                    if (old != null) {
+                        mTotalBytes -= old.size;
+                    }
+                    if (op == OP_ADD) {
+                        mItems.put(item.name, item);
+                        mTotalBytes += item.size;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            // a record cut short by process death
+            damaged = true;
+        } catch (IOException e) {
+            mErrors.report("read " + MANIFEST_NAME, e);
+            damaged = true;
+        }
+        if (damaged) {
+            compact();
+        }
+    }
+
+    /**
+     * Builds the manifest from the directory content. Only happens once, for
+     * directories written before the manifest existed.
+     */
+    private void scan() {
+        File[] files = mDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return isReportName(name);
+            }
+        });
+        if (files != null) {
+            Arrays.sort(files, AGE_ORDER);
+            for (File file : files) {
+                put(new Item(file.getName(), file.length(), file.lastModified()));
+            }
+        }
+        compact();
+    }
+
+    private static final Comparator<File> AGE_ORDER = new Comparator<File>() {
+        @Override
+        public int compare(File left, File right) {
+            long l = left.lastModified();
+            long r = right.lastModified();
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    static boolean isReportName(String name) {
+        return name.endsWith(CrashReportWriter.FILE_EXTENSION) || name.endsWith(".txt");
+    }
+
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += c >= 1 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return length;
+    }
+
+    private void append(byte op, Item item) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            writeRecord(new DataOutputStream(bytes), op, item);
+            FileOutputStream out = new FileOutputStream(mManifest, true);
+            try {
+                bytes.writeTo(out);
+            } finally {
+                out.close();
+            }
+            mRecordCount++;
+            mKnownLength += bytes.size();
+        } catch (IOException e) {
+            mErrors.report("append to " + MANIFEST_NAME, e);
+        }
+    }
+
+    /**
+     * Rewrites the manifest with one record per live report, and tells the
+     * other processes to read it again.
+     */
+    private void compact() {
+        File tmp = new File(mManifest.getPath() + TEMP_EXTENSION);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * (mItems.size() + 1));
+            DataOutputStream data = new DataOutputStream(bytes);
+            for (Item item : mItems.values()) {
+                writeRecord(data, OP_ADD, item);
+            }
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                bytes.writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (tmp.renameTo(mManifest)) {
+                mRecordCount = mItems.size();
+                mKnownLength = bytes.size();
+                mGeneration = mLock.nextGeneration();
+            } else {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            mErrors.report("rewrite " + MANIFEST_NAME, e);
+            tmp.delete();
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte op, Item item) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(item.name);
+        out.writeLong(item.size);
+        out.writeLong(item.time);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 崩溃报告上报接口。
+ * <p>
+ * Implementations are always called from a background thread. A batch
+ * counts as delivered only when {@link #send(List)} returns normally; the
+ * reports are deleted afterwards. Throwing leaves them on disk to be retried,
+ * except for the reports a {@link PartialDeliveryException} counts as
+ * delivered.
+ *
+ * @see HttpReportSender
+ */
+public interface ReportSender {
+
+    /**
+     * Delivers a batch of stored report files.
+     *
+     * @param reports report files, oldest first
+     * @throws IOException if the batch was not acknowledged, a
+     *                     {@link PartialDeliveryException} if only its
+     *                     start was
+     */
+    void send(List<File> reports) throws IOException;
+}
@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 后台批量上报。
+ * <p>
+ * Runs on its own background thread. Pending reports are grouped into
+ * batches and handed to a {@link ReportSender}. A failed batch is retried
+ * with exponential backoff and full jitter; reports are deleted only after
+ * their batch was acknowledged. Repeated {@link #schedule()} calls while a
+ * run is pending are coalesced.
+ */
+final class ReportUploader {
+
+    static final int MAX_BATCH_FILES = 20;
+    static final long MAX_BATCH_BYTES = 256 * 1024;
+    static final int MAX_ATTEMPTS = 5;
+    static final long BASE_BACKOFF_MILLIS = 2000;
+    static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    interface Listener {
+        /**
+         * Called on the upload thread before a batch is sent; may rewrite
+         * the reports.
+         */
+        void beforeSend(List<File> reports);
+
+        /**
+         * Called once the reports were acknowledged, before they are deleted.
+         */
+        void onDelivered(List<File> reports);
+    }
+
+    private final ReportRetention mRetention;
+    private final ReportSender mSender;
+    private final Listener mListener;
+    private final ErrorReporter mErrors;
+    private final ExecutorService mExecutor;
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final Random mRandom = new Random();
+    private long mBaseBackoff = BASE_BACKOFF_MILLIS;
+    private long mMaxBackoff = MAX_BACKOFF_MILLIS;
+
+    ReportUploader(ReportRetention retention, ReportSender sender, ErrorReporter errors, Listener listener) {
+        mRetention = retention;
+        mSender = sender;
+        mErrors = errors;
+        mListener = listener;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "GreenCrash-Upload");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Requests an upload of all pending reports. Never blocks.
+     */
+    void schedule() {
+        if (!mScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mScheduled.set(false);
+                uploadPending();
+            }
+        });
+    }
+
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Changes the delays between attempts, set before scheduling.
+     */
+    void setBackoff(long baseMillis, long maxMillis) {
+        mBaseBackoff = baseMillis;
+        mMaxBackoff = maxMillis;
+    }
+
+    /**
+     * Uploads all pending reports on the calling thread.
+     */
+    void uploadPending() {
+        String[] names = mRetention.list();
+        List<File> batch = new ArrayList<File>(MAX_BATCH_FILES);
+        long batchBytes = 0;
+        for (String name : names) {
+            File report = new File(mRetention.getDirectory(), name);
+            long length = report.length();
+            if (!batch.isEmpty() && (batch.size() >= MAX_BATCH_FILES || batchBytes + length > MAX_BATCH_BYTES)) {
+                if (!sendWithRetry(batch)) {
+                    return;
+                }
+                batch.clear();
+                batchBytes = 0;
+            }
+            batch.add(report);
+            batchBytes += length;
+        }
+        if (!batch.isEmpty()) {
+            sendWithRetry(batch);
+        }
+    }
+
+    /**
+     * @return true if the batch was delivered and removed.
+     */
+    private boolean sendWithRetry(List<File> batch) {
+        mListener.beforeSend(batch);
+        List<File> pending = new ArrayList<File>(batch);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            try {
+                mSender.send(pending);
+                delivered(pending);
+                return true;
+            } catch (PartialDeliveryException e) {
+                // the acknowledged start is done, only the rest is retried
+                List<File> done = pending.subList(0, Math.min(e.getDelivered(), pending.size()));
+                delivered(new ArrayList<File>(done));
+                done.clear();
+            } catch (IOException e) {
+                mErrors.report("upload " + pending.size() + " reports", e);
+            } catch (RuntimeException e) {
+                mErrors.report("upload " + pending.size() + " reports", e);
+            }
+            if (attempt + 1 < MAX_ATTEMPTS && !sleep(backoff(attempt))) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void delivered(List<File> reports) {
+        if (reports.isEmpty()) {
+            return;
+        }
+        mListener.onDelivered(reports);
+        for (File report : reports) {
+            mRetention.remove(report.getName());
+        }
+    }
+
+    /**
+     * Full jitter: a random delay between 0 and the exponential cap.
+     */
+    private long backoff(int attempt) {
+        long cap = Math.min(mMaxBackoff, mBaseBackoff << attempt);
+        return (long) (mRandom.nextDouble() * cap);
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
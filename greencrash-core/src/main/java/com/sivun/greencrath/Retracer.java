@@ -0,0 +1,387 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * 混淆堆栈还原。
+ * <p>
+ * Deobfuscates stack traces with an index compiled once from a ProGuard or
+ * R8 mapping file by {@link #compile(File, File)}. The index is memory
+ * mapped, so opening it reads nothing; a frame costs a binary search in the
+ * class table, one in the method table of the class, and a scan of the
+ * methods sharing the obfuscated name. Nothing is decoded except the names
+ * that are printed.
+ * <p>
+ * Frames R8 inlined are expanded to one line each, innermost first. Where
+ * the mapping is ambiguous, typically ProGuard overloads without line
+ * ranges, every candidate is printed. Lines that do not look like a frame
+ * or an exception header, or whose class is not in the mapping, are kept.
+ * <p>
+ * Also usable from the command line:
+ * <pre>
+ * java -cp greencrash-core.jar com.sivun.greencrath.Retracer compile mapping.txt mapping.idx
+ * java -cp greencrash-core.jar com.sivun.greencrath.Retracer retrace mapping.idx [report.gcr|trace.txt ...]
+ * </pre>
+ */
+public final class Retracer {
+
+    private static final String[] HEADER_PREFIXES = {"Caused by: ", "Suppressed: ", "Exception in thread "};
+
+    private final ByteBuffer mIndex;
+    private final int mClassCount;
+    private final int mClassOffset;
+    private final int mMethodOffset;
+
+    private Retracer(ByteBuffer index) throws IOException {
+        mIndex = index;
+        if (index.limit() < MappingCompiler.HEADER_SIZE) {
+            throw new IOException("Not a retrace index");
+        }
+        for (int i = 0; i < MappingCompiler.MAGIC.length; i++) {
+            if (index.get(i) != MappingCompiler.MAGIC[i]) {
+                throw new IOException("Not a retrace index");
+            }
+        }
+        if (index.getInt(4) != MappingCompiler.VERSION) {
+            throw new IOException("Unsupported retrace index version " + index.getInt(4));
+        }
+        mClassCount = index.getInt(8);
+        mClassOffset = index.getInt(16);
+        mMethodOffset = index.getInt(20);
+    }
+
+    /**
+     * Compiles a {@code mapping.txt} into an index for {@link #open(File)}.
+     * Reads the whole mapping; do it at build time or once on a background
+     * thread.
+     */
+    public static void compile(File mapping, File index) throws IOException {
+        MappingCompiler.compile(mapping, index);
+    }
+
+    /**
+     * Maps an index written by {@link #compile(File, File)}.
+     */
+    public static Retracer open(File index) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(index, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new Retracer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the original name of a class, or {@code obfuscated} if the
+     * mapping does not have it.
+     */
+    public String retraceClass(String obfuscated) {
+        int entry = findClass(obfuscated.getBytes(CrashReportReader.UTF_8));
+        return entry < 0 ? obfuscated : string(mIndex.getInt(entry + 4));
+    }
+
+    /**
+     * Deobfuscates every line of a stack trace.
+     */
+    public String retrace(String stackTrace) {
+        StringBuilder out = new StringBuilder(stackTrace.length() + stackTrace.length() / 4);
+        int start = 0;
+        while (start <= stackTrace.length()) {
+            int end = stackTrace.indexOf('\n', start);
+            if (end < 0) {
+                end = stackTrace.length();
+            }
+            out.append(retraceLine(stackTrace.substring(start, end)));
+            if (end < stackTrace.length()) {
+                out.append('\n');
+            }
+            start = end + 1;
+        }
+        return out.toString();
+    }
+
+    /**
+     * Deobfuscates one line of a stack trace. An inlined or ambiguous frame
+     * becomes several lines.
+     */
+    String retraceLine(String line) {
+        int at = line.indexOf("at ");
+        if (at >= 0 && isBlank(line, 0, at) && line.endsWith(")")) {
+            return retraceFrame(line, at + 3);
+        }
+        return retraceHeader(line);
+    }
+
+    /**
+     * {@code \tat a.b.c(SourceFile:12)}
+     */
+    private String retraceFrame(String line, int start) {
+        int open = line.indexOf('(', start);
+        int dot = open < 0 ? -1 : line.lastIndexOf('.', open);
+        if (dot < start) {
+            return line;
+        }
+        int classEntry = findClass(line.substring(start, dot).getBytes(CrashReportReader.UTF_8));
+        if (classEntry < 0) {
+            return line;
+        }
+        String prefix = line.substring(0, start);
+        String source = line.substring(open + 1, line.length() - 1);
+        int lineNumber = -1;
+        int colon = source.lastIndexOf(':');
+        if (colon >= 0) {
+            try {
+                lineNumber = Integer.parseInt(source.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                // not a line number
+            }
+        }
+        String className = string(mIndex.getInt(classEntry + 4));
+        byte[] method = line.substring(dot + 1, open).getBytes(CrashReportReader.UTF_8);
+        int first = mIndex.getInt(classEntry + 12);
+        int count = mIndex.getInt(classEntry + 16);
+        int from = lowerBound(method, first, first + count);
+        int to = from;
+        while (to < first + count && compareString(mIndex.getInt(methodEntry(to)), method) == 0) {
+            to++;
+        }
+
+        // inlined frames share the line range, so all that contain the line
+        ArrayList<String> frames = new ArrayList<String>(2);
+        if (lineNumber > 0) {
+            for (int i = from; i < to; i++) {
+                int entry = methodEntry(i);
+                int obfStart = mIndex.getInt(entry + 4);
+                int obfEnd = mIndex.getInt(entry + 8);
+                if (obfStart != 0 && obfStart <= lineNumber && lineNumber <= obfEnd) {
+                    frames.add(frame(classEntry, className, entry, lineNumber, source));
+                }
+            }
+        }
+        if (frames.isEmpty()) {
+            for (int i = from; i < to; i++) {
+                int entry = methodEntry(i);
+                boolean ranged = mIndex.getInt(entry + 4) != 0;
+                String frame = frame(classEntry, className, entry, ranged ? -1 : lineNumber, source);
+                if (!frames.contains(frame)) {
+                    frames.add(frame);
+                }
+            }
+        }
+        if (frames.isEmpty()) {
+            // the method is not in the mapping, only the class is renamed
+            return prefix + className + line.substring(dot);
+        }
+        StringBuilder out = new StringBuilder(frames.size() * (prefix.length() + 80));
+        for (int i = 0; i < frames.size(); i++) {
+            if (i > 0) {
+                out.append('\n');
+            }
+            out.append(prefix).append(frames.get(i));
+        }
+        return out.toString();
+    }
+
+    /**
+     * @param lineNumber the obfuscated line, -1 if unknown or not mapped
+     */
+    private String frame(int classEntry, String className, int entry, int lineNumber, String source) {
+        int obfStart = mIndex.getInt(entry + 4);
+        int obfEnd = mIndex.getInt(entry + 8);
+        int originalClass = mIndex.getInt(entry + 12);
+        int origStart = mIndex.getInt(entry + 20);
+        int origEnd = mIndex.getInt(entry + 24);
+        int original = lineNumber;
+        if (lineNumber > 0 && origStart >= 0) {
+            // a range maps one to one, anything else to its first line
+            boolean linear = obfStart != 0 && origEnd - origStart == obfEnd - obfStart;
+            original = linear ? origStart + lineNumber - obfStart : origStart;
+        }
+        String owner = className;
+        String file;
+        if (originalClass >= 0) {
+            owner = string(originalClass);
+            file = sourceFile(owner);
+        } else {
+            int sourceFile = mIndex.getInt(classEntry + 8);
+            file = sourceFile >= 0 ? string(sourceFile) : sourceFile(owner);
+        }
+        if (source.equals("Native Method")) {
+            file = source;
+        } else if (original > 0) {
+            file = file + ":" + original;
+        }
+        return owner + "." + string(mIndex.getInt(entry + 16)) + "(" + file + ")";
+    }
+
+    /**
+     * {@code Caused by: a.b: message}
+     */
+    private String retraceHeader(String line) {
+        int start = 0;
+        while (start < line.length() && Character.isWhitespace(line.charAt(start))) {
+            start++;
+        }
+        for (String prefix : HEADER_PREFIXES) {
+            if (line.startsWith(prefix, start)) {
+                start += prefix.length();
+                if (prefix.startsWith("Exception")) {
+                    // Exception in thread "main" a.b: message
+                    int quote = line.indexOf("\" ", start);
+                    if (quote < 0) {
+                        return line;
+                    }
+                    start = quote + 2;
+                }
+                break;
+            }
+        }
+        int end = line.indexOf(':', start);
+        if (end < 0) {
+            end = line.length();
+        }
+        if (end == start || line.indexOf(' ', start) >= 0 && line.indexOf(' ', start) < end) {
+            return line;
+        }
+        int entry = findClass(line.substring(start, end).getBytes(CrashReportReader.UTF_8));
+        if (entry < 0) {
+            return line;
+        }
+        return line.substring(0, start) + string(mIndex.getInt(entry + 4)) + line.substring(end);
+    }
+
+    private static String sourceFile(String className) {
+        String name = className.substring(className.lastIndexOf('.') + 1);
+        int inner = name.indexOf('$');
+        return (inner > 0 ? name.substring(0, inner) : name) + ".java";
+    }
+
+    private static boolean isBlank(String line, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(line.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the offset of the class entry, or -1.
+     */
+    private int findClass(byte[] name) {
+        int low = 0;
+        int high = mClassCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = mClassOffset + mid * MappingCompiler.CLASS_SIZE;
+            int cmp = compareString(mIndex.getInt(entry), name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first method in {@code [from, to)} not before {@code name}.
+     */
+    private int lowerBound(byte[] name, int from, int to) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (compareString(mIndex.getInt(methodEntry(mid)), name) < 0) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    private int methodEntry(int index) {
+        return mMethodOffset + index * MappingCompiler.METHOD_SIZE;
+    }
+
+    /**
+     * Compares a pooled string with {@code key} in the order of the index.
+     */
+    private int compareString(int offset, byte[] key) {
+        int length = mIndex.getShort(offset) & 0xffff;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int x = mIndex.get(offset + 2 + i) & 0xff;
+            int y = key[i] & 0xff;
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return length - key.length;
+    }
+
+    private String string(int offset) {
+        ByteBuffer dup = mIndex.duplicate();
+        dup.position(offset + 2);
+        dup.limit(offset + 2 + (mIndex.getShort(offset) & 0xffff));
+        return CrashReportReader.UTF_8.decode(dup).toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("compile")) {
+            long start = System.nanoTime();
+            compile(new File(args[1]), new File(args[2]));
+            System.err.println("Compiled " + args[2] + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            return;
+        }
+        if (args.length < 2 || !args[0].equals("retrace")) {
+            System.err.println("Usage: Retracer compile <mapping.txt> <index>");
+            System.err.println("       Retracer retrace <index> [report.gcr|trace.txt ...]");
+            System.exit(2);
+        }
+        Retracer retracer = open(new File(args[1]));
+        if (args.length == 2) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, CrashReportReader.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.println(retracer.retraceLine(line));
+            }
+            return;
+        }
+        for (int i = 2; i < args.length; i++) {
+            CrashReportReader report = CrashReportReader.open(new File(args[i]));
+            if (report.getFieldCount() == 0) {
+                // a plain stack trace
+                System.out.println(retracer.retrace(CrashReportReader.UTF_8.decode(report.getData()).toString()));
+                continue;
+            }
+            for (int field = 0; field < report.getFieldCount(); field++) {
+                System.out.println(report.getKey(field) + "=" + retracer.retrace(report.getValue(field)));
+            }
+        }
+    }
+}
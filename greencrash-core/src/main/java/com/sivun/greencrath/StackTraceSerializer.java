@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.util.IdentityHashMap;
+
+/**
+ * 紧凑的异常堆栈序列化。
+ * <p>
+ * Walks the throwable graph once, in the same layout as
+ * {@link Throwable#printStackTrace()}: causes and suppressed exceptions are
+ * printed after their enclosing trace, frames shared with it are folded into
+ * {@code ... N more}, and a throwable seen twice is printed as a circular
+ * reference. On top of that, a run of frames repeated by deep recursion is
+ * printed once with a repeat count, and the output is capped per throwable
+ * and per report.
+ * <p>
+ * Limits are counted in chars, which for stack traces is close to the
+ * encoded UTF-8 size.
+ */
+final class StackTraceSerializer {
+
+    static final int DEFAULT_MAX_TRACE_CHARS = 16 * 1024;
+    static final int DEFAULT_MAX_REPORT_CHARS = 64 * 1024;
+
+    // longest recursion cycle that is detected, in frames
+    private static final int MAX_CYCLE = 8;
+    // a cycle is collapsed once it repeats this many times
+    private static final int MIN_REPEATS = 3;
+
+    private static boolean sHasSuppressed = true;
+
+    private final int mMaxTraceChars;
+    private final int mMaxReportChars;
+
+    /**
+     * @param maxTraceChars  cap for one throwable, its message and frames
+     * @param maxReportChars cap for the whole output
+     */
+    StackTraceSerializer(int maxTraceChars, int maxReportChars) {
+        mMaxTraceChars = maxTraceChars;
+        mMaxReportChars = maxReportChars;
+    }
+
+    String serialize(Throwable e) {
+        StringBuilder out = new StringBuilder(Math.min(mMaxReportChars, 4096));
+        serialize(e, out);
+        return out.toString();
+    }
+
+    void serialize(Throwable e, StringBuilder out) {
+        int limit = out.length() + mMaxReportChars;
+        IdentityHashMap<Throwable, Boolean> seen = new IdentityHashMap<Throwable, Boolean>();
+        if (!append(e, null, "", "", seen, out, limit)) {
+            out.append("... truncated\n");
+        }
+    }
+
+    /**
+     * @return false once the report limit was reached.
+     */
+    private boolean append(Throwable t, StackTraceElement[] enclosing, String caption, String prefix,
+                           IdentityHashMap<Throwable, Boolean> seen, StringBuilder out, int limit) {
+        if (out.length() >= limit) {
+            return false;
+        }
+        if (seen.put(t, Boolean.TRUE) != null) {
+            out.append(prefix).append(caption).append("[CIRCULAR REFERENCE: ")
+                    .append(describe(t)).append("]\n");
+            return true;
+        }
+
+        StackTraceElement[] trace = t.getStackTrace();
+        int last = trace.length - 1;
+        int common = 0;
+        if (enclosing != null) {
+            for (int j = enclosing.length - 1; last >= 0 && j >= 0 && trace[last].equals(enclosing[j]); j--) {
+                last--;
+                common++;
+            }
+        }
+
+        int traceLimit = Math.min(limit, out.length() + mMaxTraceChars);
+        out.append(prefix).append(caption).append(describe(t));
+        if (out.length() > traceLimit) {
+            out.setLength(traceLimit);
+        }
+        out.append('\n');
+
+        int i = 0;
+        while (i <= last) {
+            if (out.length() >= traceLimit) {
+                out.append(prefix).append("\t... ").append(last - i + 1).append(" frames omitted\n");
+                break;
+            }
+            int cycle = 0;
+            int repeats = 0;
+            for (int length = 1; length <= MAX_CYCLE && i + length * MIN_REPEATS <= last + 1; length++) {
+                int count = countRepeats(trace, i, length, last);
+                if (count >= MIN_REPEATS) {
+                    cycle = length;
+                    repeats = count;
+                    break;
+                }
+            }
+            if (cycle == 0) {
+                appendFrame(trace[i], prefix, out);
+                i++;
+            } else {
+                for (int k = 0; k < cycle; k++) {
+                    appendFrame(trace[i + k], prefix, out);
+                }
+                out.append(prefix).append("\t... ").append(cycle == 1 ? "frame" : cycle + " frames")
+                        .append(" repeated ").append(repeats - 1).append(" more times\n");
+                i += cycle * repeats;
+            }
+        }
+        if (common != 0) {
+            out.append(prefix).append("\t... ").append(common).append(" more\n");
+        }
+
+        Throwable[] suppressed = getSuppressed(t);
+        if (suppressed != null) {
+            for (Throwable s : suppressed) {
+                if (!append(s, trace, "Suppressed: ", prefix + "\t", seen, out, limit)) {
+                    return false;
+                }
+            }
+        }
+        Throwable cause = t.getCause();
+        if (cause != null) {
+            return append(cause, trace, "Caused by: ", prefix, seen, out, limit);
+        }
+        return out.length() < limit;
+    }
+
+    /**
+     * @return how many times {@code trace[start, start + length)} repeats
+     * back to back, without going past {@code last}.
+     */
+    private static int countRepeats(StackTraceElement[] trace, int start, int length, int last) {
+        int count = 1;
+        int next = start + length;
+        while (next + length - 1 <= last) {
+            for (int k = 0; k < length; k++) {
+                if (!trace[start + k].equals(trace[next + k])) {
+                    return count;
+                }
+            }
+            count++;
+            next += length;
+        }
+        return count;
+    }
+
+    private static void appendFrame(StackTraceElement frame, String prefix, StringBuilder out) {
+        out.append(prefix).append("\tat ").append(frame.getClassName()).append('.')
+                .append(frame.getMethodName()).append('(');
+        if (frame.isNativeMethod()) {
+            out.append("Native Method");
+        } else {
+            String file = frame.getFileName();
+            out.append(file != null ? file : "Unknown Source");
+            if (file != null && frame.getLineNumber() >= 0) {
+                out.append(':').append(frame.getLineNumber());
+            }
+        }
+        out.append(")\n");
+    }
+
+    private static String describe(Throwable t) {
+        try {
+            return t.toString();
+        } catch (RuntimeException e) {
+            // a broken getMessage() must not lose the report
+            return t.getClass().getName();
+        }
+    }
+
+    /**
+     * Suppressed exceptions only exist from API 19 on.
+     */
+    private static Throwable[] getSuppressed(Throwable t) {
+        if (!sHasSuppressed) {
+            return null;
+        }
+        try {
+            return t.getSuppressed();
+        } catch (NoSuchMethodError e) {
+            sHasSuppressed = false;
+            return null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 测试用的上报服务端。
+ * <p>
+ * Decodes the batches posted by {@link HttpReportSender} and answers with
+ * the queued responses, 200 once the queue is empty.
+ */
+class BatchServer {
+
+    private final HttpServer mServer;
+    private final List<Map<String, byte[]>> mBatches = new ArrayList<Map<String, byte[]>>();
+    private final LinkedList<int[]> mResponses = new LinkedList<int[]>();
+
+    BatchServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/reports", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    int[] response = receive(exchange);
+                    if (response[1] >= 0) {
+                        exchange.getResponseHeaders().set(HttpReportSender.ACCEPTED_HEADER,
+                                String.valueOf(response[1]));
+                    }
+                    exchange.sendResponseHeaders(response[0], -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    URL getUrl() throws IOException {
+        return new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/reports");
+    }
+
+    /**
+     * Queues the answer to the next request; accepted < 0 sends no
+     * {@value HttpReportSender#ACCEPTED_HEADER} header.
+     */
+    synchronized void respond(int code, int accepted) {
+        mResponses.add(new int[]{code, accepted});
+    }
+
+    /**
+     * @return the decoded batches, in the order they arrived.
+     */
+    synchronized List<Map<String, byte[]>> getBatches() {
+        return new ArrayList<Map<String, byte[]>>(mBatches);
+    }
+
+    void stop() {
+        mServer.stop(0);
+    }
+
+    private synchronized int[] receive(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())
+                || !HttpReportSender.CONTENT_TYPE.equals(exchange.getRequestHeaders().getFirst("Content-Type"))
+                || !"gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            return new int[]{400, -1};
+        }
+        mBatches.add(decode(exchange.getRequestBody()));
+        return mResponses.isEmpty() ? new int[]{200, -1} : mResponses.removeFirst();
+    }
+
+    static Map<String, byte[]> decode(InputStream body) throws IOException {
+        DataInputStream in = new DataInputStream(new GZIPInputStream(body));
+        try {
+            byte[] magic = new byte[3];
+            in.readFully(magic);
+            if (magic[0] != 'G' || magic[1] != 'C' || magic[2] != 'B' || in.readByte() != 1) {
+                throw new IOException("not a report batch");
+            }
+            int count = in.readInt();
+            Map<String, byte[]> reports = new LinkedHashMap<String, byte[]>();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                reports.put(name, data);
+            }
+            if (in.read() != -1) {
+                throw new IOException("trailing bytes in batch");
+            }
+            return reports;
+        } finally {
+            in.close();
+        }
+    }
+}
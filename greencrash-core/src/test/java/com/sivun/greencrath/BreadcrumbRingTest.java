@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BreadcrumbRingTest {
+
+    @Test
+    public void keepsLastEventsOldestFirst() {
+        BreadcrumbRing ring = new BreadcrumbRing(4);
+        for (int i = 0; i < 6; i++) {
+            ring.record("nav", "screen" + i, i == 5 ? BreadcrumbRing.NO_VALUE : i);
+        }
+        StringBuilder out = new StringBuilder();
+        assertEquals(4, ring.appendTo(out, ring.position(), System.currentTimeMillis()));
+        String[] lines = out.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].endsWith("nav: screen2 (2)"));
+        assertTrue(lines[3].endsWith("nav: screen5"));
+    }
+
+    @Test
+    public void stopsAtGivenPosition() {
+        BreadcrumbRing ring = new BreadcrumbRing(8);
+        ring.record("a", "first", 1);
+        long end = ring.position();
+        ring.record("a", "second", 2);
+        StringBuilder out = new StringBuilder();
+        assertEquals(1, ring.appendTo(out, end, 0));
+        assertTrue(out.toString().contains("first"));
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentReadsNeverMixEvents() throws InterruptedException {
+        final BreadcrumbRing ring = new BreadcrumbRing(16);
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread[] writers = new Thread[3];
+        for (int w = 0; w < writers.length; w++) {
+            final String category = "w" + w;
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    String[] messages = new String[64];
+                    for (int i = 0; i < messages.length; i++) {
+                        messages[i] = "m" + i;
+                    }
+                    for (long i = 0; !stop.get(); i++) {
+                        int n = (int) (i & 63);
+                        ring.record(category, messages[n], n);
+                    }
+                }
+            }, "writer" + w);
+            writers[w].start();
+        }
+        try {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (System.currentTimeMillis() < deadline) {
+                StringBuilder out = new StringBuilder();
+                ring.appendTo(out, ring.position(), 0);
+                for (String line : out.toString().split("\n")) {
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    // "<t>ms [writerN] wN: mK (K)"
+                    int bracket = line.indexOf('[');
+                    String thread = line.substring(bracket + 1, line.indexOf(']'));
+                    String rest = line.substring(line.indexOf(']') + 2);
+                    String category = rest.substring(0, rest.indexOf(':'));
+                    String message = rest.substring(rest.indexOf(": ") + 2, rest.indexOf(" ("));
+                    String value = rest.substring(rest.indexOf('(') + 1, rest.length() - 1);
+                    if (!thread.equals("writer" + category.substring(1)) || !message.equals("m" + value)) {
+                        fail("mixed event: " + line);
+                    }
+                }
+            }
+        } finally {
+            stop.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+    }
+}
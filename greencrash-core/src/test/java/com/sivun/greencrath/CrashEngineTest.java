@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CrashEngineTest {
+
+    private File mDir;
+    private long mAvailableBytes = Long.MAX_VALUE;
+    private CrashEngine mEngine;
+    private final List<String> mErrors = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = TestFiles.newDirectory("engine");
+        mEngine = new CrashEngine(new CrashEngine.Platform() {
+            @Override
+            public File getReportDirectory() {
+                return mDir;
+            }
+
+            @Override
+            public long getAvailableBytes(File directory) {
+                return mAvailableBytes;
+            }
+
+            @Override
+            public void collectMetadata(ReportFields fields, long time) {
+                fields.put(CrashEngine.VERSION_CODE, "7");
+            }
+
+            @Override
+            public int getProcessId() {
+                return 1234;
+            }
+        });
+        mEngine.setErrorListener(new CrashEngine.ErrorListener() {
+            @Override
+            public void onReportNotStored(String mode, Exception cause) {
+                mErrors.add(mode + ": " + cause.getMessage());
+            }
+
+            @Override
+            public void onError(String what, Throwable cause) {
+                mErrors.add(what + ": " + cause.getMessage());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mDir);
+    }
+
+    @Test
+    public void writesReadableReport() throws IOException {
+        mEngine.putCustomData("user", "42");
+        assertTrue(mEngine.handleException(new IllegalStateException("boom")));
+        String[] reports = mEngine.getReportFiles();
+        assertEquals(1, reports.length);
+        assertTrue(reports[0].startsWith("silent-"));
+        assertTrue(reports[0].contains("-1234-"));
+
+        CrashReportReader reader = CrashReportReader.open(new File(mDir, reports[0]));
+        assertEquals("7", reader.getValue(CrashEngine.VERSION_CODE));
+        assertTrue(reader.getValue(CrashEngine.STACK_TRACE_KEY)
+                .startsWith("java.lang.IllegalStateException: boom\n\tat "));
+        assertTrue(reader.getValue(CrashEngine.CUSTOM_DATA_KEY).contains("42"));
+        assertTrue(mErrors.isEmpty());
+    }
+
+    @Test
+    public void fullStorageGoesToErrorListener() {
+        mAvailableBytes = 10;
+        mEngine.handleException(new IllegalStateException("boom"));
+        assertEquals(0, mEngine.getReportFiles().length);
+        assertEquals(1, mErrors.size());
+        assertTrue(mErrors.get(0), mErrors.get(0).startsWith("silent: No space left for crash report"));
+    }
+
+    @Test
+    public void damagedIndexGoesToErrorListener() throws IOException {
+        // the header promises entries the file does not hold
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(mDir, "dedup.idx")));
+        out.writeInt(0x47434458);
+        out.writeInt(2);
+        out.writeInt(3);
+        out.close();
+        assertTrue(mEngine.handleException(new IllegalStateException("boom")));
+        assertEquals(1, mEngine.getReportFiles().length);
+        assertTrue(mErrors.toString(), mErrors.size() > 0 && mErrors.get(0).startsWith("read dedup.idx"));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class CrashFingerprintTest {
+
+    private static Throwable error(String message, Throwable cause, String... frames) {
+        IllegalStateException e = new IllegalStateException(message, cause);
+        StackTraceElement[] stack = new StackTraceElement[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            String frame = frames[i];
+            int dot = frame.lastIndexOf('.');
+            int colon = frame.indexOf(':');
+            stack[i] = new StackTraceElement(frame.substring(0, dot), frame.substring(dot + 1, colon),
+                    "Source.java", Integer.parseInt(frame.substring(colon + 1)));
+        }
+        e.setStackTrace(stack);
+        return e;
+    }
+
+    private static String print(Throwable e) {
+        StringWriter out = new StringWriter();
+        e.printStackTrace(new PrintWriter(out));
+        return out.toString();
+    }
+
+    @Test
+    public void ignoresMessagesAndLineNumbers() {
+        long a = CrashFingerprint.compute(error("user 1", null, "com.a.Foo.bar:10", "com.a.Main.main:3"));
+        long b = CrashFingerprint.compute(error("user 2", null, "com.a.Foo.bar:99", "com.a.Main.main:4"));
+        assertEquals(a, b);
+    }
+
+    @Test
+    public void framesAndTypesMatter() {
+        long a = CrashFingerprint.compute(error("x", null, "com.a.Foo.bar:10"));
+        assertNotEquals(a, CrashFingerprint.compute(error("x", null, "com.a.Foo.baz:10")));
+        assertNotEquals(a, CrashFingerprint.compute(new IllegalArgumentException("x")));
+        assertNotEquals(a, CrashFingerprint.compute(error("x", new RuntimeException(), "com.a.Foo.bar:10")));
+    }
+
+    @Test
+    public void normalizesGeneratedNames() {
+        long base = CrashFingerprint.compute(error("x", null,
+                "com.a.Foo$1.run:1", "com.a.Foo.lambda$onCreate$0:2", "com.a.Foo$$Lambda$12/0x1234.accept:3",
+                "com.a.Foo.access$000:4", "com.a.Main.main:5"));
+        long rebuilt = CrashFingerprint.compute(error("x", null,
+                "com.a.Foo$7.run:1", "com.a.Foo.lambda$onCreate$3:2", "com.a.Foo-$$Lambda$2.accept:3",
+                "com.a.Foo.access$100:4", "com.a.Main.main:5"));
+        long noAccessor = CrashFingerprint.compute(error("x", null,
+                "com.a.Foo$2.run:1", "com.a.Foo.lambda$onCreate$1:2", "com.a.Foo$$ExternalSyntheticLambda0.accept:3",
+                "com.a.Main.main:5"));
+        assertEquals(base, rebuilt);
+        assertEquals(base, noAccessor);
+        assertNotEquals(base, CrashFingerprint.compute(error("x", null,
+                "com.a.Foo$1.run:1", "com.a.Foo.lambda$onResume$0:2", "com.a.Foo$$Lambda$12/0x1234.accept:3",
+                "com.a.Main.main:5")));
+    }
+
+    @Test
+    public void onlyTopFramesCount() {
+        String[] deep = new String[CrashFingerprint.MAX_FRAMES + 10];
+        String[] deeper = new String[CrashFingerprint.MAX_FRAMES + 50];
+        for (int i = 0; i < deeper.length; i++) {
+            if (i < deep.length) {
+                deep[i] = "com.a.Rec.call:" + i;
+            }
+            deeper[i] = "com.a.Rec.call:" + i;
+        }
+        assertEquals(CrashFingerprint.compute(error("x", null, deep)),
+                CrashFingerprint.compute(error("x", null, deeper)));
+    }
+
+    @Test
+    public void printedTracesMatchEachOther() {
+        Throwable a = error("first", error("inner", null, "com.a.Db.query:5", "com.a.Foo$1.run:7"),
+                "com.a.Foo.bar:10", "com.a.Main.main:3");
+        Throwable b = error("second", error("other", null, "com.a.Db.query:8", "com.a.Foo$3.run:9"),
+                "com.a.Foo.bar:11", "com.a.Main.main:4");
+        assertEquals(CrashFingerprint.compute(print(a)), CrashFingerprint.compute(print(b)));
+        assertEquals(CrashFingerprint.compute(print(a)),
+                CrashFingerprint.compute("Thread: main\n" + print(a)));
+        assertNotEquals(CrashFingerprint.compute(print(a)),
+                CrashFingerprint.compute(print(error("first", null, "com.a.Foo.bar:10", "com.a.Main.main:3"))));
+    }
+
+    @Test
+    public void hexRoundTrips() {
+        long[] values = {0, 1, -1, Long.MIN_VALUE, 0x0123456789abcdefL};
+        for (long value : values) {
+            String hex = CrashFingerprint.toHex(value);
+            assertEquals(16, hex.length());
+            assertEquals(value, CrashFingerprint.fromHex(hex));
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void badHexIsRejected() {
+        CrashFingerprint.fromHex("12345");
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CrashJournalTest {
+
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = TestFiles.newDirectory("journal");
+        mFile = new File(mDir, "test.journal");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mDir);
+    }
+
+    @Test
+    public void committedRecordSurvivesReopen() throws IOException {
+        CrashJournal journal = CrashJournal.open(mFile, CrashJournal.DEFAULT_SIZE);
+        assertFalse(journal.hasRecord());
+        Throwable e = new IllegalStateException("boom", new IOException("disk"));
+        journal.write(new Thread("worker"), e, 1234);
+
+        CrashJournal reopened = CrashJournal.open(mFile, CrashJournal.DEFAULT_SIZE);
+        assertTrue(reopened.hasRecord());
+        assertTrue(reopened.isRecordComplete());
+        assertEquals(1234, reopened.getRecordTime());
+        String record = reopened.readRecord();
+        assertTrue(record.startsWith("Thread: worker\njava.lang.IllegalStateException: boom\n\tat "));
+        assertTrue(record.contains("Caused by: java.io.IOException: disk\n"));
+        assertTrue(record.contains("(CrashJournalTest.java:"));
+
+        reopened.clear();
+        assertFalse(CrashJournal.open(mFile, CrashJournal.DEFAULT_SIZE).hasRecord());
+    }
+
+    @Test
+    public void recordCutShortIsRecoveredUpToLastLine() throws IOException {
+        CrashJournal journal = CrashJournal.open(mFile, CrashJournal.DEFAULT_SIZE);
+        Throwable cause = new RuntimeException("second fault") {
+            @Override
+            public StackTraceElement[] getStackTrace() {
+                throw new OutOfMemoryError();
+            }
+        };
+        try {
+            journal.write(Thread.currentThread(), new IllegalStateException("first", cause), 99);
+            fail("expected the write to fail");
+        } catch (OutOfMemoryError expected) {
+        }
+
+        CrashJournal reopened = CrashJournal.open(mFile, CrashJournal.DEFAULT_SIZE);
+        assertTrue(reopened.hasRecord());
+        assertFalse(reopened.isRecordComplete());
+        String record = reopened.readRecord();
+        assertTrue(record.contains("java.lang.IllegalStateException: first\n"));
+        assertTrue(record.endsWith("second fault\n"));
+    }
+
+    @Test
+    public void longRecordIsTruncatedToCapacity() throws IOException {
+        CrashJournal journal = CrashJournal.open(mFile, 1024);
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            message.append('x');
+        }
+        journal.write(null, new Error(message.toString()), 1);
+        String record = CrashJournal.open(mFile, 1024).readRecord();
+        assertTrue(record.length() <= (1024 - 20) / 2);
+        assertTrue(record.startsWith("java.lang.Error: xxx"));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CrashReportWriterTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = TestFiles.newDirectory("writer");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mDir);
+    }
+
+    private CrashReportReader roundTrip(CrashReportWriter writer) throws IOException {
+        File file = new File(mDir, "report" + CrashReportWriter.FILE_EXTENSION);
+        writer.writeTo(file);
+        return CrashReportReader.open(file);
+    }
+
+    @Test
+    public void fieldsRoundTripInOrder() throws IOException {
+        CrashReportWriter writer = new CrashReportWriter(16);
+        writer.putField("report_mode", "silent");
+        writer.putField("Empty", "");
+        writer.putField("Null", null);
+        writer.putField("Unicode", "崩溃 ü 😀 end");
+        writer.putField("StackTrace", "java.lang.RuntimeException: x\n\tat a.b.c(D.java:1)\n");
+
+        CrashReportReader reader = roundTrip(writer);
+        assertTrue(reader.isBinary());
+        assertEquals(5, reader.getFieldCount());
+        assertEquals("report_mode", reader.getKey(0));
+        assertEquals("silent", reader.getValue(0));
+        assertEquals("", reader.getValue("Empty"));
+        assertEquals("", reader.getValue("Null"));
+        assertEquals("崩溃 ü 😀 end", reader.getValue("Unicode"));
+        assertEquals("java.lang.RuntimeException: x\n\tat a.b.c(D.java:1)\n", reader.getValue("StackTrace"));
+        assertEquals(-1, reader.indexOf("Missing"));
+        assertNull(reader.getValue("Missing"));
+    }
+
+    @Test
+    public void streamedFieldRoundTrips() throws IOException {
+        CrashReportWriter writer = new CrashReportWriter(16);
+        writer.beginField("Counts").append("min=").appendLong(Long.MIN_VALUE).append(' ')
+                .append("max=").appendLong(Long.MAX_VALUE).append(' ').appendLong(0).endField();
+        writer.putField("After", "x");
+        CrashReportReader reader = roundTrip(writer);
+        assertEquals("min=" + Long.MIN_VALUE + " max=" + Long.MAX_VALUE + " 0", reader.getValue("Counts"));
+        assertEquals("x", reader.getValue("After"));
+    }
+
+    @Test
+    public void largeValuesGrowTheBuffer() throws IOException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        CrashReportWriter writer = new CrashReportWriter(16);
+        writer.putField("Big", value.toString());
+        assertEquals(value.toString(), roundTrip(writer).getValue("Big"));
+    }
+
+    @Test
+    public void resetDropsFields() throws IOException {
+        CrashReportWriter writer = new CrashReportWriter(16);
+        writer.putField("A", "1");
+        writer.reset();
+        writer.putField("B", "2");
+        CrashReportReader reader = roundTrip(writer);
+        assertEquals(1, reader.getFieldCount());
+        assertEquals("2", reader.getValue("B"));
+    }
+
+    @Test
+    public void tooLongKeyIsRejectedAndLeavesNoTrace() throws IOException {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < 0x8000; i++) {
+            key.append('é');
+        }
+        assertFalse(CrashReportWriter.isValidKey(key.toString()));
+        CrashReportWriter writer = new CrashReportWriter(16);
+        writer.putField("A", "1");
+        try {
+            writer.beginField(key.toString());
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+        writer.putField("B", "2");
+        CrashReportReader reader = roundTrip(writer);
+        assertEquals(2, reader.getFieldCount());
+        assertEquals("2", reader.getValue("B"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void appendOutsideFieldFails() {
+        new CrashReportWriter(16).append("x");
+    }
+
+    @Test
+    public void truncatedReportIsRejected() throws IOException {
+        CrashReportWriter writer = new CrashReportWriter(16);
+        writer.putField("StackTrace", "java.lang.Error\n");
+        File file = new File(mDir, "cut" + CrashReportWriter.FILE_EXTENSION);
+        writer.writeTo(file);
+        byte[] data = TestFiles.read(file);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data, 0, data.length - 3);
+        } finally {
+            out.close();
+        }
+        try {
+            CrashReportReader.open(file);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void readsLegacyTextReports() throws IOException {
+        byte[] text = ("VersionCode=12\nStackTrace=java.lang.Error: x\n\tat a.b.c(D.java:1)\n"
+                + "not a field line\nCustomData=k = v\n").getBytes("UTF-8");
+        CrashReportReader reader = CrashReportReader.wrap(text, 0, text.length);
+        assertFalse(reader.isBinary());
+        assertEquals(3, reader.getFieldCount());
+        assertEquals("12", reader.getValue("VersionCode"));
+        assertEquals("java.lang.Error: x\n\tat a.b.c(D.java:1)\nnot a field line", reader.getValue("StackTrace"));
+        assertEquals("k = v", reader.getValue("CustomData"));
+    }
+}
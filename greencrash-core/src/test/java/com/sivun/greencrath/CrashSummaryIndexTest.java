@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CrashSummaryIndexTest {
+
+    private static final String[] NONE = new String[0];
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = TestFiles.newDirectory("summary");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mDir);
+    }
+
+    // each instance stands in for one process sharing the index file
+    private CrashSummaryIndex newIndex() {
+        return new CrashSummaryIndex(mDir, new ErrorReporter());
+    }
+
+    private CrashSummary report(String name, long time, String type, String message, int versionCode)
+            throws IOException {
+        File file = TestFiles.write(new File(mDir, name), 16);
+        return new CrashSummary(file, time, "crash", type, message, "com.example.Foo.bar(Foo.java:42)",
+                versionCode);
+    }
+
+    private static List<String> names(List<CrashSummary> summaries) {
+        List<String> names = new ArrayList<String>();
+        for (CrashSummary summary : summaries) {
+            names.add(summary.getFile().getName());
+        }
+        return names;
+    }
+
+    private static String[] names(String... names) {
+        return names;
+    }
+
+    @Test
+    public void addsBeforeFirstLoadAreSkipped() throws IOException {
+        newIndex().add(report("crash-1.gcr", 1, "java.lang.IllegalStateException", "x", 1));
+        assertFalse(new File(mDir, CrashSummaryIndex.INDEX_NAME).exists());
+    }
+
+    @Test
+    public void appendsAndDeletesAreReplayed() throws IOException {
+        CrashSummaryIndex index = newIndex();
+        index.load(NONE);
+        index.add(report("crash-1.gcr", 1, "java.lang.IllegalStateException", "first", 1));
+        index.add(report("crash-2.gcr", 2, "java.lang.NullPointerException", "second", 2));
+        index.add(report("crash-3.gcr", 3, "java.lang.IllegalStateException", "third", 2));
+        index.remove("crash-2.gcr");
+        assertEquals(2, index.count(-1, null, null));
+
+        // the file of crash-2 is still there, only the delete record hides it
+        CrashSummaryIndex reloaded = newIndex();
+        reloaded.load(names("crash-1.gcr", "crash-3.gcr"));
+        List<CrashSummary> page = reloaded.query(-1, null, null, 0, 10);
+        assertEquals(2, page.size());
+        assertEquals("crash-3.gcr", page.get(0).getFile().getName());
+        assertEquals("crash-1.gcr", page.get(1).getFile().getName());
+        CrashSummary first = page.get(1);
+        assertEquals(1, first.getTime());
+        assertEquals("java.lang.IllegalStateException", first.getExceptionType());
+        assertEquals("first", first.getMessage());
+        assertEquals(1, first.getVersionCode());
+
+        assertEquals(1, reloaded.count(2, null, null));
+        assertEquals(2, reloaded.count(-1, "illegalstate", null));
+        assertEquals(0, reloaded.count(-1, "NullPointer", null));
+        assertEquals(Arrays.asList("crash-1.gcr"), names(reloaded.query(-1, null, null, 1, 10)));
+    }
+
+    @Test
+    public void tornTailKeepsCompleteRecords() throws IOException {
+        CrashSummaryIndex index = newIndex();
+        index.load(NONE);
+        index.add(report("crash-1.gcr", 1, "java.lang.IllegalStateException", "first", 1));
+        index.add(report("crash-2.gcr", 2, "java.lang.IllegalStateException", "second", 1));
+        File file = new File(mDir, CrashSummaryIndex.INDEX_NAME);
+        long complete = file.length();
+        // an add record cut short by process death
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[]{'A', 0, 11, 'c', 'r', 'a'});
+        } finally {
+            out.close();
+        }
+
+        CrashSummaryIndex reloaded = newIndex();
+        reloaded.load(names("crash-1.gcr", "crash-2.gcr"));
+        assertEquals(2, reloaded.count(-1, null, null));
+        // the damaged file was rewritten without the partial record
+        assertEquals(complete, file.length());
+        reloaded.add(report("crash-3.gcr", 3, "java.lang.IllegalStateException", "third", 1));
+        assertEquals(3, reloaded.count(-1, null, null));
+    }
+
+    @Test
+    public void otherProcessesAreFollowed() throws IOException {
+        CrashSummaryIndex first = newIndex();
+        first.load(NONE);
+        CrashSummaryIndex second = newIndex();
+        second.load(NONE);
+
+        second.add(report("crash-1.gcr", 1, "java.lang.IllegalStateException", "first", 1));
+        assertTrue(first.refresh());
+        assertEquals(1, first.count(-1, null, null));
+
+        second.removeAll();
+        assertFalse(first.refresh());
+        assertFalse(first.isLoaded());
+        assertNull(first.query(-1, null, null, 0, 10));
+
+        first.load(NONE);
+        assertTrue(first.isLoaded());
+        assertEquals(0, first.count(-1, null, null));
+    }
+
+    @Test
+    public void rewriteByAnotherProcessInvalidatesQueries() throws IOException {
+        CrashSummaryIndex first = newIndex();
+        first.load(NONE);
+        first.add(report("crash-1.gcr", 1, "java.lang.IllegalStateException", "first", 1));
+        first.add(report("crash-2.gcr", 2, "java.lang.IllegalStateException", "second", 1));
+
+        // crash-2 was deleted behind the index's back, so loading compacts it away
+        new File(mDir, "crash-2.gcr").delete();
+        newIndex().load(names("crash-1.gcr"));
+
+        assertNull(first.query(-1, null, null, 0, 10));
+        first.load(names("crash-1.gcr"));
+        assertEquals(Arrays.asList("crash-1.gcr"), names(first.query(-1, null, null, 0, 10)));
+    }
+
+    @Test
+    public void searchMatchesWordPrefixes() throws IOException {
+        CrashSummaryIndex index = newIndex();
+        index.load(NONE);
+        index.add(report("crash-1.gcr", 1, "java.lang.NullPointerException", "user profile missing", 1));
+        index.add(report("crash-2.gcr", 2, "java.lang.IllegalStateException", "Fragment not attached", 1));
+        index.add(report("crash-3.gcr", 3, "java.io.IOException", "disk full", 1));
+
+        assertEquals(Arrays.asList("crash-1.gcr"), names(index.query(-1, null, "null", 0, 10)));
+        // later parts of camel case names
+        assertEquals(Arrays.asList("crash-1.gcr"), names(index.query(-1, null, "point", 0, 10)));
+        assertEquals(Arrays.asList("crash-3.gcr", "crash-2.gcr", "crash-1.gcr"),
+                names(index.query(-1, null, "exception", 0, 10)));
+        assertEquals(Arrays.asList("crash-3.gcr"), names(index.query(-1, null, "ioexc", 0, 10)));
+        // every word has to match, ignoring case and punctuation
+        assertEquals(Arrays.asList("crash-2.gcr"), names(index.query(-1, null, "FRAG, attach", 0, 10)));
+        assertEquals(0, index.count(-1, null, "fragment disk"));
+        // words shorter than two letters are ignored
+        assertEquals(3, index.count(-1, null, "x"));
+        assertEquals(0, index.count(-1, null, "ointer"));
+    }
+}
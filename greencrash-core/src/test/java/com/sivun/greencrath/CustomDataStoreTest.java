@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CustomDataStoreTest {
+
+    /**
+     * Encodes the store as a report field and parses its lines back.
+     */
+    private static Map<String, String> written(CustomDataStore store) throws IOException {
+        CrashReportWriter writer = new CrashReportWriter(64);
+        writer.beginField("CustomData");
+        store.writeTo(writer);
+        writer.endField();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer.writeTo(bytes);
+        byte[] data = bytes.toByteArray();
+        String text = CrashReportReader.wrap(data, 0, data.length).getValue("CustomData");
+        Map<String, String> values = new HashMap<String, String>();
+        for (String line : text.split("\n")) {
+            if (line.length() > 0) {
+                int separator = line.indexOf(" = ");
+                values.put(line.substring(0, separator), line.substring(separator + 3));
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void valuesAreWrittenByType() throws IOException {
+        CustomDataStore store = new CustomDataStore(10, 100);
+        assertTrue(store.isEmpty());
+        store.putString("user", "alice");
+        store.putString("session", null);
+        store.putLong("min", Long.MIN_VALUE);
+        store.putLong("zero", 0);
+        store.putBoolean("premium", true);
+        store.putBoolean("beta", false);
+        assertFalse(store.isEmpty());
+
+        Map<String, String> values = written(store);
+        assertEquals(6, values.size());
+        assertEquals("alice", values.get("user"));
+        assertEquals("null", values.get("session"));
+        assertEquals(String.valueOf(Long.MIN_VALUE), values.get("min"));
+        assertEquals("0", values.get("zero"));
+        assertEquals("true", values.get("premium"));
+        assertEquals("false", values.get("beta"));
+    }
+
+    @Test
+    public void updatesReplaceValueAndType() throws IOException {
+        CustomDataStore store = new CustomDataStore(1, 100);
+        assertTrue(store.putString("level", "intro"));
+        assertTrue(store.putLong("level", 7));
+        assertEquals("7", written(store).get("level"));
+        assertTrue(store.putBoolean("level", true));
+        assertEquals("true", written(store).get("level"));
+        assertTrue(store.putString("level", "boss"));
+        assertEquals("boss", written(store).get("level"));
+    }
+
+    @Test
+    public void fullStoreOnlyTakesExistingKeys() throws IOException {
+        CustomDataStore store = new CustomDataStore(2, 100);
+        assertTrue(store.putString("a", "1"));
+        assertTrue(store.putLong("b", 2));
+        assertFalse(store.putString("c", "3"));
+        assertFalse(store.putBoolean("d", true));
+        assertTrue(store.putString("a", "again"));
+
+        store.remove("a");
+        store.remove("missing");
+        assertTrue(store.putString("c", "3"));
+        assertFalse(store.putString("d", "4"));
+        Map<String, String> values = written(store);
+        assertEquals(2, values.size());
+        assertEquals("2", values.get("b"));
+        assertEquals("3", values.get("c"));
+
+        store.clear();
+        assertTrue(store.isEmpty());
+        assertTrue(store.putString("d", "4"));
+        assertTrue(store.putString("e", "5"));
+        assertFalse(store.putString("f", "6"));
+    }
+
+    @Test
+    public void longValuesAreCut() throws IOException {
+        CustomDataStore store = new CustomDataStore(10, 8);
+        store.putString("path", "0123456789abcdef");
+        assertEquals("01234567", written(store).get("path"));
+    }
+
+    @Test
+    public void racingNewKeysStayWithinLimit() throws Exception {
+        final CustomDataStore store = new CustomDataStore(50, 100);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger accepted = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 40; i++) {
+                        // half the keys are shared with the other threads
+                        String key = i % 2 == 0 ? "shared" + i : "key" + thread + "-" + i;
+                        if (store.putLong(key, i)) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(50, written(store).size());
+        assertTrue(accepted.get() >= 50);
+        assertEquals(50 * 48, store.estimateSize());
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DedupIndexTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = TestFiles.newDirectory("dedup");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mDir);
+    }
+
+    // each instance stands in for one process sharing the index file
+    private DedupIndex newIndex(int maxEntries) {
+        return new DedupIndex(new File(mDir, "dedup.idx"), maxEntries, new ErrorReporter());
+    }
+
+    @Test
+    public void savedIndexIsReadBack() {
+        DedupIndex index = newIndex(10);
+        index.put(1L, 100, "crash-1.gcr", 1);
+        index.setDelivered("crash-1.gcr");
+        index.save();
+
+        DedupIndex.Entry entry = newIndex(10).get(1L);
+        assertNotNull(entry);
+        assertEquals("crash-1.gcr", entry.reportName);
+        assertEquals(1, entry.count);
+        assertTrue(entry.delivered);
+    }
+
+    @Test
+    public void concurrentSavesKeepEntriesOfBothProcesses() {
+        DedupIndex first = newIndex(10);
+        DedupIndex second = newIndex(10);
+        first.get(1L);
+        second.get(2L);
+
+        first.put(1L, 100, "crash-1.gcr", 1);
+        second.put(2L, 200, "crash-2.gcr", 1);
+        first.save();
+        second.save();
+
+        DedupIndex reader = newIndex(10);
+        assertNotNull(reader.get(1L));
+        assertNotNull(reader.get(2L));
+    }
+
+    @Test
+    public void repeatsCountedByBothProcessesAddUp() throws IOException {
+        TestFiles.write(new File(mDir, "crash-1.gcr"), 10);
+        DedupIndex first = newIndex(10);
+        first.put(1L, 100, "crash-1.gcr", 1);
+        first.save();
+
+        DedupIndex second = newIndex(10);
+        second.recordRepeat(1L, 200, 2);
+        first.recordRepeat(1L, 300, 3);
+        second.save();
+        first.save();
+
+        DedupIndex.Entry entry = newIndex(10).get(1L);
+        assertEquals(6, entry.count);
+        assertEquals(100, entry.firstSeen);
+        assertEquals(300, entry.lastSeen);
+    }
+
+    @Test
+    public void reloadsWhenAnotherProcessSaves() {
+        DedupIndex first = newIndex(10);
+        DedupIndex second = newIndex(10);
+        assertNull(first.get(1L));
+
+        second.put(1L, 100, "crash-1.gcr", 1);
+        second.save();
+
+        assertNotNull(first.get(1L));
+    }
+
+    @Test
+    public void reloadKeepsUnsavedChanges() throws IOException {
+        TestFiles.write(new File(mDir, "crash-1.gcr"), 10);
+        DedupIndex first = newIndex(10);
+        first.put(1L, 100, "crash-1.gcr", 1);
+        first.save();
+        first.recordRepeat(1L, 200, 1);
+
+        DedupIndex second = newIndex(10);
+        second.setDelivered("crash-1.gcr");
+        second.save();
+
+        DedupIndex.Entry entry = first.get(1L);
+        assertEquals(2, entry.count);
+        assertTrue(entry.delivered);
+        first.save();
+        assertEquals(2, newIndex(10).get(1L).count);
+    }
+
+    @Test
+    public void evictsLeastRecentlySeenAfterMerging() {
+        DedupIndex first = newIndex(2);
+        DedupIndex second = newIndex(2);
+        first.get(1L);
+        second.get(2L);
+
+        first.put(1L, 100, "crash-1.gcr", 1);
+        first.put(3L, 300, "crash-3.gcr", 1);
+        second.put(2L, 200, "crash-2.gcr", 1);
+        first.save();
+        second.save();
+
+        DedupIndex reader = newIndex(2);
+        assertNull(reader.get(1L));
+        assertNotNull(reader.get(2L));
+        assertNotNull(reader.get(3L));
+    }
+
+    @Test
+    public void trySaveKeepsChangesWhileLocked() {
+        DedupIndex index = newIndex(10);
+        index.put(1L, 100, "crash-1.gcr", 1);
+        ProcessLock lock = ProcessLock.forFile(new File(mDir, "dedup.idx"), new ErrorReporter());
+        assertTrue(lock.tryLock());
+        try {
+            assertFalse(index.trySave());
+        } finally {
+            lock.unlock();
+        }
+        assertNull(newIndex(10).get(1L));
+
+        index.save();
+        assertNotNull(newIndex(10).get(1L));
+    }
+
+    @Test
+    public void concurrentRepeatsAndSavesAreAllCounted() throws Exception {
+        TestFiles.write(new File(mDir, "crash-1.gcr"), 10);
+        TestFiles.write(new File(mDir, "crash-2.gcr"), 10);
+        final DedupIndex index = newIndex(10);
+        index.put(1L, 100, "crash-1.gcr", 1);
+        index.put(2L, 100, "crash-2.gcr", 1);
+        index.save();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long fingerprint = 1 + t % 2;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        assertNotNull(index.recordRepeat(fingerprint, 200 + i, 1));
+                        if (i % 50 == 0) {
+                            index.trySave();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        index.save();
+        DedupIndex reader = newIndex(10);
+        assertEquals(1001, reader.get(1L).count);
+        assertEquals(1001, reader.get(2L).count);
+    }
+
+    @Test
+    public void repeatsOnlyUpdateCountersInPlace() throws IOException {
+        TestFiles.write(new File(mDir, "crash-1.gcr"), 10);
+        DedupIndex index = newIndex(10);
+        index.put(1L, 100, "crash-1.gcr", 1);
+        index.put(2L, 100, "crash-2.gcr", 1);
+        index.save();
+        ProcessLock lock = ProcessLock.forFile(new File(mDir, "dedup.idx"), new ErrorReporter());
+        long generation = lock.getGeneration();
+        byte[] before = TestFiles.read(new File(mDir, "dedup.idx"));
+
+        index.recordRepeat(1L, 300, 4);
+        assertTrue(index.trySave());
+
+        assertEquals(generation, lock.getGeneration());
+        byte[] after = TestFiles.read(new File(mDir, "dedup.idx"));
+        assertEquals(before.length, after.length);
+        DedupIndex.Entry entry = newIndex(10).get(1L);
+        assertEquals(5, entry.count);
+        assertEquals(300, entry.lastSeen);
+        assertEquals(1, newIndex(10).get(2L).count);
+    }
+}
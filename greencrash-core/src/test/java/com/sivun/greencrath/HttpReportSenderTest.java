@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpReportSenderTest {
+
+    private File mDir;
+    private BatchServer mServer;
+    private HttpReportSender mSender;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = TestFiles.newDirectory("sender");
+        mServer = new BatchServer();
+        mSender = new HttpReportSender(mServer.getUrl());
+        mSender.setTimeouts(2000, 2000);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        TestFiles.delete(mDir);
+    }
+
+    @Test
+    public void sendsWholeBatchInOneGzipRequest() throws IOException {
+        List<File> reports = new ArrayList<File>();
+        for (int i = 0; i < 3; i++) {
+            reports.add(TestFiles.write(new File(mDir, "report-" + i + ".gcr"), 1000 * i));
+        }
+        mSender.send(reports);
+
+        List<Map<String, byte[]>> batches = mServer.getBatches();
+        assertEquals(1, batches.size());
+        Map<String, byte[]> batch = batches.get(0);
+        assertEquals(Arrays.asList("report-0.gcr", "report-1.gcr", "report-2.gcr"),
+                new ArrayList<String>(batch.keySet()));
+        for (File report : reports) {
+            assertArrayEquals(TestFiles.read(report), batch.get(report.getName()));
+        }
+    }
+
+    @Test
+    public void serverErrorFails() throws IOException {
+        mServer.respond(503, -1);
+        try {
+            mSender.send(Arrays.asList(TestFiles.write(new File(mDir, "a.gcr"), 10)));
+            fail("expected IOException");
+        } catch (PartialDeliveryException e) {
+            fail("not a partial delivery");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("503"));
+        }
+    }
+
+    @Test
+    public void acceptedHeaderReportsPartialDelivery() throws IOException {
+        mServer.respond(200, 1);
+        List<File> reports = Arrays.asList(
+                TestFiles.write(new File(mDir, "a.gcr"), 10),
+                TestFiles.write(new File(mDir, "b.gcr"), 10));
+        try {
+            mSender.send(reports);
+            fail("expected PartialDeliveryException");
+        } catch (PartialDeliveryException e) {
+            assertEquals(1, e.getDelivered());
+        }
+    }
+
+    @Test
+    public void acceptedHeaderCoveringBatchIsSuccess() throws IOException {
+        mServer.respond(202, 2);
+        mSender.send(Arrays.asList(
+                TestFiles.write(new File(mDir, "a.gcr"), 10),
+                TestFiles.write(new File(mDir, "b.gcr"), 10)));
+        assertEquals(1, mServer.getBatches().size());
+    }
+
+    @Test(expected = IOException.class)
+    public void unreachableServerFails() throws IOException {
+        mServer.stop();
+        mSender.send(Arrays.asList(TestFiles.write(new File(mDir, "a.gcr"), 10)));
+    }
+
+    @Test
+    public void encodingCompresses() throws IOException {
+        File report = TestFiles.write(new File(mDir, "a.gcr"), 64 * 1024);
+        byte[] body = HttpReportSender.encode(Arrays.asList(report));
+        assertTrue(body.length < report.length() / 4);
+        Map<String, byte[]> batch = BatchServer.decode(new ByteArrayInputStream(body));
+        assertArrayEquals(TestFiles.read(report), batch.get("a.gcr"));
+    }
+}
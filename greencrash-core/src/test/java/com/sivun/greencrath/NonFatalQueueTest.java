@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NonFatalQueueTest {
+
+    /**
+     * Records every batch; the first one waits until released, so the
+     * queue can be filled behind it.
+     */
+    private static final class BlockingWriter implements NonFatalQueue.BatchWriter {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final BlockingQueue<List<NonFatalQueue.Pending>> batches =
+                new ArrayBlockingQueue<List<NonFatalQueue.Pending>>(100);
+        final BlockingQueue<Long> dropped = new ArrayBlockingQueue<Long>(100);
+
+        @Override
+        public void writeBatch(List<NonFatalQueue.Pending> batch, long droppedSince) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            batches.add(new ArrayList<NonFatalQueue.Pending>(batch));
+            dropped.add(droppedSince);
+        }
+    }
+
+    private static boolean offer(NonFatalQueue queue, Throwable e) {
+        return queue.offer(e, System.currentTimeMillis(), 1L, 0, 0);
+    }
+
+    // the count is updated after the writer returns
+    private static void awaitWritten(NonFatalQueue queue, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getWrittenCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, queue.getWrittenCount());
+    }
+
+    @Test
+    public void dropsAndCountsWhenFull() throws InterruptedException {
+        BlockingWriter writer = new BlockingWriter();
+        NonFatalQueue queue = new NonFatalQueue(2, new ErrorReporter(), writer);
+
+        Throwable first = new RuntimeException("first");
+        assertTrue(offer(queue, first));
+        assertTrue(writer.entered.await(5, TimeUnit.SECONDS));
+        // the writer thread holds the first record, the queue takes two more
+        assertTrue(offer(queue, new RuntimeException("second")));
+        assertTrue(offer(queue, new RuntimeException("third")));
+        for (int i = 0; i < 3; i++) {
+            assertFalse(offer(queue, new RuntimeException("dropped")));
+        }
+        assertEquals(3, queue.getEnqueuedCount());
+        assertEquals(3, queue.getDroppedCount());
+
+        writer.release.countDown();
+        List<NonFatalQueue.Pending> batch = writer.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertSame(first, batch.get(0).throwable);
+        assertEquals(Thread.currentThread().getName(), batch.get(0).threadName);
+        assertEquals(Long.valueOf(0), writer.dropped.poll(5, TimeUnit.SECONDS));
+
+        // the drops happened after the first batch was taken, so the next one reports them
+        batch = writer.batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(2, batch.size());
+        assertEquals(Long.valueOf(3), writer.dropped.poll(5, TimeUnit.SECONDS));
+
+        // and they are reported only once
+        assertTrue(offer(queue, new RuntimeException("later")));
+        assertNotNull(writer.batches.poll(5, TimeUnit.SECONDS));
+        assertEquals(Long.valueOf(0), writer.dropped.poll(5, TimeUnit.SECONDS));
+        awaitWritten(queue, 4);
+    }
+
+    @Test
+    public void failedBatchGoesToErrorListenerAndQueueGoesOn() throws InterruptedException {
+        final BlockingQueue<Throwable> errors = new ArrayBlockingQueue<Throwable>(10);
+        ErrorReporter reporter = new ErrorReporter();
+        reporter.setListener(new CrashEngine.ErrorListener() {
+            @Override
+            public void onReportNotStored(String mode, Exception cause) {
+            }
+
+            @Override
+            public void onError(String what, Throwable cause) {
+                errors.add(cause);
+            }
+        });
+        final BlockingQueue<Throwable> written = new ArrayBlockingQueue<Throwable>(10);
+        NonFatalQueue queue = new NonFatalQueue(4, reporter, new NonFatalQueue.BatchWriter() {
+            @Override
+            public void writeBatch(List<NonFatalQueue.Pending> batch, long dropped) {
+                for (NonFatalQueue.Pending pending : batch) {
+                    if (pending.throwable.getMessage().equals("bad")) {
+                        throw new IllegalStateException("disk full");
+                    }
+                    written.add(pending.throwable);
+                }
+            }
+        });
+
+        assertTrue(offer(queue, new RuntimeException("bad")));
+        Throwable error = errors.poll(5, TimeUnit.SECONDS);
+        assertNotNull(error);
+        assertEquals("disk full", error.getMessage());
+
+        Throwable good = new RuntimeException("good");
+        assertTrue(offer(queue, good));
+        assertSame(good, written.poll(5, TimeUnit.SECONDS));
+        awaitWritten(queue, 1);
+    }
+}
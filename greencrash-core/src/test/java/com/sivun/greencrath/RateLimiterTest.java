@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class RateLimiterTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    @Test
+    public void burstThenRefill() {
+        RateLimiter limiter = new RateLimiter(16, 2, 1);
+        assertEquals(0, limiter.acquire(1, 1000));
+        assertEquals(0, limiter.acquire(1, 1000));
+        assertEquals(RateLimiter.DROP, limiter.acquire(1, 1000));
+        assertEquals(RateLimiter.DROP, limiter.acquire(1, 1500));
+        assertEquals(2, limiter.acquire(1, 2000));
+        assertEquals(RateLimiter.DROP, limiter.acquire(1, 2000));
+    }
+
+    @Test
+    public void fingerprintsHaveTheirOwnBuckets() {
+        RateLimiter limiter = new RateLimiter(16, 1, 0.1);
+        assertEquals(0, limiter.acquire(1, 0));
+        assertEquals(RateLimiter.DROP, limiter.acquire(1, 0));
+        assertEquals(0, limiter.acquire(2, 0));
+    }
+
+    @Test
+    public void slowRatesStillRefill() {
+        // one report a day is far below a token per millisecond
+        RateLimiter limiter = new RateLimiter(16, 1, 1.0 / 86400);
+        assertEquals(0, limiter.acquire(7, 0));
+        assertEquals(RateLimiter.DROP, limiter.acquire(7, DAY / 2));
+        assertEquals(RateLimiter.DROP, limiter.acquire(7, DAY - 1000));
+        assertEquals(2, limiter.acquire(7, DAY + 1000));
+    }
+
+    @Test
+    public void slowRateIsNotLostToFrequentChecks() {
+        RateLimiter limiter = new RateLimiter(16, 1, 1.0 / 3600);
+        assertEquals(0, limiter.acquire(7, 0));
+        long now = 0;
+        int dropped = 0;
+        while (limiter.acquire(7, now += 100) == RateLimiter.DROP) {
+            dropped++;
+        }
+        assertEquals(3600 * 10 - 1, dropped);
+    }
+
+    @Test
+    public void tinyRatesAreFloored() {
+        RateLimiter limiter = new RateLimiter(16, 1, 1e-12);
+        assertEquals(0, limiter.acquire(3, 0));
+        assertEquals(RateLimiter.DROP, limiter.acquire(3, 30 * DAY));
+        assertEquals(1, limiter.acquire(3, 1000L * 1000 * 1000 * 1000 + 1));
+    }
+
+    @Test
+    public void zeroRateNeverRefills() {
+        RateLimiter limiter = new RateLimiter(16, 1, 0);
+        assertEquals(0, limiter.acquire(3, 0));
+        assertEquals(RateLimiter.DROP, limiter.acquire(3, 365 * DAY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeRateIsRejected() {
+        new RateLimiter(16, 1, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hugeBurstIsRejected() {
+        new RateLimiter(16, Integer.MAX_VALUE, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nanRateIsRejected() {
+        new RateLimiter(16, 1, Double.NaN);
+    }
+
+    @Test
+    public void longIdleDoesNotOverflow() {
+        RateLimiter limiter = new RateLimiter(16, 3, 1000);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire(5, 0));
+        }
+        assertEquals(RateLimiter.DROP, limiter.acquire(5, 0));
+        assertEquals(1, limiter.acquire(5, Long.MAX_VALUE / 2));
+        assertEquals(0, limiter.acquire(5, Long.MAX_VALUE / 2));
+        assertEquals(0, limiter.acquire(5, Long.MAX_VALUE / 2));
+        assertEquals(RateLimiter.DROP, limiter.acquire(5, Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    public void samplingKeepsFirstAndEveryNth() {
+        RateLimiter limiter = new RateLimiter(16, 100, 100);
+        limiter.setSampleRate(0.25);
+        assertEquals(0, limiter.acquire(9, 0));
+        assertEquals(RateLimiter.DROP, limiter.acquire(9, 1));
+        assertEquals(RateLimiter.DROP, limiter.acquire(9, 2));
+        assertEquals(RateLimiter.DROP, limiter.acquire(9, 3));
+        assertEquals(3, limiter.acquire(9, 4));
+    }
+
+    @Test
+    public void concurrentCallersKeepOwnBursts() throws InterruptedException {
+        final RateLimiter limiter = new RateLimiter(256, 50, 0);
+        final AtomicInteger kept = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final long key = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        if (limiter.acquire(key % 4, i) != RateLimiter.DROP) {
+                            kept.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // four fingerprints, two threads each, one burst per fingerprint
+        assertEquals(4 * 50, kept.get());
+    }
+}
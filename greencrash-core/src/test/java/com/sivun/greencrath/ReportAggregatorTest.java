@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReportAggregatorTest {
+
+    private static final long TIME = 1500000000000L;
+
+    private File mDir;
+    private ReportAggregator mAggregator;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = TestFiles.newDirectory("aggregate");
+        mAggregator = new ReportAggregator(4);
+    }
+
+    @After
+    public void tearDown() {
+        mAggregator.shutdown();
+        TestFiles.delete(mDir);
+    }
+
+    private static String trace(String type, int line) {
+        return type + ": boom\n\tat com.example.Foo.bar(Foo.java:" + line + ")\n"
+                + "\tat com.example.Main.main(Main.java:3)\n";
+    }
+
+    private File report(File dir, String name, long time, String model, String versionCode, String stackTrace)
+            throws IOException {
+        CrashReportWriter writer = new CrashReportWriter(256);
+        writer.putField(CrashEngine.VERSION_CODE, versionCode);
+        writer.putField("PhoneModel", model);
+        writer.putField(CrashEngine.STACK_TRACE_KEY, stackTrace);
+        File file = new File(dir, name);
+        writer.writeTo(file);
+        assertTrue(file.setLastModified(time));
+        return file;
+    }
+
+    @Test
+    public void groupsByFingerprintVersionAndModel() throws IOException {
+        String npe = "java.lang.NullPointerException";
+        // line numbers do not change the fingerprint
+        report(mDir, "a.gcr", TIME, "Pixel", "12", trace(npe, 10));
+        File newest = report(mDir, "b.gcr", TIME + 5000, "Pixel", "12", trace(npe, 11));
+        report(mDir, "c.gcr", TIME + 2000, "Pixel", "12", trace(npe, 12));
+        report(mDir, "d.gcr", TIME, "Galaxy", "12", trace(npe, 10));
+        report(mDir, "e.gcr", TIME, "Pixel", "13", trace(npe, 10));
+        report(mDir, "f.gcr", TIME, "Pixel", "13", trace(npe, 10));
+        report(mDir, "g.gcr", TIME, "Pixel", "12", trace("java.lang.IllegalStateException", 10));
+
+        List<ReportAggregator.Group> groups = mAggregator.aggregate(mDir);
+        assertEquals(7, mAggregator.getReportCount());
+        assertEquals(0, mAggregator.getUnreadableCount());
+        assertEquals(4, groups.size());
+
+        ReportAggregator.Group top = groups.get(0);
+        assertEquals(3, top.getCount());
+        assertEquals(12, top.getVersionCode());
+        assertEquals("Pixel", top.getModel());
+        assertEquals(TIME, top.getFirstTime());
+        assertEquals(TIME + 5000, top.getLastTime());
+        assertEquals(npe, top.getExceptionType());
+        assertEquals("com.example.Foo.bar(Foo.java:11)", top.getTopFrame());
+        assertEquals(newest, top.getSample());
+        assertEquals(CrashFingerprint.compute(trace(npe, 99)), top.getFingerprint());
+
+        ReportAggregator.Group second = groups.get(1);
+        assertEquals(2, second.getCount());
+        assertEquals(13, second.getVersionCode());
+        for (int i = 2; i < groups.size(); i++) {
+            assertEquals(1, groups.get(i).getCount());
+        }
+    }
+
+    @Test
+    public void storedFingerprintWins() throws IOException {
+        long fingerprint = 0x0123456789abcdefL;
+        for (int i = 0; i < 2; i++) {
+            CrashReportWriter writer = new CrashReportWriter(256);
+            writer.putField("CrashFingerprint", CrashFingerprint.toHex(fingerprint));
+            writer.putField(CrashEngine.STACK_TRACE_KEY, trace(i == 0 ? "java.lang.Error" : "java.lang.Exception", 1));
+            writer.writeTo(new File(mDir, i + ".gcr"));
+        }
+        List<ReportAggregator.Group> groups = mAggregator.aggregate(mDir);
+        assertEquals(1, groups.size());
+        assertEquals(fingerprint, groups.get(0).getFingerprint());
+        assertEquals(2, groups.get(0).getCount());
+        assertEquals("?", groups.get(0).getModel());
+    }
+
+    @Test
+    public void readsTextReportsSubdirectoriesAndSkipsOtherFiles() throws IOException {
+        File sub = new File(new File(mDir, "device1"), "day2");
+        assertTrue(sub.mkdirs());
+        report(mDir, "a.gcr", TIME, "Pixel", "12", trace("java.lang.Error", 1));
+        report(sub, "b.gcr", TIME, "Pixel", "12", trace("java.lang.Error", 2));
+        FileOutputStream out = new FileOutputStream(new File(sub, "old.txt"));
+        try {
+            out.write(("VersionCode=12\nPhoneModel=Pixel\nStackTrace=" + trace("java.lang.Error", 3))
+                    .getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        TestFiles.write(new File(sub, "notes.log"), 100);
+        // not a report at all
+        new File(mDir, "empty.gcr").createNewFile();
+
+        List<ReportAggregator.Group> groups = mAggregator.aggregate(mDir);
+        assertEquals(3, mAggregator.getReportCount());
+        assertEquals(1, mAggregator.getUnreadableCount());
+        assertEquals(1, groups.size());
+        assertEquals(3, groups.get(0).getCount());
+    }
+
+    @Test
+    public void batchesAddUp() throws IOException {
+        // enough files to be split over several batches and directories
+        for (int d = 0; d < 3; d++) {
+            File dir = new File(mDir, "d" + d);
+            assertTrue(dir.mkdir());
+            for (int i = 0; i < 100; i++) {
+                report(dir, i + ".gcr", TIME + i * 1000L, "Model" + (i % 5), "1",
+                        trace(i % 2 == 0 ? "java.lang.Error" : "java.lang.Exception", i));
+            }
+        }
+        List<ReportAggregator.Group> groups = mAggregator.aggregate(mDir);
+        assertEquals(300, mAggregator.getReportCount());
+        assertEquals(10, groups.size());
+        for (ReportAggregator.Group group : groups) {
+            assertEquals(30, group.getCount());
+        }
+        // ties are ordered by the newest report
+        assertEquals(TIME + 99000, groups.get(0).getLastTime());
+    }
+
+    @Test
+    public void printsTabSeparatedValues() throws IOException {
+        File file = report(mDir, "a.gcr", TIME, "Pixel", "12", trace("java.lang.Error", 1));
+        List<ReportAggregator.Group> groups = mAggregator.aggregate(mDir);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ReportAggregator.print(groups, 10, true, new PrintStream(bytes, true, "UTF-8"));
+        String[] lines = bytes.toString("UTF-8").split("\r?\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("rank\tcount\t"));
+        String[] columns = lines[1].split("\t");
+        assertEquals("1", columns[0]);
+        assertEquals("1", columns[1]);
+        assertEquals("12", columns[4]);
+        assertEquals("Pixel", columns[5]);
+        assertEquals(CrashFingerprint.toHex(groups.get(0).getFingerprint()), columns[6]);
+        assertEquals("java.lang.Error", columns[7]);
+        assertEquals(file.toString(), columns[9]);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReportRetentionTest {
+
+    private static final long UNLIMITED = Long.MAX_VALUE;
+    // one manifest record: op, UTF name, size, time
+    private static final int RECORD_SIZE = 1 + 2 + "crash-0000.gcr".length() + 16;
+
+    private File mDir;
+    private final List<String> mRemoved = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = TestFiles.newDirectory("retention");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mDir);
+    }
+
+    private ReportRetention newRetention(long maxBytes, int maxFiles) {
+        ReportRetention retention = new ReportRetention(mDir, maxBytes, maxFiles, 0, new ErrorReporter());
+        retention.setRemovalListener(new ReportRetention.RemovalListener() {
+            @Override
+            public void onReportRemoved(String name) {
+                mRemoved.add(name);
+            }
+        });
+        return retention;
+    }
+
+    private File add(ReportRetention retention, int index, int size) throws IOException {
+        File report = TestFiles.write(new File(mDir, String.format("crash-%04d.gcr", index)), size);
+        retention.add(report, 1000 + index);
+        return report;
+    }
+
+    private File manifest() {
+        return new File(mDir, ReportRetention.MANIFEST_NAME);
+    }
+
+    @Test
+    public void evictsOldestOverFileLimit() throws IOException {
+        ReportRetention retention = newRetention(UNLIMITED, 3);
+        for (int i = 0; i < 5; i++) {
+            add(retention, i, 10);
+        }
+        assertEquals(Arrays.asList("crash-0002.gcr", "crash-0003.gcr", "crash-0004.gcr"),
+                Arrays.asList(retention.list()));
+        assertEquals(Arrays.asList("crash-0000.gcr", "crash-0001.gcr"), mRemoved);
+        assertFalse(new File(mDir, "crash-0000.gcr").exists());
+        assertEquals(30, retention.totalBytes());
+    }
+
+    @Test
+    public void evictsOverByteLimitButKeepsNewest() throws IOException {
+        ReportRetention retention = newRetention(250, Integer.MAX_VALUE);
+        add(retention, 0, 100);
+        add(retention, 1, 100);
+        add(retention, 2, 100);
+        assertEquals(Arrays.asList("crash-0001.gcr", "crash-0002.gcr"), Arrays.asList(retention.list()));
+        add(retention, 3, 1000);
+        assertEquals(Arrays.asList("crash-0003.gcr"), Arrays.asList(retention.list()));
+    }
+
+    @Test
+    public void manifestIsCompacted() throws IOException {
+        ReportRetention retention = newRetention(UNLIMITED, 5);
+        for (int i = 0; i < 500; i++) {
+            add(retention, i, 10);
+        }
+        // 500 adds and 495 deletes, but the manifest stays near the live count
+        assertTrue(manifest().length() <= (2 * 5 + 32 + 1) * RECORD_SIZE);
+        assertEquals(5, retention.list().length);
+
+        ReportRetention reopened = newRetention(UNLIMITED, 5);
+        assertEquals(Arrays.asList(retention.list()), Arrays.asList(reopened.list()));
+        assertEquals(50, reopened.totalBytes());
+    }
+
+    @Test
+    public void removeAllCompactsToEmpty() throws IOException {
+        ReportRetention retention = newRetention(UNLIMITED, 100);
+        for (int i = 0; i < 10; i++) {
+            add(retention, i, 10);
+        }
+        retention.removeAll();
+        assertEquals(0, manifest().length());
+        assertEquals(0, newRetention(UNLIMITED, 100).list().length);
+        assertEquals(10, mRemoved.size());
+    }
+
+    @Test
+    public void damagedManifestTailIsDropped() throws IOException {
+        ReportRetention retention = newRetention(UNLIMITED, 100);
+        for (int i = 0; i < 3; i++) {
+            add(retention, i, 10);
+        }
+        // a process died half way through appending a record
+        RandomAccessFile raf = new RandomAccessFile(manifest(), "rw");
+        try {
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+        ReportRetention reopened = newRetention(UNLIMITED, 100);
+        assertEquals(Arrays.asList("crash-0000.gcr", "crash-0001.gcr"), Arrays.asList(reopened.list()));
+        assertEquals(2 * RECORD_SIZE, manifest().length());
+
+        // the report itself is still on disk and found again
+        reopened.reconcile();
+        assertEquals(3, reopened.list().length);
+    }
+
+    @Test
+    public void reconcileDropsReportsDeletedBehindItsBack() throws IOException {
+        ReportRetention retention = newRetention(UNLIMITED, 100);
+        add(retention, 0, 10);
+        File gone = add(retention, 1, 10);
+        assertTrue(gone.delete());
+        retention.reconcile();
+        assertEquals(Arrays.asList("crash-0000.gcr"), Arrays.asList(retention.list()));
+        assertEquals(Arrays.asList("crash-0001.gcr"), mRemoved);
+    }
+
+    @Test
+    public void scansDirectoryWithoutManifest() throws IOException {
+        TestFiles.write(new File(mDir, "old.txt"), 10);
+        TestFiles.write(new File(mDir, "crash-0001.gcr"), 20);
+        TestFiles.write(new File(mDir, "notes.md"), 30);
+        ReportRetention retention = newRetention(UNLIMITED, 100);
+        assertEquals(2, retention.list().length);
+        assertEquals(30, retention.totalBytes());
+        assertTrue(manifest().exists());
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReportUploaderTest {
+
+    private File mDir;
+    private BatchServer mServer;
+    private ReportRetention mRetention;
+    private final List<String> mDelivered = new ArrayList<String>();
+    private final List<Boolean> mExistedWhenDelivered = new ArrayList<Boolean>();
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = TestFiles.newDirectory("uploader");
+        mServer = new BatchServer();
+        mRetention = new ReportRetention(mDir, Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE,
+                new ErrorReporter());
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        TestFiles.delete(mDir);
+    }
+
+    private ReportUploader newUploader(URL url) {
+        HttpReportSender sender = new HttpReportSender(url);
+        sender.setTimeouts(2000, 2000);
+        ReportUploader uploader = new ReportUploader(mRetention, sender, new ErrorReporter(), new ReportUploader.Listener() {
+            @Override
+            public void beforeSend(List<File> reports) {
+            }
+
+            @Override
+            public void onDelivered(List<File> reports) {
+                for (File report : reports) {
+                    mDelivered.add(report.getName());
+                    mExistedWhenDelivered.add(report.exists());
+                }
+            }
+        });
+        uploader.setBackoff(1, 4);
+        return uploader;
+    }
+
+    private List<String> addReports(int count, int size) throws IOException {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            String name = String.format("crash-%04d.gcr", i);
+            mRetention.add(TestFiles.write(new File(mDir, name), size), 1000 + i);
+            names.add(name);
+        }
+        return names;
+    }
+
+    private List<String> sentNames() {
+        List<String> names = new ArrayList<String>();
+        for (Map<String, byte[]> batch : mServer.getBatches()) {
+            names.addAll(batch.keySet());
+        }
+        return names;
+    }
+
+    @Test
+    public void deliversInBatchesAndDeletesAfterAck() throws IOException {
+        List<String> names = addReports(ReportUploader.MAX_BATCH_FILES + 5, 100);
+        newUploader(mServer.getUrl()).uploadPending();
+
+        List<Map<String, byte[]>> batches = mServer.getBatches();
+        assertEquals(2, batches.size());
+        assertEquals(ReportUploader.MAX_BATCH_FILES, batches.get(0).size());
+        assertEquals(5, batches.get(1).size());
+        assertEquals(names, sentNames());
+        assertEquals(names, mDelivered);
+        assertFalse(mExistedWhenDelivered.contains(Boolean.FALSE));
+        assertEquals(0, mRetention.list().length);
+        for (String name : names) {
+            assertFalse(new File(mDir, name).exists());
+        }
+    }
+
+    @Test
+    public void batchesAreLimitedByBytes() throws IOException {
+        addReports(3, (int) (ReportUploader.MAX_BATCH_BYTES / 2));
+        newUploader(mServer.getUrl()).uploadPending();
+
+        List<Map<String, byte[]>> batches = mServer.getBatches();
+        assertEquals(2, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals(1, batches.get(1).size());
+        assertEquals(0, mRetention.list().length);
+    }
+
+    @Test
+    public void retriesServerErrors() throws IOException {
+        List<String> names = addReports(3, 100);
+        mServer.respond(500, -1);
+        mServer.respond(503, -1);
+        newUploader(mServer.getUrl()).uploadPending();
+
+        assertEquals(3, mServer.getBatches().size());
+        assertEquals(names, mDelivered);
+        assertEquals(0, mRetention.list().length);
+    }
+
+    @Test
+    public void keepsReportsWhenAttemptsRunOut() throws IOException {
+        List<String> names = addReports(3, 100);
+        for (int i = 0; i < ReportUploader.MAX_ATTEMPTS; i++) {
+            mServer.respond(500, -1);
+        }
+        newUploader(mServer.getUrl()).uploadPending();
+
+        assertEquals(ReportUploader.MAX_ATTEMPTS, mServer.getBatches().size());
+        assertTrue(mDelivered.isEmpty());
+        assertEquals(names, Arrays.asList(mRetention.list()));
+        for (String name : names) {
+            assertTrue(new File(mDir, name).exists());
+        }
+    }
+
+    @Test
+    public void retriesIoErrorsUntilServerIsBack() throws Exception {
+        List<String> names = addReports(2, 100);
+        URL url = mServer.getUrl();
+        mServer.stop();
+        newUploader(url).uploadPending();
+        assertTrue(mDelivered.isEmpty());
+        assertEquals(names, Arrays.asList(mRetention.list()));
+
+        mServer = new BatchServer();
+        newUploader(mServer.getUrl()).uploadPending();
+        assertEquals(names, mDelivered);
+        assertEquals(0, mRetention.list().length);
+    }
+
+    @Test
+    public void partialAckDeletesOnlyAcceptedReports() throws IOException {
+        List<String> names = addReports(5, 100);
+        mServer.respond(200, 2);
+        for (int i = 1; i < ReportUploader.MAX_ATTEMPTS; i++) {
+            mServer.respond(500, -1);
+        }
+        newUploader(mServer.getUrl()).uploadPending();
+
+        assertEquals(names.subList(0, 2), mDelivered);
+        assertEquals(names.subList(2, 5), Arrays.asList(mRetention.list()));
+        assertFalse(new File(mDir, names.get(0)).exists());
+        assertTrue(new File(mDir, names.get(2)).exists());
+        // the retries only carried what was still missing
+        List<Map<String, byte[]>> batches = mServer.getBatches();
+        assertEquals(5, batches.get(0).size());
+        assertEquals(names.subList(2, 5), new ArrayList<String>(batches.get(1).keySet()));
+    }
+
+    @Test
+    public void partialAckResendsRemainder() throws IOException {
+        List<String> names = addReports(5, 100);
+        mServer.respond(200, 3);
+        mServer.respond(200, 0);
+        newUploader(mServer.getUrl()).uploadPending();
+
+        assertEquals(3, mServer.getBatches().size());
+        assertEquals(names, mDelivered);
+        assertEquals(0, mRetention.list().length);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RetracerTest {
+
+    private static final String MAPPING = ""
+            + "# compiler: R8\n"
+            + "com.example.MainActivity -> a.a:\n"
+            + "# {\"id\":\"sourceFile\",\"fileName\":\"MainActivity.kt\"}\n"
+            + "    int count -> a\n"
+            + "    1:3:void onCreate(android.os.Bundle):20:22 -> a\n"
+            + "    4:4:void com.example.Strings.check(java.lang.String):7:7 -> a\n"
+            + "    4:4:void onResume():30 -> a\n"
+            + "    void overloaded(int) -> b\n"
+            + "    void overloaded(java.lang.String) -> b\n"
+            + "com.example.Util$Inner -> a.b:\n"
+            + "    void run() -> c\n"
+            + "com.example.AppException -> a.c:\n";
+
+    private File mDir;
+    private Retracer mRetracer;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = TestFiles.newDirectory("retrace");
+        File mapping = new File(mDir, "mapping.txt");
+        FileOutputStream out = new FileOutputStream(mapping);
+        try {
+            out.write(MAPPING.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        File index = new File(mDir, "mapping.idx");
+        Retracer.compile(mapping, index);
+        mRetracer = Retracer.open(index);
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(mDir);
+    }
+
+    @Test
+    public void mapsLineRanges() {
+        assertEquals("\tat com.example.MainActivity.onCreate(MainActivity.kt:21)",
+                mRetracer.retraceLine("\tat a.a.a(SourceFile:2)"));
+    }
+
+    @Test
+    public void expandsInlinedFramesInnermostFirst() {
+        assertEquals("\tat com.example.Strings.check(Strings.java:7)\n"
+                        + "\tat com.example.MainActivity.onResume(MainActivity.kt:30)",
+                mRetracer.retraceLine("\tat a.a.a(SourceFile:4)"));
+    }
+
+    @Test
+    public void mergesOverloadsOfTheSameName() {
+        assertEquals("\tat com.example.MainActivity.overloaded(MainActivity.kt:9)",
+                mRetracer.retraceLine("\tat a.a.b(SourceFile:9)"));
+    }
+
+    @Test
+    public void renamesClassesOfUnknownMethods() {
+        assertEquals("\tat com.example.Util$Inner.zz(SourceFile:3)",
+                mRetracer.retraceLine("\tat a.b.zz(SourceFile:3)"));
+        assertEquals("\tat com.example.Util$Inner.run(Util.java)",
+                mRetracer.retraceLine("\tat a.b.c(Unknown Source)"));
+    }
+
+    @Test
+    public void mapsExceptionHeaders() {
+        assertEquals("com.example.AppException: bad: input", mRetracer.retraceLine("a.c: bad: input"));
+        assertEquals("Caused by: com.example.AppException", mRetracer.retraceLine("Caused by: a.c"));
+        assertEquals("Exception in thread \"main\" com.example.AppException: x",
+                mRetracer.retraceLine("Exception in thread \"main\" a.c: x"));
+        assertEquals("com.example.AppException", mRetracer.retraceClass("a.c"));
+        assertEquals("z.z", mRetracer.retraceClass("z.z"));
+    }
+
+    @Test
+    public void keepsUnknownLines() {
+        String trace = "java.lang.IllegalStateException: x\n"
+                + "\tat android.os.Handler.dispatchMessage(Handler.java:99)\n"
+                + "\t... 3 more\n"
+                + "\tat a.a.a(SourceFile:3)";
+        assertEquals("java.lang.IllegalStateException: x\n"
+                + "\tat android.os.Handler.dispatchMessage(Handler.java:99)\n"
+                + "\t... 3 more\n"
+                + "\tat com.example.MainActivity.onCreate(MainActivity.kt:22)", mRetracer.retrace(trace));
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File bogus = TestFiles.write(new File(mDir, "bogus.idx"), 100);
+        try {
+            Retracer.open(bogus);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+}
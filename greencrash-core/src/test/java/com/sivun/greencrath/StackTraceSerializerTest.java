@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StackTraceSerializerTest {
+
+    private final StackTraceSerializer mSerializer = new StackTraceSerializer(
+            StackTraceSerializer.DEFAULT_MAX_TRACE_CHARS, StackTraceSerializer.DEFAULT_MAX_REPORT_CHARS);
+
+    private static <T extends Throwable> T withFrames(T e, String... frames) {
+        StackTraceElement[] stack = new StackTraceElement[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            String frame = frames[i];
+            int dot = frame.lastIndexOf('.');
+            int colon = frame.indexOf(':');
+            stack[i] = new StackTraceElement(frame.substring(0, dot), frame.substring(dot + 1, colon),
+                    "Source.java", Integer.parseInt(frame.substring(colon + 1)));
+        }
+        e.setStackTrace(stack);
+        return e;
+    }
+
+    private static String print(Throwable e) {
+        StringWriter out = new StringWriter();
+        e.printStackTrace(new PrintWriter(out));
+        return out.toString().replace(System.getProperty("line.separator"), "\n");
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static String[] deepFrames(String type, int count) {
+        String[] frames = new String[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = "com.a." + type + ".call" + i + ":" + i;
+        }
+        return frames;
+    }
+
+    @Test
+    public void matchesPrintStackTrace() {
+        Throwable e = withFrames(new IllegalStateException("broken"),
+                "com.a.Foo.bar:10", "com.a.Foo.run:20", "com.a.Main.main:3");
+        assertEquals(print(e), mSerializer.serialize(e));
+    }
+
+    @Test
+    public void foldsFramesSharedWithEnclosingTrace() {
+        Throwable cause = withFrames(new IllegalArgumentException("bad"),
+                "com.a.Parser.parse:7", "com.a.Foo.bar:11", "com.a.Foo.run:20", "com.a.Main.main:3");
+        Throwable e = withFrames(new IllegalStateException("broken", cause),
+                "com.a.Foo.bar:12", "com.a.Foo.run:20", "com.a.Main.main:3");
+        String text = mSerializer.serialize(e);
+        assertEquals(print(e), text);
+        assertTrue(text.contains("Caused by: java.lang.IllegalArgumentException: bad\n"
+                + "\tat com.a.Parser.parse(Source.java:7)\n"
+                + "\tat com.a.Foo.bar(Source.java:11)\n"
+                + "\t... 2 more\n"));
+    }
+
+    @Test
+    public void printsSuppressedIndented() {
+        Throwable e = withFrames(new IllegalStateException("broken"), "com.a.Foo.close:5", "com.a.Main.main:3");
+        e.addSuppressed(withFrames(new IllegalArgumentException("also"), "com.a.Bar.close:9", "com.a.Main.main:3"));
+        String text = mSerializer.serialize(e);
+        assertEquals(print(e), text);
+        assertTrue(text.contains("\tSuppressed: java.lang.IllegalArgumentException: also\n"
+                + "\t\tat com.a.Bar.close(Source.java:9)\n"
+                + "\t\t... 1 more\n"));
+    }
+
+    @Test
+    public void collapsesRecursion() {
+        String[] frames = new String[2 + 2 * 100];
+        frames[0] = "com.a.Tree.leaf:1";
+        for (int i = 0; i < 100; i++) {
+            frames[1 + 2 * i] = "com.a.Tree.visit:10";
+            frames[2 + 2 * i] = "com.a.Tree.visitChildren:20";
+        }
+        frames[frames.length - 1] = "com.a.Main.main:3";
+        String text = mSerializer.serialize(withFrames(new StackOverflowError(), frames));
+        assertEquals(1, count(text, "com.a.Tree.visit(Source.java:10)"));
+        assertEquals(1, count(text, "com.a.Tree.visitChildren(Source.java:20)"));
+        assertTrue(text.contains("\t... 2 frames repeated 99 more times\n"));
+        assertTrue(text.endsWith("\tat com.a.Main.main(Source.java:3)\n"));
+
+        String[] same = new String[50];
+        for (int i = 0; i < same.length; i++) {
+            same[i] = "com.a.Loop.spin:4";
+        }
+        text = mSerializer.serialize(withFrames(new StackOverflowError(), same));
+        assertEquals(1, count(text, "com.a.Loop.spin"));
+        assertTrue(text.contains("\t... frame repeated 49 more times\n"));
+    }
+
+    @Test
+    public void shortRepeatsAreNotCollapsed() {
+        Throwable e = withFrames(new IllegalStateException(),
+                "com.a.Tree.visit:10", "com.a.Tree.visit:10", "com.a.Main.main:3");
+        assertEquals(print(e), mSerializer.serialize(e));
+    }
+
+    @Test
+    public void stopsAtCauseCycles() {
+        IllegalStateException first = withFrames(new IllegalStateException("first"), "com.a.Foo.bar:1");
+        IllegalArgumentException second = withFrames(new IllegalArgumentException("second"), "com.a.Foo.baz:2");
+        first.initCause(second);
+        second.initCause(first);
+        String text = mSerializer.serialize(first);
+        assertEquals(1, count(text, "com.a.Foo.bar("));
+        assertEquals(1, count(text, "com.a.Foo.baz("));
+        assertTrue(text.endsWith("Caused by: [CIRCULAR REFERENCE: java.lang.IllegalStateException: first]\n"));
+    }
+
+    @Test
+    public void capsEachTraceAndTheReport() {
+        Throwable e = withFrames(new IllegalStateException(), deepFrames("Deep", 1000));
+        String text = new StackTraceSerializer(1024, 64 * 1024).serialize(e);
+        assertTrue(text.length() < 1024 + 200);
+        assertTrue(text.contains(" frames omitted\n"));
+
+        // no frames in common, so every cause runs into the trace cap
+        for (int i = 0; i < 10; i++) {
+            e = withFrames(new RuntimeException("wrap " + i, e), deepFrames("Wrap" + i, 1000));
+        }
+        text = new StackTraceSerializer(1024, 4096).serialize(e);
+        assertTrue(text.length() < 4096 + 1024 + 200);
+        assertTrue(text.endsWith("... truncated\n"));
+    }
+
+    @Test
+    public void brokenMessageKeepsTheType() {
+        Throwable e = withFrames(new IllegalStateException() {
+            @Override
+            public String getMessage() {
+                throw new UnsupportedOperationException();
+            }
+        }, "com.a.Foo.bar:1");
+        assertTrue(mSerializer.serialize(e).startsWith(e.getClass().getName() + "\n"));
+    }
+}
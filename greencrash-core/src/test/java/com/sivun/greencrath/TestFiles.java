@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 测试用的文件工具。
+ */
+final class TestFiles {
+
+    private TestFiles() {
+    }
+
+    static File newDirectory(String prefix) throws IOException {
+        File dir = File.createTempFile("greencrash-" + prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("could not create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Writes {@code size} bytes of report-like text.
+     */
+    static File write(File file, int size) throws IOException {
+        String line = "\tat com.example.Foo.bar(Foo.java:42) " + file.getName() + "\n";
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) line.charAt(i % line.length());
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int done = 0;
+            int read;
+            while (done < data.length && (read = in.read(data, done, data.length - done)) > 0) {
+                done += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
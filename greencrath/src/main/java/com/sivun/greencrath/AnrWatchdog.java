@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * 主线程卡顿（ANR）监控。
+ * <p>
+ * A single background thread posts a heartbeat to the main looper and
+ * sleeps for the threshold. If the heartbeat ran meanwhile it posts the
+ * next one, so a healthy app costs one wakeup of the watchdog per threshold
+ * and one preallocated runnable on the main thread. If it did not run, the
+ * main thread has been blocked for at least the threshold: its stack is
+ * captured, optionally sampled a few more times while the stall lasts, and
+ * handed to the {@link Listener}. The thread then waits, without waking up,
+ * until the heartbeat finally runs, so one stall is reported once.
+ * <p>
+ * Time is measured with {@link SystemClock#uptimeMillis()}, which stops in
+ * deep sleep, so a device going to sleep is not taken for a stall. Stalls
+ * while a debugger is attached are ignored.
+ */
+final class AnrWatchdog {
+
+    static final long DEFAULT_THRESHOLD_MILLIS = 5000;
+    static final int DEFAULT_SAMPLES = 3;
+
+    private static final long FOREVER = Long.MAX_VALUE;
+
+    interface Listener {
+        /**
+         * Called on the watchdog thread.
+         *
+         * @param stall   the main thread stack when the stall was detected
+         * @param samples the stacks sampled while it lasted, one block per
+         *                sample headed by its time, or null if none
+         */
+        void onStall(AnrException stall, String samples);
+    }
+
+    /**
+     * The main thread stack at the time a stall was detected.
+     */
+    static final class AnrException extends RuntimeException {
+        AnrException(String message, StackTraceElement[] stack) {
+            super(message);
+            setStackTrace(stack);
+        }
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Thread mMainThread = Looper.getMainLooper().getThread();
+    private final Object mLock = new Object();
+    private final long mThreshold;
+    private final int mSamples;
+    private final Listener mListener;
+    private final Thread mThread;
+    private long mTick;
+    private volatile boolean mStopped;
+
+    private final Runnable mHeartbeat = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mTick++;
+                mLock.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * @param thresholdMillis how long the main thread may be blocked
+     * @param samples         extra stack samples taken while a stall lasts,
+     *                        spread over one more threshold
+     */
+    AnrWatchdog(long thresholdMillis, int samples, Listener listener) {
+        mThreshold = thresholdMillis;
+        mSamples = samples;
+        mListener = listener;
+        mThread = new Thread("GreenCrash-ANR") {
+            @Override
+            public void run() {
+                watch();
+            }
+        };
+        mThread.setDaemon(true);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    void stop() {
+        mStopped = true;
+        mThread.interrupt();
+    }
+
+    private void watch() {
+        try {
+            while (!mStopped) {
+                long tick;
+                synchronized (mLock) {
+                    tick = mTick;
+                }
+                long posted = SystemClock.uptimeMillis();
+                mMainHandler.post(mHeartbeat);
+                Thread.sleep(mThreshold);
+                if (!waitForTick(tick, posted + mThreshold)) {
+                    onStall(tick);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Waits until the heartbeat after {@code tick} has run, at most until
+     * {@code deadline} in uptime, or forever.
+     *
+     * @return false if it did not run in time.
+     */
+    private boolean waitForTick(long tick, long deadline) throws InterruptedException {
+        synchronized (mLock) {
+            while (mTick == tick) {
+                if (deadline == FOREVER) {
+                    mLock.wait();
+                    continue;
+                }
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // sleeping may also count deep sleep, the loop re-checks uptime
+                mLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    private void onStall(long tick) throws InterruptedException {
+        if (Debug.isDebuggerConnected() || Debug.waitingForDebugger()) {
+            waitForTick(tick, FOREVER);
+            return;
+        }
+        long start = SystemClock.uptimeMillis() - mThreshold;
+        StackTraceElement[] first = mMainThread.getStackTrace();
+        StackTraceElement[][] samples = new StackTraceElement[mSamples][];
+        long[] sampleTimes = new long[mSamples];
+        int taken = 0;
+        long interval = mThreshold / Math.max(1, mSamples);
+        while (taken < mSamples && !waitForTick(tick, SystemClock.uptimeMillis() + interval)) {
+            sampleTimes[taken] = SystemClock.uptimeMillis() - start;
+            samples[taken] = mMainThread.getStackTrace();
+            taken++;
+        }
+        String sampled = null;
+        if (taken > 0) {
+            StringBuilder out = new StringBuilder(2048 * taken);
+            for (int i = 0; i < taken; i++) {
+                out.append("Main thread stack after ").append(sampleTimes[i]).append(" ms\n");
+                for (StackTraceElement frame : samples[i]) {
+                    out.append("\tat ").append(frame).append('\n');
+                }
+            }
+            sampled = out.toString();
+        }
+        long blocked = SystemClock.uptimeMillis() - start;
+        String still = taken == mSamples ? ", still blocked" : "";
+        // the samples stay out of the exception, so only the first stack
+        // makes the fingerprint
+        mListener.onStall(new AnrException("Main thread blocked for " + blocked + " ms" + still, first),
+                sampled);
+        waitForTick(tick, FOREVER);
+    }
+}
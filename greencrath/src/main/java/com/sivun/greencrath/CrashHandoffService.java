@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import android.app.IntentService;
+import android.content.Intent;
+
+/**
+ * 崩溃后续处理服务，运行在独立的 :crash 进程。
+ * <p>
+ * With {@link CrashReporter#setCrashHandoff(boolean)} on, a crashing
+ * process only writes a raw record of the crash, starts this service and
+ * exits. The service finishes the record into a report with the device
+ * metadata, deduplicates and stores it, shows the notification or toast
+ * and schedules the upload, all in a process whose state is sound.
+ * <p>
+ * Declare it in a process of its own:
+ * <pre>
+ * &lt;service
+ *     android:name="com.sivun.greencrath.CrashHandoffService"
+ *     android:process=":crash" /&gt;
+ * </pre>
+ * The application installs its {@link CrashReporter} in that process too,
+ * as in every process, so the service uses the same settings.
+ */
+public class CrashHandoffService extends IntentService {
+
+    public CrashHandoffService() {
+        super("GreenCrash-Handoff");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        CrashReporter reporter = CrashReporter.getInstance();
+        if (reporter == null) {
+            // the application does not install one in this process
+            reporter = new CrashReporter(getApplicationContext());
+        }
+        reporter.completeHandoffs(true);
+    }
+}
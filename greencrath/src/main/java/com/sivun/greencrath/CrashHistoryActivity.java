@@ -0,0 +1,241 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.sivun.greencrath;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 崩溃历史记录界面（面向开发者）
+ * <p>
+ * Lists the stored reports from the summary index, newest first, and
+ * loads more while scrolling. The filter box takes words to search for,
+ * plus {@code v:4512} for a version code and {@code type:NullPointer} for
+ * an exception type. Tapping a report opens it in
+ * {@link CrashReportActivity}.
+ */
+public class CrashHistoryActivity extends Activity {
+
+    private static final int PAGE_SIZE = 50;
+    private static final long FILTER_DELAY_MILLIS = 200;
+
+    private final Handler mHandler = new Handler();
+    private final List<CrashSummary> mItems = new ArrayList<CrashSummary>();
+    private final HistoryAdapter mAdapter = new HistoryAdapter();
+    private EditText mFilterInput;
+    private TextView mStatusView;
+
+    // Bumped for every new filter; pages of an older filter are ignored.
+    private int mGeneration;
+    private boolean mLoading;
+    private boolean mComplete;
+    private boolean mDestroyed;
+    private int mVersionCode = -1;
+    private String mExceptionType;
+    private String mText;
+
+    private final Runnable mApplyFilter = new Runnable() {
+        @Override
+        public void run() {
+            applyFilter();
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.crash_history_layout);
+        mFilterInput = (EditText) findViewById(R.id.filter_input);
+        mStatusView = (TextView) findViewById(R.id.status);
+        ListView listView = (ListView) findViewById(R.id.list);
+        listView.setEmptyView(findViewById(R.id.empty));
+        listView.setAdapter(mAdapter);
+        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView parent, View view, int position, long id) {
+                Intent intent = new Intent(CrashHistoryActivity.this, CrashReportActivity.class);
+                intent.putExtra(CrashReporter.EXTRA_REPORT_FILE_PATH, mItems.get(position).getFile().getPath());
+                startActivity(intent);
+            }
+        });
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisible, int visibleCount, int totalCount) {
+                if (firstVisible + visibleCount >= totalCount - PAGE_SIZE / 4) {
+                    loadPage();
+                }
+            }
+        });
+        mFilterInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mHandler.removeCallbacks(mApplyFilter);
+                mHandler.postDelayed(mApplyFilter, FILTER_DELAY_MILLIS);
+            }
+        });
+        applyFilter();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mDestroyed = true;
+        mHandler.removeCallbacks(mApplyFilter);
+        super.onDestroy();
+    }
+
+    private void applyFilter() {
+        CharSequence filter = mFilterInput.getText();
+        parseFilter(filter != null ? filter.toString() : "");
+        mGeneration++;
+        mItems.clear();
+        mAdapter.notifyDataSetChanged();
+        mLoading = false;
+        mComplete = false;
+        loadPage();
+    }
+
+    /**
+     * Splits the filter into the version code, the exception type and the
+     * words to search for.
+     */
+    private void parseFilter(String filter) {
+        mVersionCode = -1;
+        mExceptionType = null;
+        StringBuilder text = new StringBuilder();
+        for (String part : filter.trim().split("\\s+")) {
+            if (part.startsWith("v:")) {
+                mVersionCode = CrashSummary.parseVersionCode(part.substring(2));
+            } else if (part.startsWith("type:")) {
+                mExceptionType = part.substring(5);
+            } else if (part.length() > 0) {
+                text.append(part).append(' ');
+            }
+        }
+        mText = text.length() > 0 ? text.toString() : null;
+    }
+
+    private void loadPage() {
+        final CrashReporter reporter = CrashReporter.getInstance();
+        if (mLoading || mComplete) {
+            return;
+        }
+        if (reporter == null) {
+            mStatusView.setText("CrashReporter is not installed");
+            return;
+        }
+        mLoading = true;
+        mStatusView.setText("loading...");
+        final int generation = mGeneration;
+        final int versionCode = mVersionCode;
+        final String exceptionType = mExceptionType;
+        final String text = mText;
+        final int offset = mItems.size();
+        new Thread("GreenCrash-History") {
+            @Override
+            public void run() {
+                final List<CrashSummary> page = reporter.queryCrashHistory(versionCode, exceptionType, text,
+                        offset, PAGE_SIZE);
+                final int total = reporter.countCrashHistory(versionCode, exceptionType, text);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDestroyed || generation != mGeneration) {
+                            return;
+                        }
+                        mLoading = false;
+                        mComplete = page.size() < PAGE_SIZE;
+                        mItems.addAll(page);
+                        mAdapter.notifyDataSetChanged();
+                        mStatusView.setText(total + " reports");
+                    }
+                });
+            }
+        }.start();
+    }
+
+    private final class HistoryAdapter extends BaseAdapter {
+        private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss", Locale.US);
+
+        @Override
+        public int getCount() {
+            return mItems.size();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return mItems.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView view = (TextView) convertView;
+            if (view == null) {
+                view = new TextView(CrashHistoryActivity.this);
+                view.setPadding(5, 5, 5, 5);
+                view.setTextSize(11);
+            }
+            CrashSummary summary = mItems.get(position);
+            StringBuilder text = new StringBuilder(256);
+            text.append(mDateFormat.format(summary.getTime()))
+                    .append("  ").append(summary.getMode())
+                    .append("  v").append(summary.getVersionCode())
+                    .append('\n').append(summary.getExceptionType());
+            if (summary.getMessage().length() > 0) {
+                text.append(": ").append(summary.getMessage());
+            }
+            if (summary.getTopFrame().length() > 0) {
+                text.append("\n    at ").append(summary.getTopFrame());
+            }
+            view.setText(text);
+            return view;
+        }
+    }
+}
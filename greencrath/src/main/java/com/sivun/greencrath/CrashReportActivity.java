@@ -19,31 +19,57 @@ package com.sivun.greencrath;
 import android.app.Activity;
 import android.app.NotificationManager;
 import android.content.Intent;
+import android.graphics.Color;
+import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
 import android.text.TextUtils;
+import android.view.KeyEvent;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.TextView;
 
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 
 /**
  * 报错日志显示界面（面向开发者）
+ * <p>
+ * The report is indexed on a background thread and shown in a recycled
+ * list, one row per line, so large reports open without blocking the UI.
+ * Tapping a section header collapses or expands it; find runs in the
+ * background and steps through the matching lines.
  */
 public class CrashReportActivity extends Activity {
     /**
      * Default left title icon.
      */
 
+    private static final int MAX_MATCHES = 10000;
+    private static final int HIGHLIGHT_COLOR = 0xFFFFF59D;
+
     private String mReportFileName = null;
     private String mReportFilePath = null;
-    private String mContent = null;
-    private TextView mPathView, mFileNameView, mContentView;
+    private TextView mPathView, mFileNameView, mStatusView;
+    private EditText mFindInput;
+    private ListView mListView;
+    private final ReportAdapter mAdapter = new ReportAdapter();
+
+    // Bumped for every load, and for every search or shown document; late
+    // results are ignored. A search does not cancel a load.
+    private int mLoadGeneration;
+    private int mFindGeneration;
+    private boolean mDestroyed;
+    private ReportDocument mDocument;
+    private String mQuery;
+    private int[] mMatches;
+    private int mMatchIndex;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -51,7 +77,34 @@ public class CrashReportActivity extends Activity {
         setContentView(R.layout.crash_layout);
         mPathView = (TextView) findViewById(R.id.path);
         mFileNameView = (TextView) findViewById(R.id.file_name);
-        mContentView = (TextView) findViewById(R.id.content);
+        mStatusView = (TextView) findViewById(R.id.status);
+        mFindInput = (EditText) findViewById(R.id.find_input);
+        mListView = (ListView) findViewById(R.id.list);
+        mListView.setAdapter(mAdapter);
+        mListView.setFastScrollEnabled(true);
+        mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView parent, View view, int position, long id) {
+                int row = mAdapter.mRows[position];
+                if (row < 0) {
+                    mAdapter.toggle(-row - 1);
+                }
+            }
+        });
+        Button findButton = (Button) findViewById(R.id.find_button);
+        findButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                findNext();
+            }
+        });
+        mFindInput.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
+                findNext();
+                return true;
+            }
+        });
         handleIntent(getIntent());
     }
 
@@ -61,6 +114,12 @@ public class CrashReportActivity extends Activity {
         handleIntent(intent);
     }
 
+    @Override
+    protected void onDestroy() {
+        mDestroyed = true;
+        super.onDestroy();
+    }
+
     private void handleIntent(Intent i) {
         if (i == null) {
             return;
@@ -74,39 +133,230 @@ public class CrashReportActivity extends Activity {
             Uri uri = i.getData();
             mReportFilePath = uri != null ? uri.getPath() : null;
         }
+        mReportFileName = null;
         if (!TextUtils.isEmpty(mReportFilePath)) {
             mReportFileName = new File(mReportFilePath).getName();
-            mContent = readFile(mReportFilePath);
+            loadReport(new File(mReportFilePath));
+        } else {
+            showDocument(++mLoadGeneration, null);
         }
         mReportFilePath = TextUtils.isEmpty(mReportFilePath) ? "unknow" : mReportFilePath;
         mReportFileName = TextUtils.isEmpty(mReportFileName) ? "unknow" : mReportFileName;
-        mContent = TextUtils.isEmpty(mContent) ? "unknow" : mContent;
         mPathView.setText("LogPath:" + mReportFilePath);
         mFileNameView.setText(mReportFileName);
-        mContentView.setText(mContent);
     }
 
-    private String readFile(String mReportFilePath) {
-        StringBuffer sb = new StringBuffer();
-        try {
-            FileInputStream fis = new FileInputStream(mReportFilePath);
-            String lins;
-            BufferedReader bfr = new BufferedReader(new InputStreamReader(fis));
-            lins = bfr.readLine();
-            while (lins != null) {
-                sb.append(lins);
-                sb.append("\n");
-                lins = bfr.readLine();
+    private void loadReport(final File file) {
+        final int generation = ++mLoadGeneration;
+        mStatusView.setText("loading...");
+        new Thread("GreenCrash-Viewer") {
+            @Override
+            public void run() {
+                ReportDocument document = null;
+                CrashReporter reporter = CrashReporter.getInstance();
+                try {
+                    document = ReportDocument.load(file, reporter != null ? reporter.getRetracer() : null);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                final ReportDocument result = document;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showDocument(generation, result);
+                    }
+                });
             }
-            bfr.close();
-            fis.close();
-            return sb.toString();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+        }.start();
+    }
+
+    private void showDocument(int generation, ReportDocument document) {
+        if (mDestroyed || generation != mLoadGeneration) {
+            return;
+        }
+        // matches found in the previous document no longer apply
+        mFindGeneration++;
+        mDocument = document;
+        mQuery = null;
+        mMatches = null;
+        mAdapter.setDocument(document);
+        mStatusView.setText(document == null ? "unknow" : document.getLineCount() + " lines");
+    }
+
+    /**
+     * Searches on a new query, or moves to the next match of the current one.
+     */
+    private void findNext() {
+        final ReportDocument document = mDocument;
+        final String query = mFindInput.getText() != null ? mFindInput.getText().toString() : "";
+        if (document == null || query.length() == 0) {
+            return;
+        }
+        if (query.equals(mQuery)) {
+            if (mMatches != null && mMatches.length > 0) {
+                mMatchIndex = (mMatchIndex + 1) % mMatches.length;
+                showMatch();
+            }
+            return;
+        }
+        final int generation = ++mFindGeneration;
+        mQuery = query;
+        mMatches = null;
+        mStatusView.setText("searching...");
+        new Thread("GreenCrash-Find") {
+            @Override
+            public void run() {
+                final int[] matches = document.find(query, MAX_MATCHES);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDestroyed || generation != mFindGeneration) {
+                            return;
+                        }
+                        mMatches = matches;
+                        mMatchIndex = 0;
+                        showMatch();
+                    }
+                });
+            }
+        }.start();
+    }
+
+    private void showMatch() {
+        if (mMatches.length == 0) {
+            mAdapter.setHighlight(-1);
+            mStatusView.setText("no match");
+            return;
+        }
+        int line = mMatches[mMatchIndex];
+        mAdapter.setHighlight(line);
+        mListView.setSelection(mAdapter.rowOf(line));
+        mStatusView.setText((mMatchIndex + 1) + "/" + mMatches.length
+                + (mMatches.length == MAX_MATCHES ? "+" : ""));
+    }
+
+    /**
+     * Rows are section headers followed by the lines of expanded sections.
+     * {@code mRows} holds a line number, or {@code -(section + 1)} for a
+     * header.
+     */
+    private final class ReportAdapter extends BaseAdapter {
+        private ReportDocument mDoc;
+        private boolean[] mCollapsed = new boolean[0];
+        private int[] mSectionRows = new int[0];
+        int[] mRows = new int[0];
+        private int mHighlight = -1;
+
+        void setDocument(ReportDocument document) {
+            mDoc = document;
+            mCollapsed = new boolean[document != null ? document.getSectionCount() : 0];
+            mHighlight = -1;
+            rebuild();
+        }
+
+        void toggle(int section) {
+            mCollapsed[section] = !mCollapsed[section];
+            rebuild();
+        }
+
+        void setHighlight(int line) {
+            mHighlight = line;
+            if (line >= 0) {
+                int section = mDoc.getSectionOf(line);
+                if (mCollapsed[section]) {
+                    mCollapsed[section] = false;
+                    rebuild();
+                    return;
+                }
+            }
+            notifyDataSetChanged();
+        }
+
+        int rowOf(int line) {
+            int section = mDoc.getSectionOf(line);
+            return mSectionRows[section] + 1 + line - mDoc.getSectionStart(section);
+        }
+
+        private void rebuild() {
+            ReportDocument doc = mDoc;
+            if (doc == null) {
+                mRows = new int[0];
+                notifyDataSetChanged();
+                return;
+            }
+            int sections = doc.getSectionCount();
+            int count = sections;
+            for (int s = 0; s < sections; s++) {
+                if (!mCollapsed[s]) {
+                    count += doc.getSectionEnd(s) - doc.getSectionStart(s);
+                }
+            }
+            int[] rows = new int[count];
+            int[] sectionRows = new int[sections];
+            int row = 0;
+            for (int s = 0; s < sections; s++) {
+                sectionRows[s] = row;
+                rows[row++] = -s - 1;
+                if (!mCollapsed[s]) {
+                    for (int line = doc.getSectionStart(s); line < doc.getSectionEnd(s); line++) {
+                        rows[row++] = line;
+                    }
+                }
+            }
+            mRows = rows;
+            mSectionRows = sectionRows;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.length;
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return null;
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public int getViewTypeCount() {
+            return 2;
+        }
+
+        @Override
+        public int getItemViewType(int position) {
+            return mRows[position] < 0 ? 0 : 1;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView view = (TextView) convertView;
+            int row = mRows[position];
+            if (view == null) {
+                view = new TextView(CrashReportActivity.this);
+                view.setPadding(5, 1, 5, 1);
+                if (row < 0) {
+                    view.setTypeface(Typeface.DEFAULT_BOLD);
+                    view.setTextSize(12);
+                } else {
+                    view.setTypeface(Typeface.MONOSPACE);
+                    view.setTextSize(10);
+                }
+            }
+            if (row < 0) {
+                int section = -row - 1;
+                view.setText((mCollapsed[section] ? "+ " : "- ") + mDoc.getSectionTitle(section));
+            } else {
+                view.setText(mDoc.getLine(row));
+                view.setBackgroundColor(row == mHighlight ? HIGHLIGHT_COLOR : Color.TRANSPARENT);
+            }
+            return view;
         }
-        return null;
     }
 
     /**
@@ -15,6 +15,7 @@
  */
 package com.sivun.greencrath;
 
+import android.app.Application;
 import android.app.ActivityManager;
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -22,7 +23,6 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Debug;
@@ -35,23 +35,16 @@ import android.util.Log;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /***
  * 扑捉崩溃信息
@@ -80,18 +73,20 @@ public class CrashReporter implements UncaughtExceptionHandler {
     private static final String TAGS_KEY = "TAGS";
     private static final String TIME_KEY = "TIME";
     private static final String TYPE_KEY = "TYPE";
+    // Size and free space of the /data filesystem, despite the names
     private static final String TOTAL_MEM_SIZE_KEY = "TotalMemSize";
     private static final String AVAILABLE_MEM_SIZE_KEY = "AvaliableMemSize";
-    private static final String CUSTOM_DATA_KEY = "CustomData";
+    private static final String TOTAL_RAM_KEY = "TotalRam";
+    private static final String MEMORY_BASELINE_KEY = "MemoryBaseline";
+    private static final String MEMORY_DELTA_KEY = "MemoryDelta";
+    private static final String MEMORY_TREND_KEY = "MemoryTrend";
+    private static final String JOURNAL_INCOMPLETE_KEY = "JournalIncomplete";
 
     private static final String START_APP_TIME = "StartAppTime";
     private static final String CRASH_APP_TIME = "CrashAppTime";
 
-    private static final String STACK_TRACE_KEY = "StackTrace";
+    private static final String FRAME_HISTOGRAM_KEY = "FrameHistogram";
 
-    private static final String VERSION_CODE = "VersionCode";
-
-    private static final int MAX_LEFT_FILES = 10;
     /**
      * Bundle key for the icon in the status bar notification.
      */
@@ -102,12 +97,12 @@ public class CrashReporter implements UncaughtExceptionHandler {
      * issued when crashes occur.
      */
     public static final int NOTIF_CRASH_ID = 0x28a;
-    private Properties mCrashProperties = new Properties();
     private long mStartAppTime = 0;
-    private Debug.MemoryInfo mStartMem = null;
+    // Time spent in the constructor, on the thread that installed the reporter.
+    private long mInstallNanos = 0;
 
-    private Map<String, String> mCustomParameters = new HashMap<String, String>();
-    static final String REPORT_MODE = "report_mode";
+    // Capture, storage and upload, shared with the JVM core.
+    private final CrashEngine mEngine;
 
     static final String EXTRA_REPORT_FILE_PATH = "crash_file_path";
 
@@ -127,43 +122,259 @@ public class CrashReporter implements UncaughtExceptionHandler {
 
     // The Url we have to post the reports to.
 
-    private String mCrashFilePath = null;
     private static final String LOG_DIR_NAME = "CrashLog";
+    private static final String JOURNAL_FILE_NAME = "greencrash.journal";
+
+    // Pre-mapped record for fatal crashes, null unless enabled or until the
+    // init thread has mapped it.
+    private volatile CrashJournal mJournal = null;
+
+    // Static device/package metadata, collected once in the background.
+    private volatile DeviceSnapshot mSnapshot = null;
+
+    // Only the first thread to crash fatally writes a report; the others
+    // wait for it so the process is not killed half way through.
+    private static final long FATAL_WAIT_MILLIS = 10000;
+    private final AtomicBoolean mFatalClaimed = new AtomicBoolean();
+    private final CountDownLatch mFatalDone = new CountDownLatch(1);
+
+    // Reports main thread stalls once started, null otherwise.
+    private AnrWatchdog mAnrWatchdog;
+    // Summarizes slow frames once started, null otherwise.
+    private FrameMonitor mFrameMonitor;
+    // Records the memory curve written into reports; started by the init
+    // thread unless turned off before.
+    private volatile MemorySampler mMemorySampler;
+    private boolean mMemorySampling = true;
+    // Writes the heap next to the report of a fatal OutOfMemoryError, off
+    // by default.
+    private volatile boolean mHeapDumpOnOom = false;
+    private HeapDumpStore mHeapDumps;
+    // Free storage kept on top of the dump and its compressed copy
+    private static final long HEAP_DUMP_RESERVE_BYTES = 32 * 1024 * 1024;
+
+    // Deobfuscates the traces shown in the report viewer, null if not set.
+    private volatile Retracer mRetracer;
+
+    // Fatal crashes are finished by CrashHandoffService, off by default.
+    private volatile boolean mCrashHandoff = false;
+    // Set once the raw record of the fatal crash is written.
+    private volatile boolean mHandedOff = false;
+
+    // The installed reporter, for the history screen.
+    private static volatile CrashReporter sInstance = null;
 
     /**
      * @param context
      */
     public CrashReporter(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param context
+     * @param crashJournal true to pre-map a {@link CrashJournal}, so fatal
+     *                     crashes (in particular {@link OutOfMemoryError})
+     *                     are recorded even when the heap is exhausted.
+     */
+    public CrashReporter(Context context, final boolean crashJournal) {
+        long start = System.nanoTime();
+        sInstance = this;
         mStartAppTime = System.currentTimeMillis();
-        mStartMem = getApplicationMem(context);
+        mContext = context.getApplicationContext();
+        mEngine = new CrashEngine(new CrashEngine.Platform() {
+            @Override
+            public File getReportDirectory() {
+                return getCrashFilePath();
+            }
+
+            @Override
+            public long getAvailableBytes(File directory) {
+                return getAvailableSize(directory.getPath());
+            }
+
+            @Override
+            public void collectMetadata(ReportFields fields, long time) {
+                retrieveCrashData(fields, time);
+            }
+
+            @Override
+            public int getProcessId() {
+                return android.os.Process.myPid();
+            }
+        });
+        mEngine.setErrorListener(new CrashEngine.ErrorListener() {
+            @Override
+            public void onReportNotStored(String mode, Exception cause) {
+                Log.w("GreenCrash", "Could not store " + mode + " report", cause);
+            }
+
+            @Override
+            public void onError(String what, Throwable cause) {
+                Log.w("GreenCrash", "Failed to " + what, cause);
+            }
+        });
         mDfltExceptionHandler = Thread.getDefaultUncaughtExceptionHandler();
         Thread.setDefaultUncaughtExceptionHandler(this);
-        mContext = context.getApplicationContext();
 
-        if (Build.VERSION.SDK_INT >= 11) {
-            String obbDir = getObbDir(context);
-            final String dir = TextUtils.isEmpty(obbDir) ? SDCARD : obbDir;
-            mCrashFilePath = dir + File.separator + LOG_DIR_NAME + File.separator;
-        } else {
-            mCrashFilePath = Environment.getExternalStorageDirectory() + File.separator + LOG_DIR_NAME + File.separator;
+        // Everything that touches the disk or the system services is done
+        // later, so installing costs next to nothing in Application.onCreate
+        new Thread("GreenCrash-Init") {
+            @Override
+            public void run() {
+                try {
+                    if (crashJournal) {
+                        openJournal();
+                    }
+                    mEngine.getReportDirectory();
+                    synchronized (CrashReporter.this) {
+                        if (mMemorySampling && mMemorySampler == null) {
+                            startMemorySampler(MemorySampler.DEFAULT_INTERVAL_MILLIS,
+                                    MemorySampler.DEFAULT_CAPACITY);
+                        }
+                    }
+                    mSnapshot = DeviceSnapshot.capture(mContext, mStartAppTime);
+                    recoverJournal();
+                    // Records the hand-off service could not finish, if it
+                    // could not be started
+                    completeHandoffs(false);
+                    // Picks up reports of other processes killed before
+                    // they could record them
+                    mEngine.reconcileReports();
+                    // Reads every byte of a heap dump left by an earlier
+                    // crash, so it goes last
+                    getHeapDumps().processPending();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }.start();
+        mInstallNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * @return how long the constructor took on the installing thread, in
+     * nanoseconds, to keep an eye on the cost added to the app start.
+     */
+    public long getInstallNanos() {
+        return mInstallNanos;
+    }
+
+    /**
+     * Rebuilds the static metadata snapshot on a background thread. It is
+     * captured once after installation; call this only if something the
+     * snapshot holds has changed.
+     */
+    public void refreshSnapshot() {
+        new Thread("GreenCrash-Snapshot") {
+            @Override
+            public void run() {
+                try {
+                    mSnapshot = DeviceSnapshot.capture(mContext, mStartAppTime);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Maps the crash journal. Fatal crashes that happen before it is mapped
+     * only get a regular report.
+     */
+    private void openJournal() {
+        try {
+            mJournal = CrashJournal.open(new File(mContext.getFilesDir(), getJournalName()),
+                    CrashJournal.DEFAULT_SIZE);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * Generates the string which is posted in the single custom data field in
-     * the GoogleDocs Form.
-     *
-     * @return A string with a 'key = value' pair on each line.
+     * A mapped journal belongs to one process, so every process of the app
+     * has its own, named after its process name suffix. The main process
+     * keeps the original name.
+     */
+    private String getJournalName() {
+        String process = readProcessName();
+        String packageName = mContext.getPackageName();
+        if (process == null || process.equals(packageName)) {
+            return JOURNAL_FILE_NAME;
+        }
+        if (process.startsWith(packageName + ":")) {
+            process = process.substring(packageName.length() + 1);
+        }
+        StringBuilder name = new StringBuilder("greencrash-");
+        for (int i = 0; i < process.length(); i++) {
+            char c = process.charAt(i);
+            name.append(Character.isLetterOrDigit(c) || c == '.' ? c : '_');
+        }
+        return name.append(".journal").toString();
+    }
+
+    /**
+     * @return the name of this process, such as "com.example:remote", or
+     * null if it cannot be read.
      */
-    private String createCustomInfoString() {
-        String customInfo = "";
-        Iterator<String> iterator = mCustomParameters.keySet().iterator();
-        while (iterator.hasNext()) {
-            String currentKey = iterator.next();
-            String currentVal = mCustomParameters.get(currentKey);
-            customInfo += currentKey + " = " + currentVal + "\n";
+    private static String readProcessName() {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream("/proc/self/cmdline");
+            byte[] buffer = new byte[256];
+            int length = 0;
+            int n;
+            while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += n;
+            }
+            int end = 0;
+            while (end < length && buffer[end] != 0) {
+                end++;
+            }
+            return end > 0 ? new String(buffer, 0, end, "UTF-8") : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
         }
-        return customInfo;
+    }
+
+    /**
+     * Turns a crash record left in the journal by an earlier run into a
+     * regular report.
+     */
+    private void recoverJournal() {
+        CrashJournal journal = mJournal;
+        if (journal == null || !journal.hasRecord()) {
+            return;
+        }
+        CrashReport.Builder builder = mEngine.newReport("journal", journal.getRecordTime());
+        builder.put(CrashEngine.STACK_TRACE_KEY, journal.readRecord());
+        if (!journal.isRecordComplete()) {
+            builder.put(JOURNAL_INCOMPLETE_KEY, "true");
+        }
+        if (mEngine.save(builder.build()) != null) {
+            journal.clear();
+        }
+    }
+
+    /**
+     * Returns the metadata snapshot, collecting it on the calling thread if
+     * the background capture has not finished yet.
+     */
+    private DeviceSnapshot getSnapshot() {
+        DeviceSnapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            snapshot = DeviceSnapshot.capture(mContext, mStartAppTime);
+            mSnapshot = snapshot;
+        }
+        return snapshot;
     }
 
     /**
@@ -173,8 +384,15 @@ public class CrashReporter implements UncaughtExceptionHandler {
      * @return Number of bytes available.
      */
     public static long getAvailableInternalMemorySize() {
-        File path = Environment.getDataDirectory();
-        StatFs stat = new StatFs(path.getPath());
+        return getAvailableSize(Environment.getDataDirectory().getPath());
+    }
+
+    /**
+     * @return the number of bytes available on the filesystem holding
+     * {@code path}.
+     */
+    public static long getAvailableSize(String path) {
+        StatFs stat = new StatFs(path);
         long blockSize = stat.getBlockSize();
         long availableBlocks = stat.getAvailableBlocks();
         return availableBlocks * blockSize;
@@ -195,55 +413,57 @@ public class CrashReporter implements UncaughtExceptionHandler {
     }
 
     /**
-     * Collects crash data.
+     * Collects crash data. Static fields come from the pre-built
+     * {@link DeviceSnapshot}; only the crash time and free space are read
+     * here.
      *
-     * @param context The application context.
+     * @param builder The report being captured.
+     * @param time    The time of the report.
      */
-    private void retrieveCrashData(Context context) {
+    private void retrieveCrashData(ReportFields builder, long time) {
         try {
-            mCrashProperties.clear();
-            PackageManager pm = context.getPackageManager();
-            PackageInfo pi;
-            pi = pm.getPackageInfo(context.getPackageName(), 0);
-            if (pi != null) {
-                // Application Version
-                mCrashProperties.put(VERSION_NAME_KEY, pi.versionName != null ? pi.versionName : "not set");
-            } else {
-                // Could not retrieve package info...
-                mCrashProperties.put(PACKAGE_NAME_KEY, "Package info unavailable");
-            }
+            DeviceSnapshot snapshot = getSnapshot();
+            // Application Version
+            builder.put(VERSION_NAME_KEY, snapshot.versionName);
             // Application Package name
-            mCrashProperties.put(PACKAGE_NAME_KEY, context.getPackageName());
+            builder.put(PACKAGE_NAME_KEY, snapshot.packageName);
             // Device model
-            mCrashProperties.put(PHONE_MODEL_KEY, Build.MODEL);
+            builder.put(PHONE_MODEL_KEY, snapshot.model);
             // Android version
-            mCrashProperties.put(ANDROID_VERSION_KEY, Build.VERSION.RELEASE);
-//            mCrashProperties.putAll(DyManager.peeepDyMsg(context));
+            builder.put(ANDROID_VERSION_KEY, snapshot.androidVersion);
             // Android build data
-            mCrashProperties.put(BOARD_KEY, Build.BOARD);
-            mCrashProperties.put(BRAND_KEY, Build.BRAND);
-            mCrashProperties.put(DEVICE_KEY, Build.DEVICE);
-            mCrashProperties.put(DISPLAY_KEY, Build.DISPLAY);
-            mCrashProperties.put(FINGERPRINT_KEY, Build.FINGERPRINT);
-//            mCrashProperties.put(HOST_KEY, android.os.Build.HOST);
-//            mCrashProperties.put(ID_KEY, android.os.Build.ID);
-            mCrashProperties.put(MODEL_KEY, Build.MODEL);
-            mCrashProperties.put(PRODUCT_KEY, Build.PRODUCT);
-            mCrashProperties.put(TAGS_KEY, Build.TAGS);
-            mCrashProperties.put(TIME_KEY, "" + Build.TIME);
-            mCrashProperties.put(TYPE_KEY, Build.TYPE);
-//            mCrashProperties.put(USER_KEY, android.os.Build.USER);
-            mCrashProperties.put(START_APP_TIME, time2String(mStartAppTime, "yyyy/MM/dd HH-mm-ss"));
-            mCrashProperties.put(CRASH_APP_TIME, time2String(System.currentTimeMillis(), "yyyy/MM/dd HH-mm-ss"));
+            builder.put(BOARD_KEY, snapshot.board);
+            builder.put(BRAND_KEY, snapshot.brand);
+            builder.put(DEVICE_KEY, snapshot.device);
+            builder.put(DISPLAY_KEY, snapshot.display);
+            builder.put(FINGERPRINT_KEY, snapshot.fingerprint);
+            builder.put(MODEL_KEY, snapshot.model);
+            builder.put(PRODUCT_KEY, snapshot.product);
+            builder.put(TAGS_KEY, snapshot.tags);
+            builder.put(TIME_KEY, snapshot.buildTime);
+            builder.put(TYPE_KEY, snapshot.type);
+            builder.put(START_APP_TIME, snapshot.startAppTime);
+            builder.put(CRASH_APP_TIME, snapshot.formatTime(time));
             // Device Memory
-            mCrashProperties.put(TOTAL_MEM_SIZE_KEY, "" + getTotalInternalMemorySize());
-            mCrashProperties.put(AVAILABLE_MEM_SIZE_KEY, "" + getAvailableInternalMemorySize());
-            mCrashProperties.put(VERSION_CODE, getVersionCode(context));
+            builder.put(TOTAL_MEM_SIZE_KEY, snapshot.totalMemSize);
+            builder.put(AVAILABLE_MEM_SIZE_KEY, "" + getAvailableInternalMemorySize());
+            builder.put(TOTAL_RAM_KEY, snapshot.totalRam);
+            putMemoryTrend(builder, time);
+            builder.put(CrashEngine.VERSION_CODE, snapshot.versionCode);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private void putMemoryTrend(ReportFields builder, long time) {
+        MemorySampler sampler = mMemorySampler;
+        if (sampler != null && sampler.covers(time)) {
+            builder.put(MEMORY_BASELINE_KEY, sampler.formatBaseline());
+            builder.put(MEMORY_DELTA_KEY, sampler.formatDelta());
+            builder.put(MEMORY_TREND_KEY, sampler.formatTrend(time));
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -252,12 +472,24 @@ public class CrashReporter implements UncaughtExceptionHandler {
      * .Thread, java.lang.Throwable)
      */
     public void uncaughtException(Thread t, Throwable e) {
-        try {
-            disable();
-            handleNotificationException(e);
-        } catch (Exception err) {
+        if (mFatalClaimed.compareAndSet(false, true)) {
+            writeFatalReport(t, e);
+        } else {
+            // Another thread is writing its fatal report and will end the
+            // process; keep this one from killing it half way through.
+            try {
+                if (mFatalDone.await(FATAL_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    Thread.sleep(FATAL_WAIT_MILLIS);
+                }
+            } catch (InterruptedException e1) {
+            }
         }
 
+        if (mHandedOff) {
+            // Everything else happens in the hand-off service
+            android.os.Process.killProcess(android.os.Process.myPid());
+            System.exit(10);
+        }
 
         if (mReportingInteractionMode == ReportingInteractionMode.TOAST) {
             try {
@@ -288,6 +520,87 @@ public class CrashReporter implements UncaughtExceptionHandler {
         }
     }
 
+    /**
+     * Writes the report of the fatal crash that won the race. The handler
+     * stays installed, other crashing threads are held back by
+     * {@link #mFatalClaimed}.
+     */
+    private void writeFatalReport(Thread t, Throwable e) {
+        CrashJournal journal = mJournal;
+        if (journal != null) {
+            if (e instanceof OutOfMemoryError) {
+                // Even the frame arrays need some heap
+                journal.releaseReserve();
+            }
+            try {
+                // Record the crash before the regular path allocates
+                journal.write(t, e, System.currentTimeMillis());
+            } catch (Throwable err) {
+                // a partial record is still recovered on the next start
+            }
+        }
+        try {
+            // A heap dump has to be written by the crashing process
+            if (!mCrashHandoff || (mHeapDumpOnOom && isOutOfMemory(e)) || !handOff(t, e)) {
+                handleException(e, ReportingInteractionMode.NOTIFICATION, null, t, true, null);
+            }
+            if (journal != null) {
+                journal.clear();
+            }
+        } catch (Throwable err) {
+            // the journal record is turned into a report on the next start
+        } finally {
+            mFatalDone.countDown();
+        }
+    }
+
+    /**
+     * Writes the raw record of a fatal crash and starts the hand-off service
+     * to finish it. If the service cannot be started, for example from the
+     * background on Android 8, the next start of the app finishes the
+     * record.
+     *
+     * @return false if the record could not be written.
+     */
+    private boolean handOff(Thread t, Throwable e) {
+        long now = System.currentTimeMillis();
+        CrashReport.Builder record = mEngine.newRawRecord(e, CrashFingerprint.compute(e),
+                modeName(ReportingInteractionMode.NOTIFICATION), now, t.getName());
+        putMemoryTrend(record, now);
+        if (mEngine.saveRawRecord(record.build()) == null) {
+            return false;
+        }
+        mHandedOff = true;
+        try {
+            mContext.startService(new Intent(mContext, CrashHandoffService.class));
+        } catch (RuntimeException err) {
+            Log.w("GreenCrash", "Crash hand-off service not started", err);
+        }
+        return true;
+    }
+
+    /**
+     * Finishes the raw records of crashed processes, then notifies and
+     * uploads as the fatal path of the crashed process would have done.
+     *
+     * @param handoff true in the hand-off service, right after the crash:
+     *                waits for another process finishing records, and shows
+     *                the toast. False at startup, for records left over.
+     */
+    void completeHandoffs(boolean handoff) {
+        List<File> reports = mEngine.completeRawRecords(handoff);
+        if (reports.isEmpty()) {
+            return;
+        }
+        for (File report : reports) {
+            notifySendReport(report);
+        }
+        if (handoff && mReportingInteractionMode == ReportingInteractionMode.TOAST) {
+            showCrashToast();
+        }
+        mEngine.sendReports();
+    }
+
     /**
      * Try to send a report, if an error occurs stores a report file for a later
      * attempt. You can set the {@link ReportingInteractionMode} for this
@@ -300,70 +613,53 @@ public class CrashReporter implements UncaughtExceptionHandler {
      */
     void handleException(Throwable e,
                          ReportingInteractionMode reportingInteractionMode) {
+        handleException(e, reportingInteractionMode, null, Thread.currentThread(), false, null);
+    }
+
+    /**
+     * @param reportMode mode stored in the report file, null for the name of
+     *                   the interaction mode
+     * @param thread     the thread the problem happened on
+     * @param fatal      fatal crashes bypass rate limiting
+     * @param extras     fields added to the report, or null
+     */
+    private void handleException(Throwable e, ReportingInteractionMode reportingInteractionMode,
+                                 String reportMode, Thread thread, boolean fatal, CrashReport extras) {
         if (reportingInteractionMode == null) {
             reportingInteractionMode = mReportingInteractionMode;
         }
+        if (reportMode == null) {
+            reportMode = modeName(reportingInteractionMode);
+        }
 
         if (e == null) {
             e = new Exception("Report requested by developer");
         }
 
-        if (reportingInteractionMode == ReportingInteractionMode.TOAST) {
-            new Thread() {
-
-                /*
-                 * (non-Javadoc)
-                 *
-                 * @see java.lang.Thread#run()
-                 */
-                @Override
-                public void run() {
-                    Looper.prepare();
-                    Toast.makeText(
-                            mContext,
-                            "catch",
-                            Toast.LENGTH_LONG).show();
-                    Looper.loop();
-                }
-
-            }.start();
+        long now = System.currentTimeMillis();
+        long fingerprint = CrashFingerprint.compute(e);
+        long suppressed = fatal ? 0 : mEngine.acquire(fingerprint, now);
+        if (suppressed == RateLimiter.DROP) {
+            return;
         }
-        retrieveCrashData(mContext);
-        // TODO: add a field in the googledoc form for the crash date.
-        // Date CurDate = new Date();
-        // Report += "Error Report collected on : " + CurDate.toString();
 
-        // Add custom info, they are all stored in a single field
-        mCrashProperties.put(CUSTOM_DATA_KEY, createCustomInfoString());
-
-        // Build stack trace
-        final Writer result = new StringWriter();
-        final PrintWriter printWriter = new PrintWriter(result);
-
-        printWriter.append(e.getMessage());
-        e.printStackTrace(printWriter);
-
-        e.printStackTrace();
-//        Loger.getStackTraceString(e);
-        // If the exception was thrown in a background thread inside
-        // AsyncTask, then the actual exception can be found with getCause
-        Throwable cause = e.getCause();
-        while (cause != null) {
-            cause.printStackTrace(printWriter);
-            cause = cause.getCause();
+        if (reportingInteractionMode == ReportingInteractionMode.TOAST) {
+            showCrashToast();
+        }
+        File file = mEngine.store(e, fingerprint, reportMode, now, thread.getName(), suppressed, extras);
+        if (file == null) {
+            Log.d("", "请检查XML是否配置有读写SD卡权限,如targetSdkVersion在23以上,请提前申请权限");
+            return;
+        }
+        if (fatal && mHeapDumpOnOom && isOutOfMemory(e)) {
+            dumpHeap(file);
         }
-        mCrashProperties.put(STACK_TRACE_KEY, result.toString());
-
-        printWriter.close();
-
-        // Always write the report file
-        File file = saveCrashReportFile();
 
         if (reportingInteractionMode == ReportingInteractionMode.SILENT
                 || reportingInteractionMode == ReportingInteractionMode.TOAST) {
             // Send reports now
             //上报服务器后台
-            checkAndSendReports(mContext, null);
+            mEngine.sendReports();
         } else if (reportingInteractionMode == ReportingInteractionMode.NOTIFICATION) {
             // Send reports when user accepts
             notifySendReport(file);
@@ -371,6 +667,104 @@ public class CrashReporter implements UncaughtExceptionHandler {
 
     }
 
+    private void showCrashToast() {
+        new Thread() {
+
+            /*
+             * (non-Javadoc)
+             *
+             * @see java.lang.Thread#run()
+             */
+            @Override
+            public void run() {
+                Looper.prepare();
+                Toast.makeText(
+                        mContext,
+                        "catch",
+                        Toast.LENGTH_LONG).show();
+                Looper.loop();
+            }
+
+        }.start();
+    }
+
+    private static boolean isOutOfMemory(Throwable e) {
+        for (int depth = 0; e != null && depth < 10; depth++) {
+            if (e instanceof OutOfMemoryError) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * Writes the raw heap next to the report. A process out of memory can
+     * do no more; the dump is compressed on the next start.
+     */
+    private void dumpHeap(File report) {
+        try {
+            HeapDumpStore store = getHeapDumps();
+            if (!store.tryLock()) {
+                // another process of the app is writing or compressing one
+                return;
+            }
+            try {
+                if (store.hasPending()) {
+                    // the dump of an earlier crash was not compressed yet
+                    return;
+                }
+                long needed = Runtime.getRuntime().totalMemory() + store.getMaxBytes()
+                        + HEAP_DUMP_RESERVE_BYTES;
+                if (getAvailableSize(report.getParent()) < needed) {
+                    Log.w("GreenCrash", "Not enough storage for a heap dump");
+                    return;
+                }
+                Debug.dumpHprofData(store.newDumpFile(report).getPath());
+            } finally {
+                store.unlock();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized HeapDumpStore getHeapDumps() {
+        if (mHeapDumps == null) {
+            mHeapDumps = new HeapDumpStore(mEngine.getReportDirectory(), mEngine.getErrorReporter());
+        }
+        return mHeapDumps;
+    }
+
+    // Report mode of main thread stalls found by the ANR watchdog.
+    private static final String ANR_MODE = "anr";
+    private static final String ANR_SAMPLES_KEY = "AnrSamples";
+    // Report mode of the periodic slow frame summaries.
+    private static final String JANK_MODE = "jank";
+
+    /**
+     * Writes a slow frame summary of the frame monitor. Summaries are not
+     * deduplicated or rate limited, there is at most one per interval.
+     */
+    private void writeJankReport(long frames, long slowFrames, String histogram, String stacks) {
+        CrashReport.Builder builder = mEngine.newReport(JANK_MODE, System.currentTimeMillis());
+        builder.put(CrashEngine.CUSTOM_DATA_KEY, mEngine.getCustomData());
+        builder.put(FRAME_HISTOGRAM_KEY, "frames=" + frames + " slow=" + slowFrames + "\n" + histogram);
+        builder.put(CrashEngine.STACK_TRACE_KEY, stacks);
+        mEngine.save(builder.build());
+    }
+
+    private static String modeName(ReportingInteractionMode mode) {
+        switch (mode) {
+            case SILENT:
+                return "silent";
+            case TOAST:
+                return "toast";
+            default:
+                return "notif";
+        }
+    }
+
     /**
      * Send a report for this Throwable.
      *
@@ -383,17 +777,42 @@ public class CrashReporter implements UncaughtExceptionHandler {
 
 
     public void handleSilentException(Throwable e) {
-        mCrashProperties.put(REPORT_MODE, "silent");
         handleException(e, ReportingInteractionMode.SILENT);
     }
 
+    /**
+     * Reports a caught exception without blocking the caller. The throwable,
+     * thread name and time are queued and a background thread writes the
+     * report. If the queue is full the exception is dropped; the next written
+     * report records how many were dropped. Rate limiting is checked on the
+     * calling thread before anything is queued.
+     *
+     * @return false if the exception was dropped.
+     */
+    public boolean handleSilentExceptionAsync(Throwable e) {
+        return mEngine.handleExceptionAsync(e);
+    }
+
+    /**
+     * @return the number of async non-fatal reports dropped because the
+     * queue was full.
+     */
+    public long getDroppedNonFatalCount() {
+        return mEngine.getDroppedNonFatalCount();
+    }
+
+    /**
+     * @return the number of async non-fatal reports processed so far.
+     */
+    public long getWrittenNonFatalCount() {
+        return mEngine.getWrittenNonFatalCount();
+    }
+
     public void handleToastException(Throwable e) {
-        mCrashProperties.put(REPORT_MODE, "toast");
         handleException(e, ReportingInteractionMode.TOAST);
     }
 
     public void handleNotificationException(Throwable e) {
-        mCrashProperties.put(REPORT_MODE, "notif");
         handleException(e, ReportingInteractionMode.NOTIFICATION);
     }
 
@@ -438,129 +857,393 @@ public class CrashReporter implements UncaughtExceptionHandler {
     }
 
     /**
-     * When a report can't be sent, it is saved here in a file in the root of
-     * the application private directory.
+     * Resolves the report directory: the OBB directory, or the external
+     * storage if there is none. The engine calls it once, on first use.
      */
-    private File saveCrashReportFile() {
-        try {
-            String timestamp = time2String(System.currentTimeMillis(), "yyyy-MM-dd-HH-mm-ss");
-            String mode = mCrashProperties.getProperty(REPORT_MODE);
-            String fileName = createSaveFilePath();
-            fileName += (TextUtils.isEmpty(mode) ? "stack" : mode) + "-" + timestamp + ".txt";
-            File file = new File(fileName);
-            FileOutputStream trace = new FileOutputStream(file, true);
-            for (Enumeration<?> it = mCrashProperties.propertyNames(); it.hasMoreElements(); ) {
-                String name = (String) it.nextElement();
-                trace.write(name.getBytes());
-                trace.write("=".getBytes());
-                String value = mCrashProperties.getProperty(name);
-                trace.write(value.getBytes());
-                trace.write("\n".getBytes());
-            }
-            trace.flush();
-            trace.close();
-            return file;
-        } catch (Exception e) {
-            e.printStackTrace();
+    private File getCrashFilePath() {
+        String dir = null;
+        if (Build.VERSION.SDK_INT >= 11) {
+            dir = getObbDir(mContext);
         }
-        Log.d("", "请检查XML是否配置有读写SD卡权限,如targetSdkVersion在23以上,请提前申请权限");
-        return null;
+        if (TextUtils.isEmpty(dir)) {
+            dir = Environment.getExternalStorageDirectory().getPath();
+        }
+        return new File(dir, LOG_DIR_NAME);
     }
 
-    private void deleteStkFiles() {
-        try {
-            String[] reportFilesList = getCrashReportFilesList();
-            if (reportFilesList != null && reportFilesList.length > MAX_LEFT_FILES) {
-                ArrayList<String> sortList = new ArrayList<String>();
-                for (String item : reportFilesList) {
-                    sortList.add(item);
-                }
-                Collections.sort(sortList, new Comparator<String>() {
-                    @Override
-                    public int compare(String left, String right) {
-                        int ret = left.compareTo(right);
-                        if (ret != 0) {
-                            ret = -ret;
-                        }
-                        return ret;
-                    }
-                });
+    /**
+     * Looks up stored reports, newest first. Reads from disk the first time,
+     * so call it off the UI thread.
+     *
+     * @param versionCode   only reports of this version code, or -1 for all
+     * @param exceptionType only exception types containing this, ignoring
+     *                      case, or null for all
+     * @param text          words the exception type, message or top frame
+     *                      must contain (as word prefixes), or null
+     * @param offset        number of matching reports to skip
+     * @param limit         maximum number of reports returned
+     */
+    public List<CrashSummary> queryCrashHistory(int versionCode, String exceptionType, String text,
+                                                int offset, int limit) {
+        return mEngine.queryCrashHistory(versionCode, exceptionType, text, offset, limit);
+    }
+
+    /**
+     * @return the number of stored reports matching, see
+     * {@link #queryCrashHistory(int, String, String, int, int)}.
+     */
+    public int countCrashHistory(int versionCode, String exceptionType, String text) {
+        return mEngine.countCrashHistory(versionCode, exceptionType, text);
+    }
+
+    /**
+     * @return the reporter created last, or null.
+     */
+    static CrashReporter getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns an array containing the names of available crash report files,
+     * oldest first.
+     *
+     * @return an array containing the names of available crash report files.
+     */
+    String[] getCrashReportFilesList() {
+        return mEngine.getReportFiles();
+    }
+
+    /**
+     * Sets where reports are uploaded to, for example a
+     * {@link HttpReportSender}. Reports left from earlier runs are sent right
+     * away. Pass null to stop uploading.
+     */
+    public void setReportSender(ReportSender sender) {
+        mEngine.setReportSender(sender);
+    }
+
+    /**
+     * Set the wanted user interaction mode for sending reports.
+     *
+     * @param reportingInteractionMode
+     */
+    void setReportingInteractionMode(
+            ReportingInteractionMode reportingInteractionMode) {
+        mReportingInteractionMode = reportingInteractionMode;
+    }
+
+
+    /**
+     * Adds a custom value to every report, such as a user or session id or
+     * an experiment group. Safe to call from any thread; updating a key
+     * that exists does not allocate. At most
+     * {@value CustomDataStore#DEFAULT_MAX_KEYS} keys are kept and values are
+     * cut to {@value CustomDataStore#DEFAULT_MAX_VALUE_LENGTH} chars. Reports
+     * queued with {@link #handleSilentExceptionAsync} get the values current
+     * when they are written.
+     *
+     * @return false if the key is new and the limit of keys is reached.
+     */
+    public boolean putCustomData(String key, String value) {
+        return mEngine.putCustomData(key, value);
+    }
+
+    public boolean putCustomData(String key, int value) {
+        return mEngine.putCustomData(key, value);
+    }
+
+    public boolean putCustomData(String key, long value) {
+        return mEngine.putCustomData(key, value);
+    }
+
+    public boolean putCustomData(String key, boolean value) {
+        return mEngine.putCustomData(key, value);
+    }
+
+    public void removeCustomData(String key) {
+        mEngine.removeCustomData(key);
+    }
+
+    public void clearCustomData() {
+        mEngine.clearCustomData();
+    }
+
+    /**
+     * Records what the app is doing; the last
+     * {@value BreadcrumbRing#DEFAULT_CAPACITY} events go into every report.
+     * Safe to call from any thread, it does not lock or allocate. Pass
+     * constant strings, they are kept by reference.
+     *
+     * @param category for example "nav", "http" or "db"
+     * @param message  what happened
+     */
+    public void leaveBreadcrumb(String category, String message) {
+        mEngine.leaveBreadcrumb(category, message);
+    }
 
-                for (int i = MAX_LEFT_FILES; i < sortList.size(); i++) {
-                    String curFileName = sortList.get(i);
-                    File curFile = new File(createSaveFilePath(),
-                            curFileName);
-                    curFile.delete();
+    /**
+     * Like {@link #leaveBreadcrumb(String, String)}, with a number such as a
+     * status code or a duration.
+     */
+    public void leaveBreadcrumb(String category, String message, long value) {
+        mEngine.leaveBreadcrumb(category, message, value);
+    }
+
+    /**
+     * Caps the size of the stack trace stored in a report. Frames past the
+     * limits are omitted and the trace is marked as truncated.
+     *
+     * @param maxTraceChars  limit for one exception of the cause chain
+     * @param maxReportChars limit for the whole stack trace field
+     */
+    public void setStackTraceLimits(int maxTraceChars, int maxReportChars) {
+        mEngine.setStackTraceLimits(maxTraceChars, maxReportChars);
+    }
+
+    /**
+     * Limits how often non-fatal reports of the same crash are written.
+     * Reports over the limit are counted, and the next kept report of that
+     * crash says how many were suppressed. Fatal crashes are never limited.
+     *
+     * @param burst           reports of one crash allowed back to back
+     * @param refillPerSecond sustained reports of one crash per second, 0
+     *                        for none
+     * @throws IllegalArgumentException if burst or rate is negative or
+     *                                  above a million
+     */
+    public void setRateLimit(int burst, double refillPerSecond) {
+        mEngine.setRateLimit(burst, refillPerSecond);
+    }
+
+    /**
+     * Keeps only a share of the non-fatal reports of each crash, for
+     * example 0.1 for every tenth. The first report of a crash is always
+     * kept.
+     */
+    public void setSampleRate(double ratio) {
+        mEngine.setSampleRate(ratio);
+    }
+
+    /**
+     * Starts reporting main thread stalls of
+     * {@value AnrWatchdog#DEFAULT_THRESHOLD_MILLIS} ms or more.
+     *
+     * @see #startAnrWatchdog(long, int)
+     */
+    public void startAnrWatchdog() {
+        startAnrWatchdog(AnrWatchdog.DEFAULT_THRESHOLD_MILLIS, AnrWatchdog.DEFAULT_SAMPLES);
+    }
+
+    /**
+     * Starts reporting main thread stalls. A background thread checks the
+     * main looper once per threshold; a stall is written as a non-fatal
+     * report of mode "anr" with the main thread stack, and the stacks
+     * sampled while it lasted in the "AnrSamples" field. Only the first
+     * stack makes the fingerprint, so stalls are rate limited and
+     * deduplicated like other non-fatal reports.
+     *
+     * @param thresholdMillis how long the main thread may be blocked
+     * @param samples         extra stacks taken while a stall lasts
+     */
+    public synchronized void startAnrWatchdog(long thresholdMillis, int samples) {
+        if (mAnrWatchdog != null) {
+            mAnrWatchdog.stop();
+        }
+        mAnrWatchdog = new AnrWatchdog(thresholdMillis, samples, new AnrWatchdog.Listener() {
+            @Override
+            public void onStall(AnrWatchdog.AnrException stall, String samples) {
+                CrashReport extras = null;
+                if (samples != null) {
+                    extras = new CrashReport.Builder(ANR_MODE, 0).put(ANR_SAMPLES_KEY, samples).build();
                 }
+                handleException(stall, null, ANR_MODE, Looper.getMainLooper().getThread(), false, extras);
             }
+        });
+        mAnrWatchdog.start();
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    public synchronized void stopAnrWatchdog() {
+        if (mAnrWatchdog != null) {
+            mAnrWatchdog.stop();
+            mAnrWatchdog = null;
         }
+    }
 
+    /**
+     * Starts summarizing frames over
+     * {@value FrameMonitor#DEFAULT_BUDGET_MILLIS} ms every ten minutes.
+     *
+     * @see #startFrameMonitor(long, long)
+     */
+    public boolean startFrameMonitor() {
+        return startFrameMonitor(FrameMonitor.DEFAULT_BUDGET_MILLIS, FrameMonitor.DEFAULT_REPORT_INTERVAL_MILLIS);
     }
 
-    private String createSaveFilePath() {
-        File destDir = new File(mCrashFilePath);
-        if (!destDir.exists()) {
-            destDir.mkdirs();
+    /**
+     * Starts measuring frame times on the main thread, only while an
+     * activity is started and drawing. The main thread stack is sampled
+     * once for every frame over the budget, and every interval with slow
+     * frames a report of mode "jank" is written with the frame time
+     * histogram and the {@value FrameMonitor#TOP_STACKS} most frequent
+     * stacks, instead of one report per slow frame. Call it from
+     * {@link Application#onCreate()} so that no activity is missed.
+     *
+     * @param budgetMillis         frames taking longer are slow
+     * @param reportIntervalMillis how often a summary is written
+     * @return false below API 16, where frames cannot be observed, or if
+     * the reporter was not initialized with an application context.
+     */
+    public synchronized boolean startFrameMonitor(long budgetMillis, long reportIntervalMillis) {
+        if (Build.VERSION.SDK_INT < 16 || !(mContext instanceof Application)) {
+            return false;
+        }
+        if (mFrameMonitor != null) {
+            mFrameMonitor.stop();
         }
-        return mCrashFilePath;
+        mFrameMonitor = new FrameMonitor((Application) mContext, budgetMillis, reportIntervalMillis, new FrameMonitor.Listener() {
+            @Override
+            public void onSummary(long frames, long slowFrames, String histogram, String stacks) {
+                writeJankReport(frames, slowFrames, histogram, stacks);
+            }
+        });
+        mFrameMonitor.start();
+        return true;
     }
 
     /**
-     * Returns an array containing the names of available crash report files.
-     *
-     * @return an array containing the names of available crash report files.
+     * Stops the frame monitor, writing a summary of what it measured since
+     * the last one.
      */
-    String[] getCrashReportFilesList() {
-        File dir = new File(createSaveFilePath());
+    public synchronized void stopFrameMonitor() {
+        if (mFrameMonitor != null) {
+            mFrameMonitor.stop();
+            mFrameMonitor = null;
+        }
+    }
 
+    /**
+     * Changes how the memory curve in reports is sampled. By default a
+     * sample is taken every {@value MemorySampler#DEFAULT_INTERVAL_MILLIS}
+     * ms and the last {@value MemorySampler#DEFAULT_CAPACITY} are kept.
+     *
+     * Restarting takes a new baseline.
+     *
+     * @param intervalMillis time between two samples
+     * @param samples        number of samples written into a report
+     */
+    public synchronized void startMemorySampler(long intervalMillis, int samples) {
+        mMemorySampling = true;
+        if (mMemorySampler != null) {
+            mMemorySampler.stop();
+        }
+        mMemorySampler = new MemorySampler(mContext, intervalMillis, samples);
+        mMemorySampler.start();
+    }
 
-        // Filter for ".stacktrace" files
-        FilenameFilter filter = new FilenameFilter() {
-            public boolean accept(File dir, String name) {
-                return name.endsWith(".stk");
-            }
-        };
-        return dir.list(filter);
+    /**
+     * Stops sampling memory; reports no longer have the memory fields.
+     */
+    public synchronized void stopMemorySampler() {
+        mMemorySampling = false;
+        if (mMemorySampler != null) {
+            mMemorySampler.stop();
+            mMemorySampler = null;
+        }
     }
 
     /**
-     * 上报服务器
+     * Deobfuscates the stack traces shown by {@link CrashReportActivity}
+     * with an index compiled by {@link Retracer#compile(File, File)} from
+     * the mapping file of this build. The index is memory mapped, so this
+     * is cheap. Meant for internal builds: a mapping shipped with a release
+     * gives the obfuscation away.
+     *
+     * @param index the compiled index, or null to show the traces as written
      */
-    void checkAndSendReports(Context context, String userCommentReportFileName) {
+    public void setRetraceIndex(File index) throws IOException {
+        mRetracer = index != null ? Retracer.open(index) : null;
+    }
 
+    Retracer getRetracer() {
+        return mRetracer;
     }
 
     /**
-     * 邮件给开发者
+     * Turns the hand-off of fatal crashes on or off, off by default. When
+     * on, the crashing process writes a raw record of the crash (the trace,
+     * the thread, the custom data, the breadcrumbs and the memory trend),
+     * starts {@link CrashHandoffService} and kills itself at once, without
+     * the toast delay or the system crash dialog. The service, which must be
+     * declared in its own process, collects the metadata, writes the report,
+     * notifies and uploads. A fatal {@link OutOfMemoryError} with heap dumps
+     * on is still handled in place, the dump needs the crashing heap.
      */
-    private void sendMail(Context context, String file, String body, String stack) {
+    public void setCrashHandoff(boolean enabled) {
+        mCrashHandoff = enabled;
+    }
 
+    /**
+     * Turns heap dumps of fatal {@link OutOfMemoryError}s on or off, off by
+     * default. The dump is written next to the crash report with
+     * {@link Debug#dumpHprofData(String)}, which takes seconds and needs
+     * free storage about the size of the heap, so it is skipped when the
+     * storage is short. On the next start it is compressed and a class
+     * histogram is written next to it.
+     *
+     * @see #setHeapDumpLimits(long, int)
+     * @see #getHeapDumpFiles()
+     */
+    public void setHeapDumpOnOutOfMemory(boolean enabled) {
+        mHeapDumpOnOom = enabled;
     }
 
     /**
-     * Set the wanted user interaction mode for sending reports.
+     * @param maxBytes largest compressed dump that is kept, a larger one is
+     *                 dropped and only its histogram is kept
+     * @param maxDumps compressed dumps kept, the oldest are deleted first;
+     *                 0 keeps only the histograms
+     */
+    public void setHeapDumpLimits(long maxBytes, int maxDumps) {
+        getHeapDumps().setLimits(maxBytes, maxDumps);
+    }
+
+    /**
+     * Lists the report directory; do not call it on the main thread.
      *
-     * @param reportingInteractionMode
+     * @return the compressed heap dumps ({@code .hprof.gz}) and class
+     * histograms ({@code .histogram}), oldest first. They are not sent with
+     * the reports.
      */
-    void setReportingInteractionMode(
-            ReportingInteractionMode reportingInteractionMode) {
-        mReportingInteractionMode = reportingInteractionMode;
+    public File[] getHeapDumpFiles() {
+        return getHeapDumps().list();
     }
 
+    /**
+     * Enables or disables crash deduplication. When enabled (the default) a
+     * crash whose fingerprint already has a stored report only updates the
+     * occurrence counters in the dedup index.
+     */
+    public void setDeduplicationEnabled(boolean enabled) {
+        mEngine.setDeduplicationEnabled(enabled);
+    }
+
+    /**
+     * Limits the space used by stored reports. The oldest reports are deleted
+     * once any limit is exceeded.
+     *
+     * @param maxBytes     maximum total size of all reports
+     * @param maxFiles     maximum number of reports
+     * @param maxAgeMillis maximum report age, 0 for no limit
+     */
+    public void setRetentionPolicy(long maxBytes, int maxFiles, long maxAgeMillis) {
+        mEngine.setRetentionPolicy(maxBytes, maxFiles, maxAgeMillis);
+    }
 
     /**
      * Delete all report files stored.
      */
     public void deletePendingReports() {
-        String[] filesList = getCrashReportFilesList();
-        if (filesList != null) {
-            for (String fileName : filesList) {
-                new File(mContext.getFilesDir(), fileName).delete();
-            }
-        }
+        mEngine.deletePendingReports();
     }
 
     public void disable() {
@@ -604,8 +1287,7 @@ public class CrashReporter implements UncaughtExceptionHandler {
     public static String getVersionName(Context context) {
         String version = "unknown";
         try {
-            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(),
-                    PackageManager.GET_ACTIVITIES);
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
             if (info != null) {
                 version = "" + info.versionName;
             }
@@ -617,7 +1299,7 @@ public class CrashReporter implements UncaughtExceptionHandler {
     public static String getVersionCode(Context context) {
         String version = "unknown";
         try {
-            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), PackageManager.GET_ACTIVITIES);
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
             if (info != null) {
                 version = "" + info.versionCode;
             }
@@ -641,7 +1323,6 @@ public class CrashReporter implements UncaughtExceptionHandler {
     }
 
 
-    private static final String SDCARD = Environment.getExternalStorageDirectory().getPath();
     private static String sOBB_DIR = null;
 
     private static String getObbDir(Context context) {
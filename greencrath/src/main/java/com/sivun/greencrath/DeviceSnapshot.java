@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * 设备与安装包的静态信息快照。
+ * <p>
+ * 这些字段在进程生命周期内不会变化，因此只在安装 {@link CrashReporter} 之后于后台线程采集一次，
+ * 崩溃时直接复用，避免在崩溃线程上做 PackageManager IPC 和 StatFs 系统调用。
+ */
+final class DeviceSnapshot {
+
+    static final String TIME_PATTERN = "yyyy/MM/dd HH-mm-ss";
+
+    final String versionName;
+    final String versionCode;
+    final String packageName;
+    final String model;
+    final String androidVersion;
+    final String board;
+    final String brand;
+    final String device;
+    final String display;
+    final String fingerprint;
+    final String product;
+    final String tags;
+    final String buildTime;
+    final String type;
+    final String startAppTime;
+    final String totalMemSize;
+    final String totalRam;
+
+    // SimpleDateFormat 不是线程安全的，使用时需要同步
+    private final SimpleDateFormat mTimeFormat;
+
+    private DeviceSnapshot(Context context, long startAppTime) {
+        PackageInfo pi = null;
+        try {
+            pi = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            e.printStackTrace();
+        }
+        versionName = pi != null && pi.versionName != null ? pi.versionName : "not set";
+        versionCode = pi != null ? "" + pi.versionCode : "unknown";
+        packageName = context.getPackageName();
+        model = Build.MODEL;
+        androidVersion = Build.VERSION.RELEASE;
+        board = Build.BOARD;
+        brand = Build.BRAND;
+        device = Build.DEVICE;
+        display = Build.DISPLAY;
+        fingerprint = Build.FINGERPRINT;
+        product = Build.PRODUCT;
+        tags = Build.TAGS;
+        buildTime = "" + Build.TIME;
+        type = Build.TYPE;
+
+        mTimeFormat = new SimpleDateFormat(TIME_PATTERN, Locale.SIMPLIFIED_CHINESE);
+        this.startAppTime = formatTime(startAppTime);
+        totalMemSize = "" + CrashReporter.getTotalInternalMemorySize();
+        totalRam = "" + readTotalRam(context);
+    }
+
+    /**
+     * Collects the static metadata. Performs a PackageManager IPC and a
+     * StatFs call, so prefer calling it off the main thread.
+     */
+    static DeviceSnapshot capture(Context context, long startAppTime) {
+        return new DeviceSnapshot(context, startAppTime);
+    }
+
+    /**
+     * @return the RAM of the device in bytes, or -1 below API 16.
+     */
+    private static long readTotalRam(Context context) {
+        if (Build.VERSION.SDK_INT < 16) {
+            return -1;
+        }
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryInfo(info);
+        return info.totalMem;
+    }
+
+    /**
+     * Formats a time with {@link #TIME_PATTERN} using the cached formatter.
+     */
+    String formatTime(long time) {
+        synchronized (mTimeFormat) {
+            return mTimeFormat.format(time);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 掉帧监控：统计帧耗时分布，并采样慢帧时主线程的堆栈。
+ * <p>
+ * Only frames that draw are measured. A pre-draw listener is added to the
+ * window of every started activity, so nothing is observed while the app
+ * is in the background. The first draw after a pause posts a
+ * {@link Choreographer} frame callback. It measures the time between
+ * frames into a fixed-bucket histogram, and re-posts itself only as long
+ * as every frame draws. Idle vsyncs are not counted. The callback only
+ * counts and publishes the start of the frame, so it never allocates or
+ * locks, except to wake the sampler when measuring resumes.
+ * <p>
+ * A background thread wakes up when the current frame would go over the
+ * budget. If no new frame started by then, it samples the main thread
+ * stack once for that frame and counts it by its frames. It stays parked
+ * while no frame is measured. Every report interval the histogram and the
+ * stacks seen most often are handed to the {@link Listener} as one
+ * summary, and the counters start over.
+ * <p>
+ * Activities started before the monitor are observed from their next
+ * start. Needs API 16.
+ */
+final class FrameMonitor {
+
+    static final long DEFAULT_BUDGET_MILLIS = 32;
+    static final long DEFAULT_REPORT_INTERVAL_MILLIS = 10 * 60 * 1000;
+    static final int TOP_STACKS = 10;
+
+    // Upper bounds of the histogram buckets, the last one is open
+    private static final long[] BUCKET_LIMITS = {16, 24, 32, 48, 100, 250, 700};
+    // Frames of a sampled stack that are kept and compared
+    private static final int MAX_STACK_FRAMES = 32;
+    // Distinct stacks kept per interval, more are only counted
+    private static final int MAX_STACKS = 256;
+    // Longest sleep of the sampler while a frame stays stuck
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    interface Listener {
+        /**
+         * Called on the sampler thread once per report interval in which a
+         * frame was over budget.
+         *
+         * @param histogram frame counts per duration, one bucket per line
+         * @param stacks    the most frequent stacks of slow frames, in stack
+         *                  trace form, most frequent first
+         */
+        void onSummary(long frames, long slowFrames, String histogram, String stacks);
+    }
+
+    private static final class StackCount {
+        final StackTraceElement[] stack;
+        int count;
+
+        StackCount(StackTraceElement[] stack) {
+            this.stack = stack;
+        }
+    }
+
+    private final Application mApplication;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Thread mMainThread = Looper.getMainLooper().getThread();
+    private final long mBudget;
+    private final long mReportInterval;
+    private final Listener mListener;
+    private final Thread mThread;
+    private final Object mLock = new Object();
+    private volatile boolean mStopped;
+    // True while frames are measured, the sampler is parked otherwise
+    private volatile boolean mActive;
+
+    // Counted by the main thread, read and reset by the sampler thread
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_LIMITS.length + 1);
+    private final AtomicLong mSlowFrames = new AtomicLong();
+    private long mLastFrameNanos;
+    private volatile long mFrameStart;
+    private volatile long mFrameCount;
+
+    // Owned by the main thread
+    private final ArrayList<View> mObserved = new ArrayList<View>();
+    private boolean mFramePending;
+    private boolean mDrawn;
+
+    // Owned by the sampler thread
+    private final HashMap<Long, StackCount> mStacks = new HashMap<Long, StackCount>();
+    private int mSamples;
+    private int mOtherSamples;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mStopped || !mDrawn) {
+                // nothing was drawn since the last frame, wait for a draw
+                mFramePending = false;
+                mActive = false;
+                return;
+            }
+            mDrawn = false;
+            if (mLastFrameNanos != 0) {
+                record((frameTimeNanos - mLastFrameNanos) / 1000000);
+            }
+            mLastFrameNanos = frameTimeNanos;
+            mFrameStart = SystemClock.uptimeMillis();
+            mFrameCount++;
+            if (!mActive) {
+                synchronized (mLock) {
+                    mActive = true;
+                    mLock.notifyAll();
+                }
+            }
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    private final ViewTreeObserver.OnPreDrawListener mPreDrawListener = new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            mDrawn = true;
+            if (!mFramePending && !mStopped) {
+                // the first frame after a pause only starts the measuring
+                mFramePending = true;
+                mLastFrameNanos = 0;
+                Choreographer.getInstance().postFrameCallback(mFrameCallback);
+            }
+            return true;
+        }
+    };
+
+    private final Application.ActivityLifecycleCallbacks mLifecycleCallbacks =
+            new Application.ActivityLifecycleCallbacks() {
+                @Override
+                public void onActivityStarted(Activity activity) {
+                    View decor = activity.getWindow().getDecorView();
+                    if (!mObserved.contains(decor)) {
+                        decor.getViewTreeObserver().addOnPreDrawListener(mPreDrawListener);
+                        mObserved.add(decor);
+                    }
+                }
+
+                @Override
+                public void onActivityStopped(Activity activity) {
+                    unobserve(activity.getWindow().getDecorView());
+                }
+
+                @Override
+                public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+                }
+
+                @Override
+                public void onActivityResumed(Activity activity) {
+                }
+
+                @Override
+                public void onActivityPaused(Activity activity) {
+                }
+
+                @Override
+                public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+                }
+
+                @Override
+                public void onActivityDestroyed(Activity activity) {
+                }
+            };
+
+    /**
+     * @param budgetMillis         frames taking longer are slow
+     * @param reportIntervalMillis how often a summary is made
+     */
+    FrameMonitor(Application application, long budgetMillis, long reportIntervalMillis, Listener listener) {
+        mApplication = application;
+        mBudget = budgetMillis;
+        mReportInterval = reportIntervalMillis;
+        mListener = listener;
+        mThread = new Thread("GreenCrash-Frames") {
+            @Override
+            public void run() {
+                sample();
+            }
+        };
+        mThread.setDaemon(true);
+    }
+
+    void start() {
+        mThread.start();
+        // Choreographer.getInstance() belongs to the calling looper, and
+        // the listeners are only touched on the main thread
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mStopped) {
+                    mApplication.registerActivityLifecycleCallbacks(mLifecycleCallbacks);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops monitoring; what was measured since the last summary is
+     * reported.
+     */
+    void stop() {
+        mStopped = true;
+        mThread.interrupt();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mApplication.unregisterActivityLifecycleCallbacks(mLifecycleCallbacks);
+                while (!mObserved.isEmpty()) {
+                    unobserve(mObserved.get(mObserved.size() - 1));
+                }
+            }
+        });
+    }
+
+    private void unobserve(View decor) {
+        if (mObserved.remove(decor)) {
+            // the observer of a view that was not attached yet is replaced
+            // on attach
+            ViewTreeObserver observer = decor.getViewTreeObserver();
+            if (observer.isAlive()) {
+                observer.removeOnPreDrawListener(mPreDrawListener);
+            }
+        }
+    }
+
+    private void record(long millis) {
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS.length && millis > BUCKET_LIMITS[bucket]) {
+            bucket++;
+        }
+        mBuckets.incrementAndGet(bucket);
+        if (millis > mBudget) {
+            mSlowFrames.incrementAndGet();
+        }
+    }
+
+    private void sample() {
+        long nextReport = SystemClock.uptimeMillis() + mReportInterval;
+        long sampledFrame = -1;
+        long backoff = mBudget;
+        try {
+            while (!mStopped) {
+                long frame = mFrameCount;
+                long due = mFrameStart + mBudget;
+                long now = SystemClock.uptimeMillis();
+                if (now >= nextReport) {
+                    report();
+                    nextReport = now + mReportInterval;
+                }
+                if (!mActive) {
+                    park(nextReport);
+                    continue;
+                }
+                if (now < due) {
+                    backoff = mBudget;
+                    Thread.sleep(due - now);
+                } else if (frame != mFrameCount) {
+                    // a new frame started meanwhile
+                    continue;
+                } else if (frame != sampledFrame) {
+                    sampledFrame = frame;
+                    if (frame > 0) {
+                        add(mMainThread.getStackTrace());
+                    }
+                    Thread.sleep(backoff);
+                } else {
+                    // the frame is still stuck
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                    Thread.sleep(backoff);
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+        report();
+    }
+
+    /**
+     * Waits until frames are measured again, at most until {@code until} in
+     * uptime.
+     */
+    private void park(long until) throws InterruptedException {
+        synchronized (mLock) {
+            while (!mActive) {
+                long remaining = until - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+                mLock.wait(remaining);
+            }
+        }
+    }
+
+    private void add(StackTraceElement[] stack) {
+        if (stack.length == 0 || isIdle(stack[0])) {
+            // the main looper was waiting for messages, nothing to blame
+            return;
+        }
+        mSamples++;
+        int count = Math.min(stack.length, MAX_STACK_FRAMES);
+        long hash = 0;
+        for (int i = 0; i < count; i++) {
+            hash = CrashFingerprint.hashFrame(hash, stack[i].getClassName(), stack[i].getMethodName());
+        }
+        StackCount entry = mStacks.get(hash);
+        if (entry == null) {
+            if (mStacks.size() >= MAX_STACKS) {
+                mOtherSamples++;
+                return;
+            }
+            StackTraceElement[] kept = stack;
+            if (count < stack.length) {
+                kept = new StackTraceElement[count];
+                System.arraycopy(stack, 0, kept, 0, count);
+            }
+            entry = new StackCount(kept);
+            mStacks.put(hash, entry);
+        }
+        entry.count++;
+    }
+
+    private static boolean isIdle(StackTraceElement top) {
+        return "nativePollOnce".equals(top.getMethodName())
+                && "android.os.MessageQueue".equals(top.getClassName());
+    }
+
+    private void report() {
+        long frames = 0;
+        StringBuilder histogram = new StringBuilder(256);
+        for (int i = 0; i < mBuckets.length(); i++) {
+            long count = mBuckets.getAndSet(i, 0);
+            frames += count;
+            if (i < BUCKET_LIMITS.length) {
+                histogram.append(i == 0 ? 0 : BUCKET_LIMITS[i - 1]).append('-').append(BUCKET_LIMITS[i]);
+            } else {
+                histogram.append('>').append(BUCKET_LIMITS[i - 1]);
+            }
+            histogram.append("ms: ").append(count).append('\n');
+        }
+        long slowFrames = mSlowFrames.getAndSet(0);
+        if (slowFrames > 0 || mSamples > 0) {
+            mListener.onSummary(frames, slowFrames, histogram.toString(), formatStacks(frames, slowFrames));
+        }
+        mStacks.clear();
+        mSamples = 0;
+        mOtherSamples = 0;
+    }
+
+    /**
+     * Writes each stack as an exception trace, so the first one is what the
+     * crash history shows.
+     */
+    private String formatStacks(long frames, long slowFrames) {
+        ArrayList<StackCount> stacks = new ArrayList<StackCount>(mStacks.values());
+        Collections.sort(stacks, new Comparator<StackCount>() {
+            @Override
+            public int compare(StackCount a, StackCount b) {
+                return a.count < b.count ? 1 : a.count > b.count ? -1 : 0;
+            }
+        });
+        StringBuilder out = new StringBuilder(4096);
+        int shown = Math.min(stacks.size(), TOP_STACKS);
+        for (int i = 0; i < shown; i++) {
+            StackCount entry = stacks.get(i);
+            out.append("Jank: ").append(entry.count).append(" of ").append(mSamples)
+                    .append(" slow frame samples");
+            if (i == 0) {
+                out.append(" (").append(slowFrames).append(" of ").append(frames)
+                        .append(" frames over ").append(mBudget).append(" ms)");
+            }
+            out.append('\n');
+            for (StackTraceElement frame : entry.stack) {
+                out.append("\tat ").append(frame).append('\n');
+            }
+        }
+        int rest = mOtherSamples;
+        for (int i = shown; i < stacks.size(); i++) {
+            rest += stacks.get(i).count;
+        }
+        if (rest > 0) {
+            out.append("Jank: ").append(rest).append(" samples at other stacks\n");
+        }
+        if (out.length() == 0) {
+            out.append("Jank: ").append(slowFrames).append(" of ").append(frames)
+                    .append(" frames over ").append(mBudget).append(" ms, no stack sampled\n");
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ *  Copyright 2010 Emmanuel Astier & Kevin Gaudin
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.sivun.greencrath;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.Debug;
+
+/**
+ * 进程内存采样：定期记录内存曲线，崩溃时写入报告。
+ * <p>
+ * A background thread wakes up once per interval and records the Java heap
+ * in use, the native heap, the PSS of the process, the GC count and the
+ * RAM available on the device into a preallocated ring of primitives. The
+ * first sample is kept as the baseline.
+ * <p>
+ * A report gets the samples of the last minutes as a trend, oldest first,
+ * ending with a reading taken at the crash, and the change since the
+ * baseline. The crash time reading only covers the cheap values (heaps and
+ * GC count); PSS and available RAM come from the last sample, since
+ * reading them takes a scan of {@code /proc} or an IPC.
+ */
+final class MemorySampler {
+
+    static final long DEFAULT_INTERVAL_MILLIS = 30 * 1000;
+    static final int DEFAULT_CAPACITY = 20;
+
+    // Layout of one sample, unknown values are -1
+    private static final int TIME = 0;
+    private static final int JAVA_USED = 1;
+    private static final int NATIVE = 2;
+    private static final int PSS = 3;
+    private static final int GC_COUNT = 4;
+    private static final int AVAILABLE_RAM = 5;
+    private static final int FIELDS = 6;
+
+    private static final long MB = 1024 * 1024;
+
+    private final Context mContext;
+    private ActivityManager mActivityManager;
+    private final ActivityManager.MemoryInfo mMemoryInfo = new ActivityManager.MemoryInfo();
+    private final long mInterval;
+    private final int mCapacity;
+    private final long mJavaMax = Runtime.getRuntime().maxMemory();
+    private final Thread mThread;
+    private volatile boolean mStopped;
+
+    // Guarded by this
+    private final long[] mSamples;
+    private final long[] mBaseline = new long[FIELDS];
+    private int mCount;
+    private int mNext;
+
+    /**
+     * @param intervalMillis time between two samples
+     * @param capacity       number of samples kept
+     */
+    MemorySampler(Context context, long intervalMillis, int capacity) {
+        mContext = context;
+        mInterval = intervalMillis;
+        mCapacity = capacity;
+        mSamples = new long[capacity * FIELDS];
+        mThread = new Thread("GreenCrash-Memory") {
+            @Override
+            public void run() {
+                sample();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    void stop() {
+        mStopped = true;
+        mThread.interrupt();
+    }
+
+    private void sample() {
+        long[] sample = new long[FIELDS];
+        mActivityManager = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        try {
+            while (!mStopped) {
+                readCheap(sample);
+                sample[PSS] = Build.VERSION.SDK_INT >= 14 ? Debug.getPss() * 1024 : -1;
+                sample[AVAILABLE_RAM] = readAvailableRam();
+                synchronized (this) {
+                    if (mCount == 0) {
+                        System.arraycopy(sample, 0, mBaseline, 0, FIELDS);
+                    }
+                    System.arraycopy(sample, 0, mSamples, mNext * FIELDS, FIELDS);
+                    mNext = (mNext + 1) % mCapacity;
+                    mCount = Math.min(mCount + 1, mCapacity);
+                }
+                Thread.sleep(mInterval);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Reads the values that cost no system call.
+     */
+    private static void readCheap(long[] sample) {
+        Runtime runtime = Runtime.getRuntime();
+        sample[TIME] = System.currentTimeMillis();
+        sample[JAVA_USED] = runtime.totalMemory() - runtime.freeMemory();
+        sample[NATIVE] = Debug.getNativeHeapAllocatedSize();
+        sample[GC_COUNT] = readGcCount();
+    }
+
+    private static long readGcCount() {
+        if (Build.VERSION.SDK_INT < 23) {
+            // the older counters only count while allocation counting is on
+            return -1;
+        }
+        String count = Debug.getRuntimeStat("art.gc.gc-count");
+        try {
+            return count != null ? Long.parseLong(count) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private long readAvailableRam() {
+        try {
+            mActivityManager.getMemoryInfo(mMemoryInfo);
+            return mMemoryInfo.availMem;
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return false if no sample was taken yet, or the report is older than
+     * the baseline (a crash of an earlier run).
+     */
+    synchronized boolean covers(long time) {
+        return mCount > 0 && time >= mBaseline[TIME];
+    }
+
+    synchronized String formatBaseline() {
+        StringBuilder out = new StringBuilder(128);
+        appendSample(out, mBaseline, 0);
+        return out.toString();
+    }
+
+    /**
+     * Appends the samples, oldest first, and a reading taken now, one per
+     * line with the time relative to {@code now}.
+     */
+    synchronized String formatTrend(long now) {
+        StringBuilder out = new StringBuilder(96 * (mCount + 1));
+        int first = mCount < mCapacity ? 0 : mNext;
+        for (int i = 0; i < mCount; i++) {
+            appendTime(out, mSamples[((first + i) % mCapacity) * FIELDS + TIME] - now);
+            appendSample(out, mSamples, ((first + i) % mCapacity) * FIELDS);
+            out.append('\n');
+        }
+        long[] current = current();
+        appendTime(out, 0);
+        appendSample(out, current, 0);
+        out.append('\n');
+        return out.toString();
+    }
+
+    /**
+     * @return the change of a reading taken now against the baseline.
+     */
+    synchronized String formatDelta() {
+        long[] current = current();
+        StringBuilder out = new StringBuilder(128);
+        out.append("java ");
+        appendDelta(out, JAVA_USED, current, true);
+        out.append(" native ");
+        appendDelta(out, NATIVE, current, true);
+        out.append(" pss ");
+        appendDelta(out, PSS, current, true);
+        out.append(" gc ");
+        appendDelta(out, GC_COUNT, current, false);
+        out.append(" in ").append((current[TIME] - mBaseline[TIME]) / 1000).append('s');
+        return out.toString();
+    }
+
+    /**
+     * @return the cheap values read now, the others from the last sample.
+     */
+    private long[] current() {
+        long[] current = new long[FIELDS];
+        int last = ((mNext + mCapacity - 1) % mCapacity) * FIELDS;
+        System.arraycopy(mSamples, last, current, 0, FIELDS);
+        readCheap(current);
+        return current;
+    }
+
+    private void appendSample(StringBuilder out, long[] sample, int offset) {
+        out.append("java=");
+        appendMb(out, sample[offset + JAVA_USED], false);
+        out.append('/');
+        appendMb(out, mJavaMax, false);
+        out.append(" native=");
+        appendMb(out, sample[offset + NATIVE], false);
+        out.append(" pss=");
+        appendMb(out, sample[offset + PSS], false);
+        out.append(" gc=");
+        appendCount(out, sample[offset + GC_COUNT]);
+        out.append(" avail=");
+        appendMb(out, sample[offset + AVAILABLE_RAM], false);
+    }
+
+    private void appendDelta(StringBuilder out, int field, long[] current, boolean bytes) {
+        long base = mBaseline[field];
+        long value = current[field];
+        if (base < 0 || value < 0) {
+            out.append('?');
+        } else if (bytes) {
+            appendMb(out, value - base, true);
+        } else {
+            out.append(value >= base ? "+" : "").append(value - base);
+        }
+    }
+
+    private static void appendTime(StringBuilder out, long offset) {
+        out.append(offset / 1000).append("s ");
+    }
+
+    private static void appendCount(StringBuilder out, long count) {
+        if (count < 0) {
+            out.append('?');
+        } else {
+            out.append(count);
+        }
+    }
+
+    /**
+     * Appends a size in MB with one decimal, or "?" if unknown.
+     */
+    private static void appendMb(StringBuilder out, long bytes, boolean signed) {
+        if (!signed && bytes < 0) {
+            out.append('?');
+            return;
+        }
+        if (bytes < 0) {
+            out.append('-');
+            bytes = -bytes;
+        } else if (signed) {
+            out.append('+');
+        }
+        long tenths = bytes * 10 / MB;
+        out.append(tenths / 10).append('.').append(tenths % 10).append("MB");
+    }
+}